@@ -0,0 +1,292 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.edb.ngs.CountAssembly;
+import edu.columbia.rdf.edb.ngs.ReadCountsFile32Bit;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBC;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRT;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRTC;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBVT;
+
+/**
+ * Measures the query throughput of each file format over the same synthetic
+ * chromosome. Run with {@code -prof gc} to also report the allocation rate
+ * and with {@code -t} to vary the number of threads.
+ *
+ * BC and 32Bit files only store windows of 100 and above so smaller windows
+ * are read at 100. So that no single query allocates an unreasonable amount
+ * of memory, the window is also raised by powers of 10 until a region spans
+ * no more than {@link #MAX_BINS} bins.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadCountsBenchmark {
+
+  /** The max number of bins a query may return. */
+  public static final int MAX_BINS = 10000000;
+
+  /**
+   * System property naming a directory in which to keep the fixtures
+   * between runs.
+   */
+  public static final String DIR_PROPERTY = "edb.benchmark.dir";
+
+  /**
+   * The fixtures and the reader shared by all threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Fixture {
+
+    /** The file format. */
+    @Param({ "brt", "brt2", "brtc", "bvt", "bc", "32bit" })
+    public String format;
+
+    /** The region size. */
+    @Param({ "1000", "100000", "10000000", "100000000" })
+    public int regionSize;
+
+    /** The requested window. */
+    @Param({ "1", "100", "1000", "10000", "1000000" })
+    public int window;
+
+    /** The fixture directory. */
+    public Path dir;
+
+    /** The reader shared by all threads if it is thread safe. */
+    public CountAssembly assembly;
+
+    /** The window actually queried. */
+    public int queryWindow;
+
+    /** The chromosome length. */
+    public int length;
+
+    /**
+     * Write the fixtures, if necessary, and open the reader.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      ReadCountsFixtures fixtures =
+          new ReadCountsFixtures(ReadCountsFixtures.DEFAULT_READS,
+              ReadCountsFixtures.DEFAULT_LENGTH,
+              0);
+
+      String d = System.getProperty(DIR_PROPERTY);
+
+      dir = fixtures.write(d != null ? Paths.get(d)
+          : Paths.get(System.getProperty("java.io.tmpdir"), "edb-benchmark"));
+
+      length = fixtures.getLength();
+
+      queryWindow = window;
+
+      if (format.equals("bc") || format.equals("32bit")) {
+        queryWindow = Math.max(ReadCountsFixtures.STORED_WINDOWS[0],
+            queryWindow);
+      }
+
+      while (regionSize / queryWindow > MAX_BINS) {
+        queryWindow *= 10;
+      }
+
+      assembly = open();
+    }
+
+    /**
+     * Open a new reader for the format.
+     *
+     * @return the count assembly
+     */
+    public CountAssembly open() {
+      Path meta = dir.resolve(ReadCountsFixtures.META_FILE);
+
+      switch (format) {
+      case "brt":
+        return new ReadCountsFileBRT(meta);
+      case "brtc":
+        return new ReadCountsFileBRTC(meta);
+      case "bvt":
+        return new ReadCountsFileBVT(meta);
+      case "bc":
+        return new ReadCountsFileBC(dir.resolve(ReadCountsFixtures.BC_FILE));
+      case "32bit":
+        return new ReadCountsFile32Bit(dir);
+      default:
+        return new ReadCountsFileBRT2(meta);
+      }
+    }
+
+    /**
+     * Close the reader.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      assembly.close();
+    }
+  }
+
+  /**
+   * The reader and random regions used by one thread.
+   */
+  @State(Scope.Thread)
+  public static class Query {
+
+    /** The reader. */
+    public CountAssembly assembly;
+
+    /** The regions, queried in turn. */
+    public GenomicRegion[] regions = new GenomicRegion[1024];
+
+    /** The index of the next region. */
+    private int mNext = 0;
+
+    /** Whether the reader belongs to this thread. */
+    private boolean mOwned;
+
+    /**
+     * Pick the regions and, if the shared reader is not thread safe, open a
+     * reader for this thread.
+     *
+     * @param fixture the fixture
+     */
+    @Setup(Level.Trial)
+    public void setup(Fixture fixture) {
+      mOwned = !fixture.assembly.isThreadSafe();
+
+      assembly = mOwned ? fixture.open() : fixture.assembly;
+
+      Chromosome chr = new Chromosome(ReadCountsFixtures.CHR);
+
+      Random r = new Random(Thread.currentThread().getId());
+
+      int range = Math.max(1, fixture.length - fixture.regionSize);
+
+      for (int i = 0; i < regions.length; ++i) {
+        int start = 1 + r.nextInt(range);
+
+        regions[i] =
+            new GenomicRegion(chr, start, start + fixture.regionSize - 1);
+      }
+    }
+
+    /**
+     * Returns the next region.
+     *
+     * @return the genomic region
+     */
+    public GenomicRegion next() {
+      GenomicRegion ret = regions[mNext];
+
+      mNext = (mNext + 1) % regions.length;
+
+      return ret;
+    }
+
+    /**
+     * Close the reader if it belongs to this thread.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      if (mOwned) {
+        assembly.close();
+      }
+    }
+  }
+
+  /**
+   * Benchmark getCounts.
+   *
+   * @param fixture the fixture
+   * @param query the query
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  public int[] getCounts(Fixture fixture, Query query) throws IOException {
+    return query.assembly.getCounts(query.next(), fixture.queryWindow);
+  }
+
+  /**
+   * Benchmark getStarts.
+   *
+   * @param fixture the fixture
+   * @param query the query
+   * @return the starts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  public int[] getStarts(Fixture fixture, Query query) throws IOException {
+    return query.assembly.getStarts(query.next(), fixture.queryWindow);
+  }
+
+  /**
+   * Benchmark getStrands.
+   *
+   * @param fixture the fixture
+   * @param query the query
+   * @return the strands
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  public Strand[] getStrands(Fixture fixture, Query query)
+      throws IOException {
+    return query.assembly.getStrands(query.next(), fixture.queryWindow);
+  }
+
+  /**
+   * Benchmark getValues.
+   *
+   * @param fixture the fixture
+   * @param query the query
+   * @return the values
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Benchmark
+  public double[] getValues(Fixture fixture, Query query)
+      throws IOException {
+    return query.assembly.getValues(query.next(), fixture.queryWindow);
+  }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBRTC;
+import edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree;
+
+/**
+ * Writes a synthetic chromosome in every file format so that the readers
+ * can be benchmarked against identical data. Reads are a mixture of a
+ * uniform background and dense peaks so that both sparse and crowded
+ * regions of the tree are exercised.
+ */
+public class ReadCountsFixtures {
+
+  /** The chromosome written. */
+  public static final String CHR = "chr1";
+
+  /** The genome written into the headers and meta file. */
+  public static final String GENOME = "hg19";
+
+  /** The default chromosome length, long enough for a 100 Mb region. */
+  public static final int DEFAULT_LENGTH = 120000000;
+
+  /** The default number of reads. */
+  public static final int DEFAULT_READS = 2000000;
+
+  /** The read length. */
+  public static final int READ_LENGTH = 36;
+
+  /** The windows stored in the BC and 32Bit files. */
+  public static final int[] STORED_WINDOWS = { 100, 1000, 10000, 100000,
+      1000000 };
+
+  /** The name of the meta file used by the bin tree readers. */
+  public static final String META_FILE = "meta.json";
+
+  /** The name of the file passed to the BC reader. */
+  public static final String BC_FILE = "reads.bci";
+
+  /** Written last so that a complete fixture directory can be reused. */
+  private static final String DONE_FILE = ".done";
+
+  /** The kinds of bin tree file. */
+  private static final int BRT = 0;
+  private static final int BRT2 = 1;
+  private static final int BVT = 2;
+
+  /** The read starts, sorted. */
+  private final int[] mStarts;
+
+  /** The read flags. */
+  private final byte[] mFlags;
+
+  /** The read values. */
+  private final float[] mValues;
+
+  /** The chromosome length. */
+  private final int mLength;
+
+  /**
+   * Instantiates a new set of fixtures.
+   *
+   * @param reads the number of reads
+   * @param length the chromosome length
+   * @param seed the random seed
+   */
+  public ReadCountsFixtures(int reads, int length, long seed) {
+    mLength = length;
+
+    Random r = new Random(seed);
+
+    // A fifth of the reads fall in peaks
+    int[] peaks = new int[Math.max(1, length / 1000000)];
+
+    for (int i = 0; i < peaks.length; ++i) {
+      peaks[i] = 1 + r.nextInt(length);
+    }
+
+    mStarts = new int[reads];
+    mFlags = new byte[reads];
+    mValues = new float[reads];
+
+    for (int i = 0; i < reads; ++i) {
+      int s;
+
+      if (r.nextInt(5) == 0) {
+        s = peaks[r.nextInt(peaks.length)] + (int) (r.nextGaussian() * 500);
+      } else {
+        s = 1 + r.nextInt(length);
+      }
+
+      mStarts[i] = Math.max(1, Math.min(length, s));
+      mFlags[i] = (byte) r.nextInt(2);
+      mValues[i] = r.nextInt(100) / 4f;
+    }
+
+    Arrays.sort(mStarts);
+  }
+
+  /**
+   * Gets the chromosome length.
+   *
+   * @return the length
+   */
+  public int getLength() {
+    return mLength;
+  }
+
+  /**
+   * Write every format into a directory unless it already contains a
+   * complete set of fixtures.
+   *
+   * @param dir the dir
+   * @return the dir
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public Path write(Path dir) throws IOException {
+    if (Files.exists(dir.resolve(DONE_FILE))) {
+      return dir;
+    }
+
+    Files.createDirectories(dir);
+
+    Files.write(dir.resolve(META_FILE),
+        ("{\"Genome\":\"" + GENOME + "\",\"Mapped Reads\":" + mStarts.length
+            + "}").getBytes(StandardCharsets.UTF_8));
+
+    writeBinTree(dir.resolve(CHR + ".brt"), BRT);
+    writeBinTree(dir.resolve(CHR + ".brt2"), BRT2);
+    writeBinTree(dir.resolve(CHR + ".bvt"), BVT);
+
+    ReadCountsFileBRTC.convert(dir.resolve(CHR + ".brt2"),
+        dir.resolve(CHR + "." + ReadCountsFileBRTC.FILE_EXT));
+
+    for (int window : STORED_WINDOWS) {
+      // BC files are named by the power of 10 of their window
+      int power = (int) Math.round(Math.log10(window));
+
+      writeBC(dir.resolve(CHR + "." + power + "bw.bc"),
+          window,
+          binCounts(window, 0));
+
+      // 32bit files use 1 based bins
+      write32Bit(dir.resolve(CHR + ".counts.win." + window + ".32bit"),
+          binCounts(window, 1));
+    }
+
+    Files.write(dir.resolve(BC_FILE), new byte[0]);
+
+    Files.write(dir.resolve(DONE_FILE), new byte[0]);
+
+    return dir;
+  }
+
+  /**
+   * Count the reads in each bin of a given width.
+   *
+   * @param window the window
+   * @param shift subtracted from each start before binning.
+   * @return the counts
+   */
+  private int[] binCounts(int window, int shift) {
+    int[] ret = new int[mLength / window + 1];
+
+    for (int s : mStarts) {
+      ++ret[(s - shift) / window];
+    }
+
+    return ret;
+  }
+
+  /**
+   * Write a bin tree file. The header is followed by the tree nodes level
+   * by level, then for BRT2 and BVT the multi resolution counts or sums,
+   * then the reads.
+   *
+   * @param file the file
+   * @param kind the kind
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBinTree(Path file, int kind) throws IOException {
+    int[] widths = ReadCountsFileBinTree.BIN_WIDTHS;
+    int levels = widths.length;
+    int n = mStarts.length;
+
+    // Nodes on each level as bin, first read, last read
+    int[][][] nodes = new int[levels][][];
+
+    for (int l = 0; l < levels; ++l) {
+      int[][] level = new int[n][];
+      int c = 0;
+
+      int i = 0;
+
+      while (i < n) {
+        int b = mStarts[i] / widths[l];
+        int j = i;
+
+        while (j + 1 < n && mStarts[j + 1] / widths[l] == b) {
+          ++j;
+        }
+
+        level[c++] = new int[] { b, i, j };
+
+        i = j + 1;
+      }
+
+      nodes[l] = Arrays.copyOf(level, c);
+    }
+
+    int[] levelStart = new int[levels];
+    int total = 0;
+
+    for (int l = 0; l < levels; ++l) {
+      levelStart[l] = total;
+      total += nodes[l].length;
+    }
+
+    int dataOffset = ReadCountsFileBinTree.HEADER_OFFSET_BYTES
+        + total * ReadCountsFileBinTree.BLOCK_SIZE_BYTES;
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+
+    try {
+      out.writeInt(READ_LENGTH);
+      out.writeInt(dataOffset);
+
+      byte[] genome = new byte[8];
+      byte[] g = GENOME.getBytes(StandardCharsets.UTF_8);
+      System.arraycopy(g, 0, genome, 0, g.length);
+      out.write(genome);
+
+      for (int l = 0; l < levels; ++l) {
+        // Index of the first node of the current group and of the group of
+        // children of the current node.
+        int group = 0;
+        int child = 0;
+
+        for (int k = 0; k < nodes[l].length; ++k) {
+          int[] node = nodes[l][k];
+
+          // Nodes with the same parent form a group
+          if (l > 0 && parent(node) != parent(nodes[l][group])) {
+            group = k;
+          }
+
+          int gso = -1;
+
+          if (l < levels - 1) {
+            int[][] children = nodes[l + 1];
+
+            while (parent(children[child]) < node[0]) {
+              ++child;
+            }
+
+            gso = (levelStart[l + 1] + child - levelStart[l] - group)
+                * ReadCountsFileBinTree.BLOCK_SIZE_BYTES;
+          }
+
+          out.writeInt(node[0]);
+          out.writeInt(node[0] * widths[l]);
+          out.writeInt(widths[l]);
+          out.writeInt(node[1]);
+          out.writeInt(node[2]);
+          out.writeInt(gso);
+        }
+      }
+
+      if (kind != BRT) {
+        int[] counts = new int[ReadCountsFileBinTree.TOTAL_BINS];
+        float[] sums = new float[ReadCountsFileBinTree.TOTAL_BINS];
+
+        for (int i = 0; i < n; ++i) {
+          for (int l = 0; l < levels; ++l) {
+            int b = ReadCountsFileBinTree.CUM_BIN_COUNTS[l]
+                + mStarts[i] / widths[l];
+
+            ++counts[b];
+            sums[b] += mValues[i];
+          }
+        }
+
+        for (int i = 0; i < counts.length; ++i) {
+          if (kind == BRT2) {
+            out.writeInt(counts[i]);
+          } else {
+            out.writeFloat(sums[i]);
+          }
+        }
+      }
+
+      for (int i = 0; i < n; ++i) {
+        out.writeInt(mStarts[i]);
+
+        if (kind == BVT) {
+          out.writeFloat(mValues[i]);
+        }
+
+        out.writeByte(mFlags[i]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the bin of the parent of a tree node.
+   *
+   * @param node the node
+   * @return the parent bin
+   */
+  private static int parent(int[] node) {
+    return node[0] / ReadCountsFileBinTree.BIN_DIVISIONS;
+  }
+
+  /**
+   * Write a BC file using 4 bytes per bin.
+   *
+   * @param file the file
+   * @param window the window
+   * @param counts the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeBC(Path file, int window, int[] counts)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+
+    try {
+      out.writeInt(0);
+      out.writeByte(4);
+      out.writeInt(window);
+      out.writeInt(counts.length);
+
+      for (int c : counts) {
+        out.writeInt(c);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Write a 32bit counts file.
+   *
+   * @param file the file
+   * @param counts the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void write32Bit(Path file, int[] counts) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+
+    try {
+      for (int c : counts) {
+        out.writeInt(c);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jebtk.core.io.FileUtils;
+import org.jebtk.core.io.PathUtils;
+
+/**
+ * Lists the BC files in a sample directory together with their headers so
+ * that a reader can find the file for a chromosome and power without
+ * listing the directory. Files are named {name}.{power}bw... where name is
+ * usually a chromosome, e.g. chr1.3bw.bc holds chr1 in 1000 bp bins.
+ *
+ * A manifest can be saved to {@link #MANIFEST_FILE} in the sample directory
+ * so that later readers load it with a single read.
+ */
+public class BCManifest {
+
+  /** The name of the manifest file in a sample directory. */
+  public static final String MANIFEST_FILE = "bc.manifest";
+
+  /** The first line of a manifest file. */
+  private static final String MANIFEST_HEADER =
+      "#name\tpower\tfile\tmagic\tbin_size\tbin_width\tbins\tsize";
+
+  /** The entries indexed by name and power. */
+  private final Map<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>();
+
+  /**
+   * Instantiates a new empty manifest.
+   */
+  private BCManifest() {
+    // Use load, scan or read
+  }
+
+  /**
+   * Gets the entry for a file.
+   *
+   * @param name the name, usually a chromosome.
+   * @param power the power of 10 of the bin width.
+   * @return the entry or null if there is no such file.
+   */
+  public Entry get(String name, int power) {
+    return mEntries.get(key(name, power));
+  }
+
+  /**
+   * Gets every entry.
+   *
+   * @return the entries
+   */
+  public Collection<Entry> getEntries() {
+    return mEntries.values();
+  }
+
+  /**
+   * Returns the number of files.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * Save the manifest.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void write(Path file) throws IOException {
+    BufferedWriter writer = FileUtils.newBufferedWriter(file);
+
+    try {
+      writer.write(MANIFEST_HEADER);
+      writer.newLine();
+
+      for (Entry e : mEntries.values()) {
+        writer.write(e.mName + "\t" + e.mPower + "\t" + e.mFile + "\t"
+            + e.mMagic + "\t" + e.mBinSize + "\t" + e.mBinWidth + "\t"
+            + e.mBins + "\t" + e.mSize);
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Load the manifest of a sample directory from its manifest file if it
+   * has one and it is current, otherwise scan the directory. A manifest is
+   * stale if files were added to or removed from the directory after it
+   * was saved, or if any file it lists is missing or has changed size.
+   *
+   * @param dir the dir
+   * @return the manifest
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static BCManifest load(Path dir) throws IOException {
+    Path file = dir.resolve(MANIFEST_FILE);
+
+    if (FileUtils.exists(file) && Files.getLastModifiedTime(dir)
+        .compareTo(Files.getLastModifiedTime(file)) <= 0) {
+      BCManifest ret = read(file);
+
+      if (ret.isCurrent(dir)) {
+        return ret;
+      }
+    }
+
+    return scan(dir);
+  }
+
+  /**
+   * Read a saved manifest.
+   *
+   * @param file the file
+   * @return the manifest
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static BCManifest read(Path file) throws IOException {
+    BCManifest ret = new BCManifest();
+
+    BufferedReader reader = FileUtils.newBufferedReader(file);
+
+    String line;
+
+    try {
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+
+        String[] tokens = line.split("\t");
+
+        if (tokens.length < 8) {
+          throw new IOException(file + " is not a BC manifest.");
+        }
+
+        ret.add(new Entry(tokens[0],
+            Integer.parseInt(tokens[1]),
+            tokens[2],
+            Integer.parseInt(tokens[3]),
+            Integer.parseInt(tokens[4]),
+            Integer.parseInt(tokens[5]),
+            Integer.parseInt(tokens[6]),
+            Long.parseLong(tokens[7])));
+      }
+    } finally {
+      reader.close();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Create a manifest by listing a directory once and reading the header of
+   * each BC file. If more than one file has the same name and power, the
+   * first in directory order is used.
+   *
+   * @param dir the dir
+   * @return the manifest
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static BCManifest scan(Path dir) throws IOException {
+    BCManifest ret = new BCManifest();
+
+    for (Path file : FileUtils.ls(dir)) {
+      String name = PathUtils.getName(file);
+
+      String[] tokens = name.split("\\.");
+
+      // Find the power token, e.g. 3bw, and the name preceding it
+      for (int i = 1; i < tokens.length; ++i) {
+        int power = parsePower(tokens[i]);
+
+        if (power != -1) {
+          if (ret.get(tokens[i - 1], power) == null) {
+            ret.add(readHeader(file, tokens[i - 1], power));
+          }
+
+          break;
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read the header of a BC file. Fields missing from a short file are -1.
+   *
+   * @param file the file
+   * @param name the name
+   * @param power the power
+   * @return the entry
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static Entry readHeader(Path file, String name, int power)
+      throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+    try {
+      long size = channel.size();
+
+      ByteBuffer in = ByteBuffer.allocate(
+          (int) Math.min(size, ReadCountsFileBC.BINS_OFFSET_BYTES));
+
+      FileChannelPool.readFully(channel, in, 0);
+
+      int magic = in.limit() >= ReadCountsFileBC.BIN_SIZE_OFFSET_BYTES
+          ? in.getInt(ReadCountsFileBC.MAGIC_NUMBER_OFFSET_BYTES) : -1;
+
+      int binSize = in.limit() > ReadCountsFileBC.BIN_SIZE_OFFSET_BYTES
+          ? in.get(ReadCountsFileBC.BIN_SIZE_OFFSET_BYTES) & 0xff : -1;
+
+      int binWidth = in.limit() >= ReadCountsFileBC.N_BINS_OFFSET_BYTES
+          ? in.getInt(ReadCountsFileBC.BIN_WIDTH_OFFSET_BYTES) : -1;
+
+      int bins = in.limit() >= ReadCountsFileBC.BINS_OFFSET_BYTES
+          ? in.getInt(ReadCountsFileBC.N_BINS_OFFSET_BYTES) : -1;
+
+      return new Entry(name,
+          power,
+          PathUtils.getName(file),
+          magic,
+          binSize,
+          binWidth,
+          bins,
+          size);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Parses a power token such as 3bw.
+   *
+   * @param token the token
+   * @return the power or -1 if the token is not a power.
+   */
+  private static int parsePower(String token) {
+    if (!token.endsWith("bw") || token.length() < 3) {
+      return -1;
+    }
+
+    for (int i = 0; i < token.length() - 2; ++i) {
+      if (!Character.isDigit(token.charAt(i))) {
+        return -1;
+      }
+    }
+
+    return Integer.parseInt(token.substring(0, token.length() - 2));
+  }
+
+  /**
+   * Returns true if every file in the manifest exists in a directory with
+   * the size it had when the manifest was made.
+   *
+   * @param dir the dir
+   * @return true if the manifest matches the files.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private boolean isCurrent(Path dir) throws IOException {
+    for (Entry e : mEntries.values()) {
+      Path file = dir.resolve(e.mFile);
+
+      if (!FileUtils.exists(file) || Files.size(file) != e.mSize) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Adds an entry.
+   *
+   * @param entry the entry
+   */
+  private void add(Entry entry) {
+    mEntries.put(key(entry.mName, entry.mPower), entry);
+  }
+
+  /**
+   * Returns the key of a file.
+   *
+   * @param name the name
+   * @param power the power
+   * @return the key
+   */
+  private static String key(String name, int power) {
+    return name + "." + power;
+  }
+
+  /**
+   * One file in the manifest.
+   */
+  public static class Entry {
+
+    /** The name, usually a chromosome. */
+    private final String mName;
+
+    /** The power. */
+    private final int mPower;
+
+    /** The file name relative to the sample directory. */
+    private final String mFile;
+
+    /** The first 4 bytes of the file. */
+    private final int mMagic;
+
+    /** The number of bytes per bin. */
+    private final int mBinSize;
+
+    /** The bin width. */
+    private final int mBinWidth;
+
+    /** The number of bins. */
+    private final int mBins;
+
+    /** The size of the file in bytes. */
+    private final long mSize;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param name the name
+     * @param power the power
+     * @param file the file
+     * @param magic the magic
+     * @param binSize the bin size
+     * @param binWidth the bin width
+     * @param bins the bins
+     * @param size the size
+     */
+    public Entry(String name,
+        int power,
+        String file,
+        int magic,
+        int binSize,
+        int binWidth,
+        int bins,
+        long size) {
+      mName = name;
+      mPower = power;
+      mFile = file;
+      mMagic = magic;
+      mBinSize = binSize;
+      mBinWidth = binWidth;
+      mBins = bins;
+      mSize = size;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return mName;
+    }
+
+    /**
+     * Gets the power.
+     *
+     * @return the power
+     */
+    public int getPower() {
+      return mPower;
+    }
+
+    /**
+     * Gets the file name relative to the sample directory.
+     *
+     * @return the file
+     */
+    public String getFile() {
+      return mFile;
+    }
+
+    /**
+     * Returns the first 4 bytes of the file as an int. In a chromosome file
+     * this is the magic number; in a counts file it is the read count.
+     *
+     * @return the magic
+     */
+    public int getMagic() {
+      return mMagic;
+    }
+
+    /**
+     * Gets the number of bytes per bin.
+     *
+     * @return the bin size
+     */
+    public int getBinSize() {
+      return mBinSize;
+    }
+
+    /**
+     * Gets the bin width.
+     *
+     * @return the bin width
+     */
+    public int getBinWidth() {
+      return mBinWidth;
+    }
+
+    /**
+     * Gets the number of bins.
+     *
+     * @return the bins
+     */
+    public int getBins() {
+      return mBins;
+    }
+
+    /**
+     * Gets the size of the file in bytes.
+     *
+     * @return the size
+     */
+    public long getSize() {
+      return mSize;
+    }
+  }
+}
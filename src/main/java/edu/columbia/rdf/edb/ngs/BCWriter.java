@@ -0,0 +1,257 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Counts the reads of one chromosome in bins of several powers of 10 and
+ * writes one file per power that can be read by {@link ReadCountsFileBC}.
+ * A read is counted in the bin containing its start.
+ *
+ * Only the finest bins are counted as reads are added. Wider bins are the
+ * sums of the finest bins they contain. Each file uses the fewest bytes per
+ * bin that can hold its largest count.
+ */
+public class BCWriter {
+
+  /** The file extension. */
+  public static final String FILE_EXT = "bc";
+
+  /** The default powers of the bin widths, 100 bp to 1 Mb. */
+  public static final int[] DEFAULT_POWERS = { 2, 3, 4, 5, 6 };
+
+  /**
+   * The readers do not check the magic number of chromosome files so it is
+   * written as 0.
+   */
+  private static final int MAGIC_NUMBER = 0;
+
+  /** The chromosome length. */
+  private final int mLength;
+
+  /** The powers in ascending order. */
+  private final int[] mPowers;
+
+  /** The width of the finest bins. */
+  private final int mWidth;
+
+  /** The counts of the finest bins. */
+  private final int[] mCounts;
+
+  /** The m reads. */
+  private int mReads = 0;
+
+  /**
+   * Create a writer using the default powers.
+   *
+   * @param length the chromosome length
+   */
+  public BCWriter(int length) {
+    this(length, DEFAULT_POWERS);
+  }
+
+  /**
+   * Create a writer.
+   *
+   * @param length the chromosome length
+   * @param powers the powers of 10 of the bin widths, between 0 and 9.
+   */
+  public BCWriter(int length, int[] powers) {
+    mLength = length;
+
+    mPowers = powers.clone();
+
+    Arrays.sort(mPowers);
+
+    mWidth = width(mPowers[0]);
+
+    mCounts = new int[bins(mWidth)];
+  }
+
+  /**
+   * Returns the number of reads added.
+   *
+   * @return the reads
+   */
+  public int getReads() {
+    return mReads;
+  }
+
+  /**
+   * Add a read.
+   *
+   * @param start the one based start of the read.
+   */
+  public void add(int start) {
+    // Reads hanging off the end of the chromosome are kept in the last bin
+    ++mCounts[Math.min(start / mWidth, mCounts.length - 1)];
+
+    ++mReads;
+  }
+
+  /**
+   * Write a file for each power into a directory.
+   *
+   * @param dir the dir
+   * @param name the name of the files, usually the chromosome.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void write(Path dir, String name) throws IOException {
+    for (int power : mPowers) {
+      int width = width(power);
+
+      int[] counts;
+
+      if (width == mWidth) {
+        counts = mCounts;
+      } else {
+        counts = new int[bins(width)];
+
+        int r = width / mWidth;
+
+        for (int i = 0; i < mCounts.length; ++i) {
+          counts[i / r] += mCounts[i];
+        }
+      }
+
+      write(dir.resolve(getFileName(name, power)), width, counts);
+    }
+  }
+
+  /**
+   * Returns the name of the file holding the bins of a power.
+   *
+   * @param name the name, usually the chromosome.
+   * @param power the power
+   * @return the file name, e.g. chr1.3bw.bc.
+   */
+  public static String getFileName(String name, int power) {
+    return name + "." + power + "bw." + FILE_EXT;
+  }
+
+  /**
+   * Write the file of the sample read count that
+   * {@link ReadCountsFileBC#getReadCount} expects. The count is stored as
+   * an int so larger samples are rejected rather than truncated.
+   *
+   * @param dir the dir
+   * @param genome the genome
+   * @param reads the reads
+   * @throws IOException Signals that an I/O exception has occurred or that
+   *           there are too many reads to store.
+   */
+  public static void writeReadCount(Path dir, String genome, long reads)
+      throws IOException {
+    if (reads < 0 || reads > Integer.MAX_VALUE) {
+      throw new IOException(reads + " reads cannot be stored in a BC file.");
+    }
+
+    String mode = BCMode.COUNT.toString().toLowerCase();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(
+            dir.resolve("reads." + genome + "." + mode + "." + FILE_EXT))));
+
+    try {
+      out.writeInt((int) reads);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Write one file.
+   *
+   * @param file the file
+   * @param width the bin width
+   * @param counts the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void write(Path file, int width, int[] counts)
+      throws IOException {
+    int max = 0;
+
+    for (int c : counts) {
+      max = Math.max(max, c);
+    }
+
+    // Single bytes are read unsigned and shorts signed
+    int binSize = max <= 0xff ? 1 : (max <= Short.MAX_VALUE ? 2 : 4);
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+
+    try {
+      out.writeInt(MAGIC_NUMBER);
+      out.writeByte(binSize);
+      out.writeInt(width);
+      out.writeInt(counts.length);
+
+      switch (binSize) {
+      case 4:
+        for (int c : counts) {
+          out.writeInt(c);
+        }
+        break;
+      case 2:
+        for (int c : counts) {
+          out.writeShort(c);
+        }
+        break;
+      default:
+        for (int c : counts) {
+          out.writeByte(c);
+        }
+        break;
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the number of bins of a given width needed to cover the
+   * chromosome.
+   *
+   * @param width the width
+   * @return the bins
+   */
+  private int bins(int width) {
+    return mLength / width + 1;
+  }
+
+  /**
+   * Returns the bin width of a power.
+   *
+   * @param power the power
+   * @return the width
+   */
+  private static int width(int power) {
+    int ret = 1;
+
+    for (int i = 0; i < power; ++i) {
+      ret *= 10;
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * The count, sum, sum of squares, min and max of the values in each of a run
+ * of bins. Bins are combined from the summaries stored in version 3 bin tree
+ * files, or from individual values, so that any {@link BCMode} can be
+ * derived without returning to the reads.
+ */
+public class BinSummary {
+
+  /** The number of values in each bin. */
+  private final long[] mCounts;
+
+  /** The sum of the values in each bin. */
+  private final double[] mSums;
+
+  /** The sum of the squares of the values in each bin. */
+  private final double[] mSumSquares;
+
+  /** The smallest value in each bin. */
+  private final float[] mMins;
+
+  /** The largest value in each bin. */
+  private final float[] mMaxs;
+
+  /**
+   * Create a summary of empty bins.
+   *
+   * @param bins the number of bins.
+   */
+  public BinSummary(int bins) {
+    mCounts = new long[bins];
+    mSums = new double[bins];
+    mSumSquares = new double[bins];
+    mMins = new float[bins];
+    mMaxs = new float[bins];
+  }
+
+  /**
+   * Returns the number of bins.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mCounts.length;
+  }
+
+  /**
+   * Add a single value to a bin.
+   *
+   * @param bin the bin
+   * @param value the value
+   */
+  public void add(int bin, float value) {
+    add(bin, 1, value, (double) value * value, value, value);
+  }
+
+  /**
+   * Add the summary of a group of values to a bin.
+   *
+   * @param bin the bin
+   * @param count the number of values, ignored if not positive.
+   * @param sum the sum of the values.
+   * @param sumSquares the sum of the squares of the values.
+   * @param min the smallest value.
+   * @param max the largest value.
+   */
+  public void add(int bin,
+      long count,
+      double sum,
+      double sumSquares,
+      float min,
+      float max) {
+    if (count < 1) {
+      return;
+    }
+
+    if (mCounts[bin] == 0) {
+      mMins[bin] = min;
+      mMaxs[bin] = max;
+    } else {
+      mMins[bin] = Math.min(mMins[bin], min);
+      mMaxs[bin] = Math.max(mMaxs[bin], max);
+    }
+
+    mCounts[bin] += count;
+    mSums[bin] += sum;
+    mSumSquares[bin] += sumSquares;
+  }
+
+  /**
+   * Returns the number of values in a bin.
+   *
+   * @param bin the bin
+   * @return the count
+   */
+  public long getCount(int bin) {
+    return mCounts[bin];
+  }
+
+  /**
+   * Returns the sum of the values in a bin.
+   *
+   * @param bin the bin
+   * @return the sum
+   */
+  public double getSum(int bin) {
+    return mSums[bin];
+  }
+
+  /**
+   * Returns the sum of the squares of the values in a bin.
+   *
+   * @param bin the bin
+   * @return the sum of squares
+   */
+  public double getSumSquares(int bin) {
+    return mSumSquares[bin];
+  }
+
+  /**
+   * Returns the smallest value in a bin, or 0 if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the min
+   */
+  public float getMin(int bin) {
+    return mMins[bin];
+  }
+
+  /**
+   * Returns the largest value in a bin, or 0 if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the max
+   */
+  public float getMax(int bin) {
+    return mMaxs[bin];
+  }
+
+  /**
+   * Returns the mean of the values in a bin, or 0 if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the mean
+   */
+  public double getMean(int bin) {
+    return mCounts[bin] > 0 ? mSums[bin] / mCounts[bin] : 0;
+  }
+
+  /**
+   * Returns the population standard deviation of the values in a bin, or 0
+   * if the bin is empty.
+   *
+   * @param bin the bin
+   * @return the standard deviation
+   */
+  public double getStdDev(int bin) {
+    if (mCounts[bin] == 0) {
+      return 0;
+    }
+
+    double mean = getMean(bin);
+
+    // Rounding can make the variance of identical values slightly negative
+    return Math.sqrt(
+        Math.max(0, mSumSquares[bin] / mCounts[bin] - mean * mean));
+  }
+
+  /**
+   * Returns the value of a bin in a given mode: the sum for COUNT, the mean
+   * for MEAN and the max for MAX.
+   *
+   * @param bin the bin
+   * @param mode the mode
+   * @return the value
+   */
+  public double getValue(int bin, BCMode mode) {
+    switch (mode) {
+    case MAX:
+      return mMaxs[bin];
+    case MEAN:
+      return getMean(bin);
+    default:
+      return mSums[bin];
+    }
+  }
+
+  /**
+   * Write the value of every bin in a given mode into an array.
+   *
+   * @param mode the mode
+   * @param values the array to write the values to.
+   * @param offset the index in values of the first bin.
+   */
+  public void getValues(BCMode mode, double[] values, int offset) {
+    for (int i = 0; i < mCounts.length; ++i) {
+      values[offset + i] = getValue(i, mode);
+    }
+  }
+}
@@ -0,0 +1,513 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * In memory copy of the tree section of a bin tree file. Nodes are stored in
+ * file order as parallel primitive arrays so that looking up a position is a
+ * binary search within each group rather than a scan of the file.
+ *
+ * Nodes on the same level of the tree are stored contiguously and sorted by
+ * bin so each run of nodes with the same width can be binary searched.
+ *
+ * The leaves of the tree cover the parts of the chromosome containing reads,
+ * so they also give its occupancy at MIN_BIN_WIDTH resolution. A leaf wider
+ * than MIN_BIN_WIDTH marks every bin it spans. Regions without reads can be
+ * recognized without reading the file.
+ */
+public class BinTreeIndex {
+
+  /** The bin of each node. */
+  private final int[] mBins;
+
+  /** The start coordinate of each node. */
+  private final int[] mStarts;
+
+  /** The index of the first read in each node. */
+  private final long[] mStartOffsets;
+
+  /** The index of the last read in each node. */
+  private final long[] mEndOffsets;
+
+  /**
+   * The offset, in nodes, from the start of the group containing a node to
+   * the group of its children or -1 if the node is a leaf.
+   */
+  private final int[] mChildOffsets;
+
+  /** The index of the first node of each run of nodes of the same width. */
+  private final int[] mRunStarts;
+
+  /** The width of the nodes in each run. */
+  private final int[] mRunWidths;
+
+  /** The number of nodes. */
+  private final int mSize;
+
+  /**
+   * The MIN_BIN_WIDTH bins spanned by a leaf, or null if the tree has no
+   * leaves, in which case every bin is assumed to have reads.
+   */
+  private final BitSet mOccupied;
+
+  /**
+   * Instantiates a new bin tree index.
+   *
+   * @param bins the bins
+   * @param starts the starts
+   * @param startOffsets the start offsets
+   * @param endOffsets the end offsets
+   * @param childOffsets the child offsets
+   * @param runStarts the run starts
+   * @param runWidths the run widths
+   * @param occupied the occupied bins
+   */
+  private BinTreeIndex(int[] bins,
+      int[] starts,
+      long[] startOffsets,
+      long[] endOffsets,
+      int[] childOffsets,
+      int[] runStarts,
+      int[] runWidths,
+      BitSet occupied) {
+    mBins = bins;
+    mStarts = starts;
+    mStartOffsets = startOffsets;
+    mEndOffsets = endOffsets;
+    mChildOffsets = childOffsets;
+    mRunStarts = runStarts;
+    mRunWidths = runWidths;
+    mSize = bins.length;
+    mOccupied = occupied;
+  }
+
+  /**
+   * Returns the number of nodes in the tree.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Returns the bin of a node.
+   *
+   * @param i the node index
+   * @return the bin
+   */
+  public int getBin(int i) {
+    return mBins[i];
+  }
+
+  /**
+   * Returns the index of the first node on a level whose bin is not less
+   * than a given bin, or the index after the last node on the level if there
+   * is none. Since nodes are stored level by level, the nodes of a level
+   * with bins in [b1, b2] are those from getNode(level, b1) up to but not
+   * including getNode(level, b2 + 1).
+   *
+   * The run of a level is found by its width rather than its position since
+   * a tree whose leaves are wider than MIN_BIN_WIDTH has no nodes on the
+   * lower levels.
+   *
+   * @param level the level
+   * @param bin the bin
+   * @return the node index or -1 if the tree has no nodes on the level.
+   */
+  public int getNode(int level, int bin) {
+    int width = ReadCountsFileBinTree.BIN_WIDTHS[level];
+
+    for (int r = 0; r < mRunStarts.length; ++r) {
+      if (mRunWidths[r] == width) {
+        int from = mRunStarts[r];
+
+        return lowerBound(from,
+            r + 1 < mRunStarts.length ? mRunStarts[r + 1] : mSize,
+            bin);
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Returns the approximate number of bytes of heap used by the index.
+   *
+   * @return the memory usage
+   */
+  public long getMemoryUsage() {
+    // 3 int and 2 long fields per node plus the run table and occupancy
+    return (3L * 4 + 2L * 8) * mSize + 8L * mRunStarts.length
+        + (mOccupied != null ? mOccupied.size() / 8 : 0);
+  }
+
+  /**
+   * Returns the first position in a region whose MIN_BIN_WIDTH bin contains
+   * reads.
+   *
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @return the position or -1 if no bin in the region contains reads.
+   */
+  public int getOccupiedStart(int start, int end) {
+    if (mOccupied == null) {
+      return start <= end ? start : -1;
+    }
+
+    int b = mOccupied.nextSetBit(start / ReadCountsFileBinTree.MIN_BIN_WIDTH);
+
+    if (b == -1 || b > end / ReadCountsFileBinTree.MIN_BIN_WIDTH) {
+      return -1;
+    }
+
+    return Math.max(start, b * ReadCountsFileBinTree.MIN_BIN_WIDTH);
+  }
+
+  /**
+   * Returns the last position in a region whose MIN_BIN_WIDTH bin contains
+   * reads.
+   *
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @return the position or -1 if no bin in the region contains reads.
+   */
+  public int getOccupiedEnd(int start, int end) {
+    if (mOccupied == null) {
+      return start <= end ? end : -1;
+    }
+
+    int b = 
+        mOccupied.previousSetBit(end / ReadCountsFileBinTree.MIN_BIN_WIDTH);
+
+    if (b == -1 || b < start / ReadCountsFileBinTree.MIN_BIN_WIDTH) {
+      return -1;
+    }
+
+    return (int) Math.min(end,
+        (b + 1L) * ReadCountsFileBinTree.MIN_BIN_WIDTH - 1);
+  }
+
+  /**
+   * Returns true if no MIN_BIN_WIDTH bin in a region contains reads.
+   *
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @return true if the region is empty.
+   */
+  public boolean isEmpty(int start, int end) {
+    return getOccupiedStart(start, end) == -1;
+  }
+
+  /**
+   * Returns the closest block of reads to a given position. This gives the
+   * same block as scanning the tree in the file with
+   * {@link ReadCountsFileBinTree#getDataOffset(java.io.RandomAccessFile,
+   * int, int, int)} but does not touch the file.
+   *
+   * @param p a one based genomic position in the chromosome.
+   * @param window the window
+   * @return the block
+   */
+  public Block getDataOffset(int p, int window) {
+    if (mSize == 0) {
+      return emptyBlock();
+    }
+
+    return descend(0, 0, p, window);
+  }
+
+  /**
+   * Returns the closest blocks to the start and end of a region. Both ends
+   * are located in a single descent of the tree: while they fall into the
+   * same bin they share the path from the root and only once they diverge
+   * are the remaining levels searched separately. If both ends land in the
+   * same block, that block is only looked up once.
+   *
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @param window the window
+   * @return the blocks
+   */
+  public BlockRange getDataOffsets(int start, int end, int window) {
+    if (mSize == 0) {
+      Block b = emptyBlock();
+
+      return new BlockRange(b, b);
+    }
+
+    int group = 0;
+
+    int level = 0;
+
+    int binSize = ReadCountsFileBinTree.MAX_BIN_WIDTH;
+
+    int positionBin;
+
+    while ((positionBin = start / binSize) == end / binSize) {
+      // Both ends are in the same bin on this level so one search will do
+      int runEnd = runEnd(group);
+
+      int i = lowerBound(group, runEnd, positionBin);
+
+      if (i == runEnd || mBins[i] > positionBin || binSize == window
+          || mChildOffsets[i] == -1) {
+        Block b = block(Math.min(i, mSize - 1), level, binSize);
+
+        return new BlockRange(b, b);
+      }
+
+      ++level;
+
+      binSize = ReadCountsFileBinTree.BIN_WIDTHS[level];
+
+      group += mChildOffsets[i];
+    }
+
+    return new BlockRange(descend(group, level, start, window),
+        descend(group, level, end, window));
+  }
+
+  /**
+   * Search for the closest block to a position starting from a given group
+   * in the tree.
+   *
+   * @param group the index of the first node of the group.
+   * @param level the level of the group.
+   * @param p the position.
+   * @param window the window
+   * @return the block
+   */
+  private Block descend(int group, int level, int p, int window) {
+    int binSize = ReadCountsFileBinTree.BIN_WIDTHS[level];
+
+    int positionBin = p / binSize;
+
+    int i;
+
+    while (true) {
+      int runEnd = runEnd(group);
+
+      // First node in the group that the position is not after
+      i = lowerBound(group, runEnd, positionBin);
+
+      if (i == runEnd) {
+        // We ran into a node on a different level so use it as the
+        // closest block, unless we are at the end of the tree.
+        i = Math.min(i, mSize - 1);
+        break;
+      }
+
+      if (mBins[i] > positionBin) {
+        break;
+      }
+
+      // We have landed in a bin
+
+      if (binSize == window) {
+        break;
+      }
+
+      if (mChildOffsets[i] == -1) {
+        break;
+      }
+
+      ++level;
+
+      binSize = ReadCountsFileBinTree.BIN_WIDTHS[level];
+
+      positionBin = p / binSize;
+
+      group += mChildOffsets[i];
+    }
+
+    return block(i, level, binSize);
+  }
+
+  /**
+   * Returns a block containing no reads for use when the tree is empty.
+   *
+   * @return the block
+   */
+  private static Block emptyBlock() {
+    return new Block(-1, -1, 0, ReadCountsFileBinTree.MAX_BIN_WIDTH, 0, -1);
+  }
+
+  /**
+   * Create a block from a node.
+   *
+   * @param i the node index
+   * @param level the level
+   * @param binSize the bin size
+   * @return the block
+   */
+  private Block block(int i, int level, int binSize) {
+    return new Block(mBins[i],
+        mStarts[i],
+        level,
+        binSize,
+        mStartOffsets[i],
+        mEndOffsets[i]);
+  }
+
+  /**
+   * Returns the index of the first node after the run of equal width nodes
+   * containing node i.
+   *
+   * @param i the node index
+   * @return the index after the end of the run
+   */
+  private int runEnd(int i) {
+    int l = 0;
+    int h = mRunStarts.length;
+
+    // first run starting after i
+    while (l < h) {
+      int m = (l + h) >>> 1;
+
+      if (mRunStarts[m] <= i) {
+        l = m + 1;
+      } else {
+        h = m;
+      }
+    }
+
+    return l < mRunStarts.length ? mRunStarts[l] : mSize;
+  }
+
+  /**
+   * Returns the index of the first node in [from, to) whose bin is not less
+   * than bin, or to if there is none.
+   *
+   * @param from the from
+   * @param to the to
+   * @param bin the bin
+   * @return the index
+   */
+  private int lowerBound(int from, int to, int bin) {
+    int l = from;
+    int h = to;
+
+    while (l < h) {
+      int m = (l + h) >>> 1;
+
+      if (mBins[m] < bin) {
+        l = m + 1;
+      } else {
+        h = m;
+      }
+    }
+
+    return l;
+  }
+
+  /**
+   * Parse the tree section of a version 1 file.
+   *
+   * @param in a buffer containing the tree, from the first node to the end
+   *          of the last.
+   * @return the bin tree index
+   */
+  public static BinTreeIndex parse(ByteBuffer in) {
+    return parse(in, ReadCountsFileBin.VERSION_1);
+  }
+
+  /**
+   * Parse the tree section of a file. Version 2 nodes store their read
+   * offsets as longs rather than ints.
+   *
+   * @param in a buffer containing the tree, from the first node to the end
+   *          of the last.
+   * @param version the file format version.
+   * @return the bin tree index
+   */
+  public static BinTreeIndex parse(ByteBuffer in, int version) {
+    boolean longOffsets = version >= ReadCountsFileBin.VERSION_2;
+
+    int blockSize = ReadCountsFileBinTree.getBlockSizeBytes(version);
+
+    int n = in.remaining() / blockSize;
+
+    int[] bins = new int[n];
+    int[] starts = new int[n];
+    long[] startOffsets = new long[n];
+    long[] endOffsets = new long[n];
+    int[] childOffsets = new int[n];
+
+    int[] runStarts = new int[ReadCountsFileBinTree.BIN_WIDTHS.length];
+    int[] runWidths = new int[runStarts.length];
+    int runs = 0;
+
+    int lastWidth = -1;
+
+    BitSet occupied = new BitSet();
+
+    boolean leaves = false;
+
+    for (int i = 0; i < n; ++i) {
+      bins[i] = in.getInt();
+      starts[i] = in.getInt();
+
+      int width = in.getInt();
+
+      if (longOffsets) {
+        startOffsets[i] = in.getLong();
+        endOffsets[i] = in.getLong();
+      } else {
+        startOffsets[i] = in.getInt();
+        endOffsets[i] = in.getInt();
+      }
+
+      int gso = in.getInt();
+
+      childOffsets[i] = gso == -1 ? -1 : gso / blockSize;
+
+      if (gso == -1) {
+        // Leaves can be wider than MIN_BIN_WIDTH so mark every bin they span
+        int scale = width / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+        occupied.set(bins[i] * scale, (bins[i] + 1) * scale);
+
+        leaves = true;
+      }
+
+      if (width != lastWidth) {
+        if (runs == runStarts.length) {
+          runStarts = Arrays.copyOf(runStarts, runs * 2);
+          runWidths = Arrays.copyOf(runWidths, runs * 2);
+        }
+
+        runStarts[runs] = i;
+        runWidths[runs++] = width;
+
+        lastWidth = width;
+      }
+    }
+
+    return new BinTreeIndex(bins,
+        starts,
+        startOffsets,
+        endOffsets,
+        childOffsets,
+        Arrays.copyOf(runStarts, runs),
+        Arrays.copyOf(runWidths, runs),
+        n > 0 && !leaves ? null : occupied);
+  }
+}
@@ -0,0 +1,678 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes the reads of one chromosome to a bin tree file that can be read
+ * by {@link ReadCountsFileBRT2}, or by {@link ReadCountsFileBVT} if each
+ * read has a value. Reads must be added in order of start.
+ *
+ * The tree and the multi resolution counts are built as reads are added
+ * whilst the reads themselves are streamed to a temporary file next to the
+ * output, so memory use depends on the length of the chromosome rather
+ * than the number of reads. When the writer is closed the header, tree and
+ * counts are written and the reads are appended.
+ *
+ * Optionally a summary of each node of the tree is appended after the
+ * reads, creating a version 3 file. For BVT files a node summarizes the
+ * values of its reads. BRT2 reads have no value, so a node summarizes the
+ * read counts of every MIN_BIN_WIDTH bin beneath it instead, with bins
+ * without reads counted as 0.
+ */
+public class BinTreeWriter implements Closeable {
+
+  /** The number of levels in the tree. */
+  private static final int LEVELS = ReadCountsFileBinTree.BIN_WIDTHS.length;
+
+  /** The file. */
+  private final Path mFile;
+
+  /** The reads, written as they are added. */
+  private final Path mTmpFile;
+
+  /** The reads stream. */
+  private final DataOutputStream mReadsOut;
+
+  /** The genome field of the header. */
+  private final byte[] mGenome;
+
+  /** The read length. */
+  private final int mReadLength;
+
+  /** True if each read has a value, i.e. a BVT file. */
+  private final boolean mValues;
+
+  /** The format version. */
+  private int mVersion = ReadCountsFileBin.VERSION_1;
+
+  /** Whether a summary of each node is written. */
+  private boolean mSummary = false;
+
+  /** The read count of each bin on each level. */
+  private int[] mCounts;
+
+  /** The sum of the read values of each bin on each level. */
+  private float[] mSums;
+
+  /** The nodes of each level. */
+  private final Level[] mLevels = new Level[LEVELS];
+
+  /** The m reads. */
+  private long mReads = 0;
+
+  /** The start of the last read added. */
+  private int mLastStart = Integer.MIN_VALUE;
+
+  /** Whether the writer has been closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Create a writer for a BRT2 file.
+   *
+   * @param file the file
+   * @param genome the genome, e.g. hg19.
+   * @param readLength the read length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinTreeWriter(Path file, String genome, int readLength)
+      throws IOException {
+    this(file, genome, readLength, false);
+  }
+
+  /**
+   * Create a writer for a BRT2 file or, if reads have values, a BVT file.
+   *
+   * @param file the file
+   * @param genome the genome, e.g. hg19.
+   * @param readLength the read length
+   * @param values true if each read has a value.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinTreeWriter(Path file,
+      String genome,
+      int readLength,
+      boolean values) throws IOException {
+    mFile = file;
+    mReadLength = readLength;
+    mValues = values;
+
+    // Null padded and truncated to fit the header
+    mGenome = Arrays.copyOf(genome.getBytes(StandardCharsets.UTF_8),
+        ReadCountsFileBin.GENOME.length);
+
+    if (values) {
+      mSums = new float[ReadCountsFileBinTree.TOTAL_BINS];
+    } else {
+      mCounts = new int[ReadCountsFileBinTree.TOTAL_BINS];
+    }
+
+    for (int l = 0; l < LEVELS; ++l) {
+      mLevels[l] = new Level(false);
+    }
+
+    Path dir = file.toAbsolutePath().getParent();
+
+    mTmpFile =
+        Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+    mReadsOut = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(mTmpFile), 1 << 16));
+  }
+
+  /**
+   * Sets the format version. Version 2 is used regardless if the
+   * chromosome has more reads than a version 1 tree can index.
+   *
+   * @param version the version
+   * @return the writer
+   */
+  public BinTreeWriter setVersion(int version) {
+    mVersion = version;
+
+    return this;
+  }
+
+  /**
+   * Sets whether a summary of each node of the tree is written so that
+   * readers can combine reads in any {@link BCMode} without decoding them.
+   * Summaries require version 3, which overrides the version set with
+   * {@link #setVersion(int)}. This must be set before reads are added.
+   *
+   * @param summary true to write the summaries.
+   * @return the writer
+   */
+  public BinTreeWriter setSummary(boolean summary) {
+    mSummary = summary;
+
+    for (int l = 0; l < LEVELS; ++l) {
+      mLevels[l] = new Level(summary);
+    }
+
+    return this;
+  }
+
+  /**
+   * Returns the number of reads added.
+   *
+   * @return the reads
+   */
+  public long getReads() {
+    return mReads;
+  }
+
+  /**
+   * Add a read to a BRT2 file.
+   *
+   * @param start the one based start of the read.
+   * @param flags the flags, e.g. {@link StrandedStarts#FLAG_STRAND_MASK}.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(int start, byte flags) throws IOException {
+    add(start, 1, flags);
+  }
+
+  /**
+   * Add a read. The value is ignored unless the writer was created for a
+   * BVT file.
+   *
+   * @param start the one based start of the read.
+   * @param value the value
+   * @param flags the flags
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(int start, float value, byte flags) throws IOException {
+    if (start < mLastStart) {
+      throw new IOException("Reads are not sorted by start.");
+    }
+
+    if (start < 0 || start / ReadCountsFileBinTree.MIN_BIN_WIDTH
+        >= ReadCountsFileBinTree.BIN_COUNTS[LEVELS - 1]) {
+      throw new IOException(start + " is outside the tree.");
+    }
+
+    mLastStart = start;
+
+    for (int l = 0; l < LEVELS; ++l) {
+      int b = start / ReadCountsFileBinTree.BIN_WIDTHS[l];
+
+      mLevels[l].add(b, mReads);
+
+      int i = ReadCountsFileBinTree.CUM_BIN_COUNTS[l] + b;
+
+      if (mValues) {
+        mSums[i] += value;
+      } else {
+        ++mCounts[i];
+      }
+    }
+
+    if (mSummary && mValues) {
+      mLevels[LEVELS - 1].value(value);
+    }
+
+    mReadsOut.writeInt(start);
+
+    if (mValues) {
+      mReadsOut.writeFloat(value);
+    }
+
+    mReadsOut.writeByte(flags);
+
+    ++mReads;
+  }
+
+  /**
+   * Write the file. A chromosome without reads has no tree so no file is
+   * written.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+
+    mClosed = true;
+
+    try {
+      mReadsOut.close();
+
+      if (mReads > 0) {
+        write();
+      }
+    } finally {
+      Files.deleteIfExists(mTmpFile);
+    }
+  }
+
+  /**
+   * Close the writer without writing the file, for example if reading the
+   * reads failed part way through.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void discard() throws IOException {
+    if (mClosed) {
+      return;
+    }
+
+    mClosed = true;
+
+    try {
+      mReadsOut.close();
+    } finally {
+      Files.deleteIfExists(mTmpFile);
+    }
+  }
+
+  /**
+   * Write the header, tree and multi resolution counts, then append the
+   * reads and, if required, the summaries. Each level of the tree is stored
+   * as groups of nodes with the same parent. Each node points to the group
+   * of its children relative to the start of its own group.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void write() throws IOException {
+    int version;
+
+    if (mSummary) {
+      version = ReadCountsFileBin.VERSION_3;
+    } else if (mReads - 1 > Integer.MAX_VALUE) {
+      version = ReadCountsFileBin.VERSION_2;
+    } else {
+      version = mVersion;
+    }
+
+    boolean v2 = version >= ReadCountsFileBin.VERSION_2;
+
+    int blockSize = ReadCountsFileBinTree.getBlockSizeBytes(version);
+
+    int[] levelStart = new int[LEVELS];
+    int total = 0;
+
+    for (int l = 0; l < LEVELS; ++l) {
+      mLevels[l].end(mReads);
+
+      levelStart[l] = total;
+      total += mLevels[l].mSize;
+    }
+
+    long dataOffset = ReadCountsFileBinTree.getHeaderOffsetBytes(version)
+        + (long) total * blockSize;
+
+    // The summaries follow the reads
+    long summaryOffset = dataOffset + ReadCountsFileBinTree.RAW_OFFSET
+        + Files.size(mTmpFile);
+
+    if (mSummary) {
+      summarize();
+    }
+
+    FileChannel channel = FileChannel.open(mFile,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(channel), 1 << 16));
+
+      if (v2) {
+        out.writeInt(mSummary ? ReadCountsFileBin.VERSION_3_MARKER
+            : ReadCountsFileBin.VERSION_2_MARKER);
+        out.writeInt(mReadLength);
+        out.writeLong(dataOffset);
+      } else {
+        out.writeInt(mReadLength);
+        out.writeInt((int) dataOffset);
+      }
+
+      out.write(mGenome);
+
+      if (mSummary) {
+        out.writeLong(summaryOffset);
+      }
+
+      for (int l = 0; l < LEVELS; ++l) {
+        Level level = mLevels[l];
+
+        int width = ReadCountsFileBinTree.BIN_WIDTHS[l];
+
+        // Index of the first node of the current group and of the group of
+        // children of the current node.
+        int group = 0;
+        int child = 0;
+
+        for (int k = 0; k < level.mSize; ++k) {
+          int bin = level.mBins[k];
+
+          // Nodes with the same parent form a group
+          if (l > 0 && parent(bin) != parent(level.mBins[group])) {
+            group = k;
+          }
+
+          int gso = -1;
+
+          if (l < LEVELS - 1) {
+            Level children = mLevels[l + 1];
+
+            while (parent(children.mBins[child]) < bin) {
+              ++child;
+            }
+
+            gso = (levelStart[l + 1] + child - levelStart[l] - group)
+                * blockSize;
+          }
+
+          out.writeInt(bin);
+          out.writeInt(bin * width);
+          out.writeInt(width);
+
+          if (v2) {
+            out.writeLong(level.mFirst[k]);
+            out.writeLong(level.mLast[k]);
+          } else {
+            out.writeInt((int) level.mFirst[k]);
+            out.writeInt((int) level.mLast[k]);
+          }
+
+          out.writeInt(gso);
+        }
+      }
+
+      for (int i = 0; i < ReadCountsFileBinTree.TOTAL_BINS; ++i) {
+        if (mValues) {
+          out.writeFloat(mSums[i]);
+        } else {
+          out.writeInt(mCounts[i]);
+        }
+      }
+
+      out.flush();
+
+      FileChannel in = FileChannel.open(mTmpFile, StandardOpenOption.READ);
+
+      try {
+        long size = in.size();
+        long p = 0;
+
+        while (p < size) {
+          p += in.transferTo(p, size - p, channel);
+        }
+      } finally {
+        in.close();
+      }
+
+      if (mSummary) {
+        // In the same order as the nodes
+        for (Level level : mLevels) {
+          for (int k = 0; k < level.mSize; ++k) {
+            out.writeLong(level.mCounts[k]);
+            out.writeDouble(level.mSums[k]);
+            out.writeDouble(level.mSumSquares[k]);
+            out.writeFloat(level.mMins[k]);
+            out.writeFloat(level.mMaxs[k]);
+          }
+        }
+
+        out.flush();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Summarize each node of the tree. Leaves are summarized first and each
+   * parent then combines the summaries of its children.
+   */
+  private void summarize() {
+    Level leaves = mLevels[LEVELS - 1];
+
+    if (!mValues) {
+      // Summarize the read count of each leaf as a single value
+      for (int k = 0; k < leaves.mSize; ++k) {
+        float c = leaves.mLast[k] - leaves.mFirst[k] + 1;
+
+        leaves.mCounts[k] = 1;
+        leaves.mSums[k] = c;
+        leaves.mSumSquares[k] = (double) c * c;
+        leaves.mMins[k] = c;
+        leaves.mMaxs[k] = c;
+      }
+    }
+
+    for (int l = LEVELS - 2; l >= 0; --l) {
+      Level level = mLevels[l];
+      Level children = mLevels[l + 1];
+
+      int child = 0;
+
+      // The MIN_BIN_WIDTH bins beneath each node
+      long bins = ReadCountsFileBinTree.BIN_WIDTHS[l]
+          / ReadCountsFileBinTree.MIN_BIN_WIDTH;
+
+      for (int k = 0; k < level.mSize; ++k) {
+        int bin = level.mBins[k];
+
+        while (child < children.mSize
+            && parent(children.mBins[child]) == bin) {
+          level.combine(k, children, child++);
+        }
+
+        if (!mValues && level.mCounts[k] < bins) {
+          // Bins without reads have no node but are part of the mean
+          level.mCounts[k] = bins;
+          level.mMins[k] = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the bin of the parent of a tree node.
+   *
+   * @param bin the bin of the node
+   * @return the parent bin
+   */
+  private static int parent(int bin) {
+    return bin / ReadCountsFileBinTree.BIN_DIVISIONS;
+  }
+
+  /**
+   * The nodes of one level of the tree. Each node is a bin containing at
+   * least one read and the indices of its first and last reads, plus
+   * optionally a summary of the node.
+   */
+  private static class Level {
+
+    /** The bins. */
+    private int[] mBins = new int[16];
+
+    /** The index of the first read in each bin. */
+    private long[] mFirst = new long[16];
+
+    /** The index of the last read in each bin. */
+    private long[] mLast = new long[16];
+
+    /** The number of values summarized by each node or null. */
+    private long[] mCounts = null;
+
+    /** The sum of the values of each node. */
+    private double[] mSums;
+
+    /** The sum of the squares of the values of each node. */
+    private double[] mSumSquares;
+
+    /** The smallest value of each node. */
+    private float[] mMins;
+
+    /** The largest value of each node. */
+    private float[] mMaxs;
+
+    /** The number of finished nodes. */
+    private int mSize = 0;
+
+    /** The bin of the node being added to or -1. */
+    private int mBin = -1;
+
+    /** The index of the first read of the node being added to. */
+    private long mStart;
+
+    /** The number of values added to the node being added to. */
+    private long mNodeCount;
+
+    /** The sum of the values added to the node being added to. */
+    private double mNodeSum;
+
+    /** The sum of the squares of the values added to the node. */
+    private double mNodeSumSquares;
+
+    /** The smallest value added to the node being added to. */
+    private float mNodeMin;
+
+    /** The largest value added to the node being added to. */
+    private float mNodeMax;
+
+    /**
+     * Instantiates a new level.
+     *
+     * @param summary true if the nodes are summarized.
+     */
+    public Level(boolean summary) {
+      if (summary) {
+        mCounts = new long[16];
+        mSums = new double[16];
+        mSumSquares = new double[16];
+        mMins = new float[16];
+        mMaxs = new float[16];
+      }
+    }
+
+    /**
+     * Add a read, finishing the current node if the read is in a new bin.
+     *
+     * @param bin the bin of the read.
+     * @param read the index of the read.
+     */
+    public void add(int bin, long read) {
+      if (bin != mBin) {
+        end(read);
+
+        mBin = bin;
+        mStart = read;
+
+        mNodeCount = 0;
+        mNodeSum = 0;
+        mNodeSumSquares = 0;
+      }
+    }
+
+    /**
+     * Add a value to the summary of the node being added to.
+     *
+     * @param value the value
+     */
+    public void value(float value) {
+      if (mNodeCount == 0) {
+        mNodeMin = value;
+        mNodeMax = value;
+      } else {
+        mNodeMin = Math.min(mNodeMin, value);
+        mNodeMax = Math.max(mNodeMax, value);
+      }
+
+      ++mNodeCount;
+      mNodeSum += value;
+      mNodeSumSquares += (double) value * value;
+    }
+
+    /**
+     * Add the summary of a node on another level to the summary of a node.
+     *
+     * @param k the node
+     * @param level the other level
+     * @param j the node on the other level
+     */
+    public void combine(int k, Level level, int j) {
+      if (mCounts[k] == 0) {
+        mMins[k] = level.mMins[j];
+        mMaxs[k] = level.mMaxs[j];
+      } else {
+        mMins[k] = Math.min(mMins[k], level.mMins[j]);
+        mMaxs[k] = Math.max(mMaxs[k], level.mMaxs[j]);
+      }
+
+      mCounts[k] += level.mCounts[j];
+      mSums[k] += level.mSums[j];
+      mSumSquares[k] += level.mSumSquares[j];
+    }
+
+    /**
+     * Finish the current node.
+     *
+     * @param read the index of the read after its last read.
+     */
+    public void end(long read) {
+      if (mBin == -1) {
+        return;
+      }
+
+      if (mSize == mBins.length) {
+        mBins = Arrays.copyOf(mBins, mSize * 2);
+        mFirst = Arrays.copyOf(mFirst, mSize * 2);
+        mLast = Arrays.copyOf(mLast, mSize * 2);
+
+        if (mCounts != null) {
+          mCounts = Arrays.copyOf(mCounts, mSize * 2);
+          mSums = Arrays.copyOf(mSums, mSize * 2);
+          mSumSquares = Arrays.copyOf(mSumSquares, mSize * 2);
+          mMins = Arrays.copyOf(mMins, mSize * 2);
+          mMaxs = Arrays.copyOf(mMaxs, mSize * 2);
+        }
+      }
+
+      mBins[mSize] = mBin;
+      mFirst[mSize] = mStart;
+      mLast[mSize] = read - 1;
+
+      if (mCounts != null) {
+        mCounts[mSize] = mNodeCount;
+        mSums[mSize] = mNodeSum;
+        mSumSquares[mSize] = mNodeSumSquares;
+        mMins[mSize] = mNodeMin;
+        mMaxs[mSize] = mNodeMax;
+      }
+      ++mSize;
+
+      mBin = -1;
+    }
+  }
+}
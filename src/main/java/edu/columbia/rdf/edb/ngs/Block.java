@@ -51,7 +51,12 @@ public class Block extends Offsets implements Comparable<Block> {
    * @param so the so
    * @param eo the eo
    */
-  public Block(int bin, int start, int level, int width, int so, int eo) {
+  public Block(int bin,
+      int start,
+      int level,
+      int width,
+      long so,
+      long eo) {
     super(so, eo);
 
     this.bin = bin;
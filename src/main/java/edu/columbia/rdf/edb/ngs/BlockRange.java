@@ -0,0 +1,40 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+/**
+ * The blocks closest to the start and end of a region. When both ends of the
+ * region fall in the same block the two fields refer to the same object.
+ */
+public class BlockRange {
+
+  /** The block containing the start of the region. */
+  public final Block startBlock;
+
+  /** The block containing the end of the region. */
+  public final Block endBlock;
+
+  /**
+   * Instantiates a new block range.
+   *
+   * @param startBlock the start block
+   * @param endBlock the end block
+   */
+  public BlockRange(Block startBlock, Block endBlock) {
+    this.startBlock = startBlock;
+    this.endBlock = endBlock;
+  }
+}
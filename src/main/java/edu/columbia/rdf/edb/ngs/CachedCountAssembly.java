@@ -0,0 +1,625 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+/**
+ * Wraps a count assembly so that the results of getCounts and getValues are
+ * kept in a {@link RegionCache}. Results are cached as tiles of
+ * {@link #DEFAULT_TILE_BINS} bins aligned to multiples of the tile size, so
+ * a query that overlaps tiles read by earlier queries only goes to the file
+ * for the tiles it is missing. Missing tiles next to each other are read
+ * together.
+ *
+ * Tiles assume bin i covers bases i * window to (i + 1) * window - 1 as it
+ * does in the bin tree and BC formats. The number of bins of a query is
+ * taken from {@link CountAssembly#getBinCount(GenomicRegion, int)} of the
+ * wrapped assembly. First and last bins that only partly overlap the region
+ * are read from the wrapped assembly rather than from the tiles so that they
+ * are clipped to the region exactly as they would be without the cache.
+ */
+public class CachedCountAssembly extends CountAssembly {
+
+  /** The default number of bins in a tile. */
+  public static final int DEFAULT_TILE_BINS = 1024;
+
+  /** The assembly. */
+  private final CountAssembly mAssembly;
+
+  /** The cache. */
+  private final RegionCache mCache;
+
+  /** The tile bins. */
+  private final int mTileBins;
+
+  /**
+   * Wrap an assembly with its own cache.
+   *
+   * @param assembly the assembly
+   */
+  public CachedCountAssembly(CountAssembly assembly) {
+    this(assembly, new RegionCache());
+  }
+
+  /**
+   * Wrap an assembly using a cache that may be shared with other assemblies.
+   *
+   * @param assembly the assembly
+   * @param cache the cache
+   */
+  public CachedCountAssembly(CountAssembly assembly, RegionCache cache) {
+    this(assembly, cache, DEFAULT_TILE_BINS);
+  }
+
+  /**
+   * Wrap an assembly using a cache that may be shared with other assemblies.
+   *
+   * @param assembly the assembly
+   * @param cache the cache
+   * @param tileBins the number of bins in a tile.
+   */
+  public CachedCountAssembly(CountAssembly assembly,
+      RegionCache cache,
+      int tileBins) {
+    mAssembly = assembly;
+    mCache = cache;
+    mTileBins = Math.max(1, tileBins);
+  }
+
+  /**
+   * Gets the wrapped assembly.
+   *
+   * @return the assembly
+   */
+  public CountAssembly getAssembly() {
+    return mAssembly;
+  }
+
+  /**
+   * Gets the cache.
+   *
+   * @return the cache
+   */
+  public RegionCache getCache() {
+    return mCache;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getCounts(GenomicRegion region, int window)
+      throws IOException {
+    return (int[]) get(region, window, false);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public double[] getValues(GenomicRegion region, int window)
+      throws IOException {
+    return (double[]) get(region, window, true);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int[] getStarts(GenomicRegion region, int window)
+      throws IOException {
+    if (mAssembly.isThreadSafe()) {
+      return mAssembly.getStarts(region, window);
+    }
+
+    synchronized (mAssembly) {
+      return mAssembly.getStarts(region, window);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#forEachStart(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * java.util.function.IntConsumer)
+   */
+  @Override
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
+    if (mAssembly.isThreadSafe()) {
+      mAssembly.forEachStart(region, window, consumer);
+
+      return;
+    }
+
+    synchronized (mAssembly) {
+      mAssembly.forEachStart(region, window, consumer);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrands(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public Strand[] getStrands(GenomicRegion region, int window)
+      throws IOException {
+    if (mAssembly.isThreadSafe()) {
+      return mAssembly.getStrands(region, window);
+    }
+
+    synchronized (mAssembly) {
+      return mAssembly.getStrands(region, window);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    return mAssembly.getBinCount(region, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSparseCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public SparseCounts getSparseCounts(GenomicRegion region, int window)
+      throws IOException {
+    // Sparse requests are usually too wide to be worth caching
+    if (mAssembly.isThreadSafe()) {
+      return mAssembly.getSparseCounts(region, window);
+    }
+
+    synchronized (mAssembly) {
+      return mAssembly.getSparseCounts(region, window);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#estimateReadCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion)
+   */
+  @Override
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    if (mAssembly.isThreadSafe()) {
+      return mAssembly.estimateReadCount(region);
+    }
+
+    synchronized (mAssembly) {
+      return mAssembly.estimateReadCount(region);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandedStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public StrandedStarts getStrandedStarts(GenomicRegion region, int window)
+      throws IOException {
+    if (mAssembly.isThreadSafe()) {
+      return mAssembly.getStrandedStarts(region, window);
+    }
+
+    synchronized (mAssembly) {
+      return mAssembly.getStrandedStarts(region, window);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    // Readers that are not thread safe are locked whilst they are read
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mCache.invalidate(mAssembly);
+
+    mAssembly.close();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadLength()
+   */
+  @Override
+  public int getReadLength() {
+    return mAssembly.getReadLength();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getReadCount(org.jebtk.
+   * bioinformatics.genomic.Genome, int)
+   */
+  @Override
+  public int getReadCount(Genome genome, int window) throws IOException {
+    return mAssembly.getReadCount(genome, window);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getGenome()
+   */
+  @Override
+  public Genome getGenome() throws IOException {
+    return mAssembly.getGenome();
+  }
+
+  /**
+   * Assemble the bins of a region from cached tiles, reading any tiles
+   * that are not cached.
+   *
+   * @param region the region
+   * @param window the window
+   * @param values true to read values, false to read counts.
+   * @return the bins, an int[] or double[].
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Object get(GenomicRegion region, int window, boolean values)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    int n = mAssembly.getBinCount(region, window);
+
+    if (n < 3) {
+      // Every bin may be an edge bin so there is nothing to gain from the
+      // tiles
+      return read(region, window, values);
+    }
+
+    int startBin = start / window;
+    int endBin = startBin + n - 1;
+
+    Object ret = values ? new double[n] : new int[n];
+
+    int t1 = startBin / mTileBins;
+    int t2 = endBin / mTileBins;
+
+    Object[] tiles = new Object[t2 - t1 + 1];
+
+    Object mode = mode();
+
+    List<Integer> missing = new ArrayList<Integer>();
+
+    for (int t = t1; t <= t2; ++t) {
+      tiles[t - t1] =
+          mCache.get(new RegionCache.Tile(mAssembly,
+              chr,
+              window,
+              t,
+              values,
+              mode));
+
+      if (tiles[t - t1] == null) {
+        missing.add(t);
+      }
+    }
+
+    if (missing.size() > 0) {
+      read(chr, window, values, mode, missing, tiles, t1);
+    }
+
+    for (int t = t1; t <= t2; ++t) {
+      long tileBin = (long) t * mTileBins;
+
+      // The tile may start after its first bin if it begins at base 0
+      int first = Math.max(startBin, (int) tileBin);
+      int last = (int) Math.min(endBin, tileBin + mTileBins - 1);
+
+      Object tile = tiles[t - t1];
+
+      int from = first - tileStartBin(t, window);
+
+      int l = Math.min(last - first + 1, length(tile) - from);
+
+      if (from >= 0 && l > 0) {
+        System.arraycopy(tile, from, ret, first - startBin, l);
+      }
+    }
+
+    // Edge bins extending past the region
+    if (start > Math.max(1L, (long) startBin * window)) {
+      copyFirst(read(new GenomicRegion(chr,
+          start,
+          (int) Math.min(end, (startBin + 1L) * window - 1)), window, values),
+          ret,
+          0);
+    }
+
+    if ((endBin + 1L) * window - 1 > end) {
+      copyFirst(read(new GenomicRegion(chr,
+          (int) Math.max(start, (long) endBin * window),
+          end), window, values), ret, n - 1);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read tiles that are not in the cache and add them to it. Runs of
+   * neighbouring tiles are read as one region.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @param values true to read values, false to read counts.
+   * @param mode the mode the tiles are keyed by.
+   * @param missing the indices of the missing tiles in ascending order.
+   * @param tiles the tiles being assembled.
+   * @param t1 the index of the first tile in tiles.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void read(Chromosome chr,
+      int window,
+      boolean values,
+      Object mode,
+      List<Integer> missing,
+      Object[] tiles,
+      int t1) throws IOException {
+    List<GenomicRegion> runs = new ArrayList<GenomicRegion>();
+    List<int[]> runTiles = new ArrayList<int[]>();
+
+    int i = 0;
+
+    while (i < missing.size()) {
+      int j = i;
+
+      while (j + 1 < missing.size()
+          && missing.get(j + 1) == missing.get(j) + 1) {
+        ++j;
+      }
+
+      int ta = missing.get(i);
+      int tb = missing.get(j);
+
+      // Ask for one base more than the tiles cover since some assemblies,
+      // such as BC, leave out the bin containing the end. Extra bins are
+      // ignored.
+      long end = ((long) tb + 1) * mTileBins * window;
+
+      runs.add(new GenomicRegion(chr,
+          tileStart(ta, window),
+          (int) Math.min(Integer.MAX_VALUE, end)));
+
+      runTiles.add(new int[] { ta, tb });
+
+      i = j + 1;
+    }
+
+    List<?> data;
+
+    if (mAssembly.isThreadSafe()) {
+      data = read(runs, window, values);
+    } else {
+      synchronized (mAssembly) {
+        data = read(runs, window, values);
+      }
+    }
+
+    // Bins read after the mode changed must not be cached under the old one
+    boolean cache = mode == mode();
+
+    for (int r = 0; r < runs.size(); ++r) {
+      Object run = data.get(r);
+
+      int ta = runTiles.get(r)[0];
+      int tb = runTiles.get(r)[1];
+
+      int runStartBin = tileStartBin(ta, window);
+
+      for (int t = ta; t <= tb; ++t) {
+        int from = Math.min(length(run), tileStartBin(t, window) - runStartBin);
+        int to = Math.min(length(run),
+            (int) Math.min(Integer.MAX_VALUE,
+                ((long) t + 1) * mTileBins - runStartBin));
+
+        Object tile = values ? new double[to - from] : new int[to - from];
+
+        System.arraycopy(run, from, tile, 0, to - from);
+
+        // A short tile is used for this query but not cached, so that it
+        // cannot hide bins from later queries
+        if (cache && to - from == tileBins(t, window)) {
+          mCache.put(new RegionCache.Tile(mAssembly,
+              chr,
+              window,
+              t,
+              values,
+              mode), tile);
+        }
+
+        tiles[t - t1] = tile;
+      }
+    }
+  }
+
+  /**
+   * Read a region from the wrapped assembly.
+   *
+   * @param region the region
+   * @param window the window
+   * @param values true to read values, false to read counts.
+   * @return the counts or values, an int[] or double[].
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Object read(GenomicRegion region, int window, boolean values)
+      throws IOException {
+    List<GenomicRegion> regions = Collections.singletonList(region);
+
+    if (mAssembly.isThreadSafe()) {
+      return read(regions, window, values).get(0);
+    }
+
+    synchronized (mAssembly) {
+      return read(regions, window, values).get(0);
+    }
+  }
+
+  /**
+   * Read regions from the wrapped assembly.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @param values true to read values, false to read counts.
+   * @return the counts or values of each region.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private List<?> read(List<GenomicRegion> regions,
+      int window,
+      boolean values) throws IOException {
+    if (!values) {
+      return mAssembly.getCounts(regions, window);
+    }
+
+    List<double[]> ret = new ArrayList<double[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      ret.add(mAssembly.getValues(region, window));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the first base of a tile. Tile 0 starts at base 1 rather than
+   * 0 since coordinates are 1 based.
+   *
+   * @param t the tile
+   * @param window the window
+   * @return the start
+   */
+  private int tileStart(int t, int window) {
+    return (int) Math.max(1,
+        Math.min(Integer.MAX_VALUE, (long) t * mTileBins * window));
+  }
+
+  /**
+   * Returns how the wrapped assembly combines reads into bins, so that tiles
+   * read in one mode are not served in another.
+   *
+   * @return the mode or null if the assembly has no mode.
+   */
+  private Object mode() {
+    if (mAssembly instanceof ReadCountsFileBinTree) {
+      return ((ReadCountsFileBinTree) mAssembly).getMode();
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the bin of the first base of a tile.
+   *
+   * @param t the tile
+   * @param window the window
+   * @return the bin
+   */
+  private int tileStartBin(int t, int window) {
+    return tileStart(t, window) / window;
+  }
+
+  /**
+   * Returns the number of bins in a complete tile. Tile 0 may be one bin
+   * short since there is no base 0.
+   *
+   * @param t the tile
+   * @param window the window
+   * @return the number of bins
+   */
+  private int tileBins(int t, int window) {
+    return (int) Math.min(Integer.MAX_VALUE, ((long) t + 1) * mTileBins)
+        - tileStartBin(t, window);
+  }
+
+  /**
+   * Copy the first element, if any, of an int[] or double[] into another.
+   *
+   * @param data the data
+   * @param ret the array to copy to.
+   * @param i the index in ret to copy to.
+   */
+  private static void copyFirst(Object data, Object ret, int i) {
+    if (length(data) > 0) {
+      System.arraycopy(data, 0, ret, i, 1);
+    }
+  }
+
+  /**
+   * Returns the length of an int[] or double[].
+   *
+   * @param data the data
+   * @return the length
+   */
+  private static int length(Object data) {
+    if (data instanceof int[]) {
+      return ((int[]) data).length;
+    } else {
+      return ((double[]) data).length;
+    }
+  }
+}
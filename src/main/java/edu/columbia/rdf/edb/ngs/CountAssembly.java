@@ -28,6 +28,10 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
 
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
@@ -41,6 +45,13 @@ public abstract class CountAssembly {
 
   public static final Strand[] EMPTY_STRAND_ARRAY = {};
 
+  /**
+   * The largest fraction of non-zero bins at which sparse counts are
+   * preferred. A sparse bin costs two ints, and up to twice that while its
+   * arrays grow, against one int per bin for dense counts.
+   */
+  public static final double SPARSE_DENSITY = 0.25;
+
   /**
    * Gets the starts.
    *
@@ -67,6 +78,27 @@ public abstract class CountAssembly {
     return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
   }
 
+  /**
+   * Passes the start of each read in a region to a consumer in order of
+   * start without collecting the starts into an array, so that scanning a
+   * whole chromosome uses the same memory as scanning a small region. The
+   * default implementation walks the array returned by
+   * {@link #getStarts(GenomicRegion, int)}; implementations that can decode
+   * reads in batches should override it.
+   *
+   * @param region the region
+   * @param window the window
+   * @param consumer the consumer of the starts.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
+    for (int s : getStarts(region, window)) {
+      consumer.accept(s);
+    }
+  }
+
   /**
    * Gets the strands.
    *
@@ -93,6 +125,25 @@ public abstract class CountAssembly {
     return EMPTY_STRAND_ARRAY; //Collections.emptyList();
   }
 
+  /**
+   * Gets the starts and strands of the reads in a region together. This is
+   * equivalent to calling {@link #getStarts(GenomicRegion, int)} and
+   * {@link #getStrands(GenomicRegion, int)} but implementations that store
+   * both in the same record should override it to read the region once.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the stranded starts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public StrandedStarts getStrandedStarts(GenomicRegion region, int window)
+      throws IOException {
+    return new StrandedStarts(region,
+        window,
+        getStarts(region, window),
+        StrandedStarts.toFlags(getStrands(region, window)));
+  }
+
   /**
    * Gets the counts.
    *
@@ -140,6 +191,139 @@ public abstract class CountAssembly {
   public abstract int[] getCounts(GenomicRegion region, int window)
       throws IOException;
 
+  /**
+   * Writes the counts within a region into a caller supplied array so that
+   * one array can be reused across many queries. Bins are written to
+   * counts[offset] onwards, overwriting any existing values. Implementations
+   * that can bin reads directly into the array should override this method.
+   *
+   * @param region the region
+   * @param window the window
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCounts(GenomicRegion region,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+    int[] c = getCounts(region, window);
+
+    System.arraycopy(c, 0, counts, offset, c.length);
+
+    return c.length;
+  }
+
+  /**
+   * Gets the counts for many regions at once. The counts of each region are
+   * returned in the same order as the regions were requested. The default
+   * implementation queries each region in turn; implementations that can
+   * serve nearby regions from a single read of the underlying file should
+   * override this method.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @return the counts of each region.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    List<int[]> ret = new ArrayList<int[]>(regions.size());
+
+    for (GenomicRegion region : regions) {
+      ret.add(getCounts(region, window));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of bins {@link #getCounts(GenomicRegion, int)}
+   * returns for a region, which by default is one for every window from
+   * the bin containing the start to the bin containing the end.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the bin count
+   */
+  public int getBinCount(GenomicRegion region, int window) {
+    return region.getEnd() / window - region.getStart() / window + 1;
+  }
+
+  /**
+   * Gets the read counts within a region storing only the bins that are
+   * not zero. The default implementation compresses the array returned by
+   * {@link #getCounts(GenomicRegion, int)}; implementations that can
+   * stream the reads of a region should override it so the dense array is
+   * never allocated.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the sparse counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public SparseCounts getSparseCounts(GenomicRegion region, int window)
+      throws IOException {
+    return SparseCounts.fromArray(region, window, getCounts(region, window));
+  }
+
+  /**
+   * Returns an estimate of the number of reads starting in a region without
+   * reading them, or -1 if this cannot be done cheaply.
+   *
+   * @param region the region
+   * @return the estimated read count
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    return -1;
+  }
+
+  /**
+   * Returns true if few enough bins of a region are expected to be non-zero
+   * that {@link #getSparseCounts(GenomicRegion, int)} will use less memory
+   * than {@link #getCounts(GenomicRegion, int)}. Each read can fill at most
+   * one bin, so the read estimate bounds the number of non-zero bins.
+   *
+   * @param region the region
+   * @param window the window
+   * @return true if sparse counts should be used.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public boolean isSparse(GenomicRegion region, int window)
+      throws IOException {
+    long reads = estimateReadCount(region);
+
+    if (reads < 0) {
+      return false;
+    }
+
+    long bins = region.getEnd() / window - region.getStart() / window + 1L;
+
+    return reads <= SPARSE_DENSITY * bins;
+  }
+
+  /**
+   * Gets the read counts within a region in whichever form uses less
+   * memory. Sparse counts are returned if {@link #isSparse} expects few
+   * non-zero bins and dense counts otherwise, including when the reads
+   * cannot be estimated.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public RegionCounts getRegionCounts(GenomicRegion region, int window)
+      throws IOException {
+    if (isSparse(region, window)) {
+      return getSparseCounts(region, window);
+    }
+
+    return new DenseCounts(region, window, getCounts(region, window));
+  }
+
   /**
    * Gets the values.
    *
@@ -177,6 +361,218 @@ public abstract class CountAssembly {
     return ArrayUtils.EMPTY_DOUBLE_ARRAY; //Collections.emptyList();
   }
 
+  /**
+   * Writes the values within a region into a caller supplied array so that
+   * one array can be reused across many queries. Bins are written to
+   * values[offset] onwards, overwriting any existing values. Implementations
+   * that can sum values directly into the array should override this
+   * method.
+   *
+   * @param region the region
+   * @param window the window
+   * @param values the array to write the values to.
+   * @param offset the index in values of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] values,
+      int offset) throws IOException {
+    double[] v = getValues(region, window);
+
+    System.arraycopy(v, 0, values, offset, v.length);
+
+    return v.length;
+  }
+
+  /**
+   * Returns the mean depth of coverage of each bin of a region with each
+   * read extended to its own length.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the coverage
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @see #getCoverage(GenomicRegion, int, int)
+   */
+  public double[] getCoverage(GenomicRegion region, int window)
+      throws IOException {
+    return getCoverage(region, window, -1);
+  }
+
+  /**
+   * Returns the mean depth of coverage of each bin of a region. Each read is
+   * extended from its 5' end along its strand to the length of a fragment,
+   * so a sense read starting at s covers s to s + length - 1 and an
+   * antisense read covers the length bases ending at its last base.
+   *
+   * @param region the region
+   * @param window the window
+   * @param fragmentLength the fragment length, or a value less than 1 to
+   *          use the read length.
+   * @return the coverage
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public double[] getCoverage(GenomicRegion region,
+      int window,
+      int fragmentLength) throws IOException {
+    double[] ret = new double[region.getEnd() / window
+        - region.getStart() / window + 1];
+
+    getCoverage(region, window, fragmentLength, ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Writes the coverage of a region into a caller supplied array. Bins are
+   * written to values[offset] onwards, overwriting any existing values.
+   *
+   * Each read adds the bases it shares with the bins at either end of its
+   * fragment directly and adds the bins in between to a difference array,
+   * which a single sweep turns into coverage. The cost is proportional to
+   * the number of reads plus the number of bins, however long the fragments
+   * are. The reads are fetched with
+   * {@link #getStrandedStarts(GenomicRegion, int)} so any assembly that
+   * records strands is supported.
+   *
+   * @param region the region
+   * @param window the window
+   * @param fragmentLength the fragment length, or a value less than 1 to
+   *          use the read length.
+   * @param values the array to write the coverage to.
+   * @param offset the index in values of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCoverage(GenomicRegion region,
+      int window,
+      int fragmentLength,
+      double[] values,
+      int offset) throws IOException {
+    int startBin = region.getStart() / window;
+    int n = region.getEnd() / window - startBin + 1;
+
+    // The bins can extend beyond the region
+    long spanStart = (long) startBin * window;
+    long spanEnd = (startBin + (long) n) * window - 1;
+
+    int margin = coverageMargin(fragmentLength);
+
+    StrandedStarts reads = getCoverageReads(region, spanStart, spanEnd, margin);
+
+    // Some assemblies only learn the read length when a file is first read
+    // in which case the margin may have been too narrow
+    if (coverageMargin(fragmentLength) > margin) {
+      margin = coverageMargin(fragmentLength);
+
+      reads = getCoverageReads(region, spanStart, spanEnd, margin);
+    }
+
+    int readLength = Math.max(1, getReadLength());
+    int length = fragmentLength > 0 ? fragmentLength : readLength;
+
+    Arrays.fill(values, offset, offset + n, 0);
+
+    // The bases added by the reads spanning whole bins
+    long[] diff = new long[n];
+
+    int[] starts = reads.getStarts();
+
+    long from;
+    long to;
+    int b1;
+    int b2;
+
+    for (int i = 0; i < starts.length; ++i) {
+      if (reads.isAntisense(i)) {
+        to = (long) starts[i] + readLength - 1;
+        from = to - length + 1;
+      } else {
+        from = starts[i];
+        to = from + length - 1;
+      }
+
+      from = Math.max(from, spanStart);
+      to = Math.min(to, spanEnd);
+
+      if (from > to) {
+        continue;
+      }
+
+      b1 = (int) (from / window) - startBin;
+      b2 = (int) (to / window) - startBin;
+
+      if (b1 == b2) {
+        values[offset + b1] += to - from + 1;
+      } else {
+        values[offset + b1] += (startBin + b1 + 1L) * window - from;
+        values[offset + b2] += to - (long) (startBin + b2) * window + 1;
+
+        if (b2 > b1 + 1) {
+          diff[b1 + 1] += window;
+          diff[b2] -= window;
+        }
+      }
+    }
+
+    long full = 0;
+
+    for (int i = 0; i < n; ++i) {
+      full += diff[i];
+
+      values[offset + i] = (values[offset + i] + full) / window;
+    }
+
+    return n;
+  }
+
+  /**
+   * Returns how far beyond a region reads must be fetched from to find
+   * every read whose fragment reaches it.
+   *
+   * @param fragmentLength the fragment length, or a value less than 1 to
+   *          use the read length.
+   * @return the margin
+   */
+  private int coverageMargin(int fragmentLength) {
+    int readLength = Math.max(1, getReadLength());
+
+    return Math.max(readLength,
+        fragmentLength > 0 ? fragmentLength : readLength);
+  }
+
+  /**
+   * Fetch the reads starting within a margin of a span of bins.
+   *
+   * @param region the region
+   * @param spanStart the start of the first bin.
+   * @param spanEnd the end of the last bin.
+   * @param margin the margin
+   * @return the stranded starts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private StrandedStarts getCoverageReads(GenomicRegion region,
+      long spanStart,
+      long spanEnd,
+      int margin) throws IOException {
+    return getStrandedStarts(new GenomicRegion(region.getChr(),
+        (int) Math.max(1, spanStart - margin + 1),
+        (int) Math.min(Integer.MAX_VALUE, spanEnd + margin - 1)), 1);
+  }
+
+  /**
+   * Returns true if the assembly can be queried from several threads at
+   * once. Assemblies that are not thread safe will only ever be queried by
+   * one thread at a time when used with {@link CountMatrixBuilder}.
+   *
+   * @return true if the assembly is thread safe.
+   */
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   /**
    * Optional method for closing file handles if necessary.
    */
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A dense matrix of read counts with one row per sample and one column per
+ * region. Cells are stored row by row in a single primitive buffer which can
+ * optionally be allocated outside of the Java heap so that very large
+ * matrices do not put pressure on the garbage collector.
+ */
+public class CountMatrix {
+
+  /** The number of samples. */
+  private final int mSamples;
+
+  /** The number of regions. */
+  private final int mRegions;
+
+  /** The cells stored row by row. */
+  private final IntBuffer mData;
+
+  /** Whether the cells are stored outside the heap. */
+  private final boolean mOffHeap;
+
+  /**
+   * Instantiates a new count matrix on the heap.
+   *
+   * @param samples the number of samples
+   * @param regions the number of regions
+   */
+  public CountMatrix(int samples, int regions) {
+    this(samples, regions, false);
+  }
+
+  /**
+   * Instantiates a new count matrix.
+   *
+   * @param samples the number of samples
+   * @param regions the number of regions
+   * @param offHeap true if the cells should be stored in a direct buffer
+   *          outside of the Java heap.
+   */
+  public CountMatrix(int samples, int regions, boolean offHeap) {
+    long size = (long) samples * regions;
+
+    if (samples < 0 || regions < 0
+        || size * (offHeap ? 4 : 1) > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("A matrix of " + samples + " x "
+          + regions + " cells is too large.");
+    }
+
+    mSamples = samples;
+    mRegions = regions;
+    mOffHeap = offHeap;
+
+    if (offHeap) {
+      mData = ByteBuffer.allocateDirect((int) size * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+    } else {
+      mData = IntBuffer.allocate((int) size);
+    }
+  }
+
+  /**
+   * Returns the number of samples (rows).
+   *
+   * @return the sample count
+   */
+  public int getSampleCount() {
+    return mSamples;
+  }
+
+  /**
+   * Returns the number of regions (columns).
+   *
+   * @return the region count
+   */
+  public int getRegionCount() {
+    return mRegions;
+  }
+
+  /**
+   * Returns true if the cells are stored outside of the Java heap.
+   *
+   * @return true, if off heap
+   */
+  public boolean isOffHeap() {
+    return mOffHeap;
+  }
+
+  /**
+   * Gets the count of a region in a sample.
+   *
+   * @param sample the sample
+   * @param region the region
+   * @return the count
+   */
+  public int get(int sample, int region) {
+    return mData.get(index(sample, region));
+  }
+
+  /**
+   * Sets the count of a region in a sample. Different cells may be set from
+   * different threads at the same time.
+   *
+   * @param sample the sample
+   * @param region the region
+   * @param count the count
+   */
+  public void set(int sample, int region, int count) {
+    mData.put(index(sample, region), count);
+  }
+
+  /**
+   * Returns a copy of the counts of every region in a sample.
+   *
+   * @param sample the sample
+   * @return the counts
+   */
+  public int[] getSample(int sample) {
+    int[] ret = new int[mRegions];
+
+    int p = index(sample, 0);
+
+    for (int i = 0; i < mRegions; ++i) {
+      ret[i] = mData.get(p++);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a copy of the counts of a region in every sample.
+   *
+   * @param region the region
+   * @return the counts
+   */
+  public int[] getRegion(int region) {
+    int[] ret = new int[mSamples];
+
+    for (int i = 0; i < mSamples; ++i) {
+      ret[i] = get(i, region);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a read only view of the cells, stored row by row.
+   *
+   * @return the buffer
+   */
+  public IntBuffer getBuffer() {
+    return mData.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the index of a cell in the buffer.
+   *
+   * @param sample the sample
+   * @param region the region
+   * @return the index
+   */
+  private int index(int sample, int region) {
+    if (sample < 0 || sample >= mSamples || region < 0
+        || region >= mRegions) {
+      throw new IndexOutOfBoundsException(sample + ", " + region);
+    }
+
+    return sample * mRegions + region;
+  }
+}
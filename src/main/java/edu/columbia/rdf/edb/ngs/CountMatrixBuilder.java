@@ -0,0 +1,341 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * Builds a {@link CountMatrix} of samples by regions in parallel. Each cell
+ * is the sum of the counts of a region in a sample at the chosen window.
+ *
+ * Regions are grouped by chromosome and sorted by start, then split into
+ * chunks of neighbouring regions. Every chunk of every sample is queried as
+ * a separate task on a fork join pool using the batch
+ * {@link CountAssembly#getCounts(List, int)} method. Samples that are not
+ * thread safe are queried one chunk at a time.
+ */
+public class CountMatrixBuilder {
+
+  /** The default window. */
+  public static final int DEFAULT_WINDOW = 1;
+
+  /** The default max number of regions queried by one task. */
+  public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+  /** The samples. */
+  private final List<CountAssembly> mSamples;
+
+  /** The regions. */
+  private final List<GenomicRegion> mRegions;
+
+  /** The window. */
+  private int mWindow = DEFAULT_WINDOW;
+
+  /** The parallelism. */
+  private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+  /** The chunk size. */
+  private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+  /** Whether the matrix should be stored off heap. */
+  private boolean mOffHeap = false;
+
+  /**
+   * Instantiates a new count matrix builder.
+   *
+   * @param samples the samples, one per row of the matrix.
+   * @param regions the regions, one per column of the matrix.
+   */
+  public CountMatrixBuilder(List<CountAssembly> samples,
+      List<GenomicRegion> regions) {
+    mSamples = samples;
+    mRegions = regions;
+  }
+
+  /**
+   * Sets the window the counts are read at.
+   *
+   * @param window the window
+   * @return the builder
+   */
+  public CountMatrixBuilder setWindow(int window) {
+    mWindow = window;
+
+    return this;
+  }
+
+  /**
+   * Sets the number of threads used to build the matrix. Defaults to the
+   * number of available processors.
+   *
+   * @param parallelism the parallelism
+   * @return the builder
+   */
+  public CountMatrixBuilder setParallelism(int parallelism) {
+    mParallelism = Math.max(1, parallelism);
+
+    return this;
+  }
+
+  /**
+   * Sets the max number of regions queried by a single task.
+   *
+   * @param chunkSize the chunk size
+   * @return the builder
+   */
+  public CountMatrixBuilder setChunkSize(int chunkSize) {
+    mChunkSize = Math.max(1, chunkSize);
+
+    return this;
+  }
+
+  /**
+   * Sets whether the matrix should be stored outside of the Java heap.
+   *
+   * @param offHeap true to store the matrix off heap.
+   * @return the builder
+   */
+  public CountMatrixBuilder setOffHeap(boolean offHeap) {
+    mOffHeap = offHeap;
+
+    return this;
+  }
+
+  /**
+   * Build the matrix.
+   *
+   * @return the count matrix
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CountMatrix build() throws IOException {
+    CountMatrix matrix =
+        new CountMatrix(mSamples.size(), mRegions.size(), mOffHeap);
+
+    List<int[]> chunks = getChunks();
+
+    ForkJoinPool pool = new ForkJoinPool(mParallelism);
+
+    try {
+      pool.invoke(new MatrixTask(matrix, chunks));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+
+    return matrix;
+  }
+
+  /**
+   * Split the regions into chunks. Each chunk contains the indices of
+   * neighbouring regions on the same chromosome sorted by start.
+   *
+   * @return the chunks
+   */
+  private List<int[]> getChunks() {
+    List<int[]> ret = new ArrayList<int[]>();
+
+    // One cluster per chromosome
+    for (RegionCluster cluster : RegionCluster
+        .cluster(mRegions, Integer.MAX_VALUE, Integer.MAX_VALUE)) {
+      int[] indices = cluster.getIndices();
+
+      for (int i = 0; i < indices.length; i += mChunkSize) {
+        ret.add(Arrays.copyOfRange(indices,
+            i,
+            Math.min(indices.length, i + mChunkSize)));
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Query one chunk of regions in one sample and store the totals in the
+   * matrix.
+   *
+   * @param matrix the matrix
+   * @param sample the sample index
+   * @param chunk the indices of the regions
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void fill(CountMatrix matrix, int sample, int[] chunk)
+      throws IOException {
+    List<GenomicRegion> regions = new ArrayList<GenomicRegion>(chunk.length);
+
+    for (int i : chunk) {
+      regions.add(mRegions.get(i));
+    }
+
+    List<int[]> counts = mSamples.get(sample).getCounts(regions, mWindow);
+
+    for (int i = 0; i < chunk.length; ++i) {
+      int total = 0;
+
+      for (int c : counts.get(i)) {
+        total += c;
+      }
+
+      matrix.set(sample, chunk[i], total);
+    }
+  }
+
+  /**
+   * Splits the matrix into one task per sample and chunk.
+   */
+  private class MatrixTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** The matrix. */
+    private final CountMatrix mMatrix;
+
+    /** The chunks. */
+    private final List<int[]> mChunks;
+
+    /**
+     * Instantiates a new matrix task.
+     *
+     * @param matrix the matrix
+     * @param chunks the chunks
+     */
+    public MatrixTask(CountMatrix matrix, List<int[]> chunks) {
+      mMatrix = matrix;
+      mChunks = chunks;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+      for (int i = 0; i < mSamples.size(); ++i) {
+        if (mSamples.get(i).isThreadSafe()) {
+          for (int[] chunk : mChunks) {
+            tasks.add(new ChunkTask(mMatrix, i, chunk));
+          }
+        } else {
+          tasks.add(new SampleTask(mMatrix, i, mChunks));
+        }
+      }
+
+      invokeAll(tasks);
+    }
+  }
+
+  /**
+   * Fills the cells of one chunk of regions in one sample.
+   */
+  private class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** The matrix. */
+    private final CountMatrix mMatrix;
+
+    /** The sample. */
+    private final int mSample;
+
+    /** The chunk. */
+    private final int[] mChunk;
+
+    /**
+     * Instantiates a new chunk task.
+     *
+     * @param matrix the matrix
+     * @param sample the sample
+     * @param chunk the chunk
+     */
+    public ChunkTask(CountMatrix matrix, int sample, int[] chunk) {
+      mMatrix = matrix;
+      mSample = sample;
+      mChunk = chunk;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      try {
+        fill(mMatrix, mSample, mChunk);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Fills every chunk of a sample that cannot be queried concurrently. The
+   * sample is locked whilst it is being read in case it appears more than
+   * once in the list of samples.
+   */
+  private class SampleTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** The matrix. */
+    private final CountMatrix mMatrix;
+
+    /** The sample. */
+    private final int mSample;
+
+    /** The chunks. */
+    private final List<int[]> mChunks;
+
+    /**
+     * Instantiates a new sample task.
+     *
+     * @param matrix the matrix
+     * @param sample the sample
+     * @param chunks the chunks
+     */
+    public SampleTask(CountMatrix matrix, int sample, List<int[]> chunks) {
+      mMatrix = matrix;
+      mSample = sample;
+      mChunks = chunks;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      synchronized (mSamples.get(mSample)) {
+        try {
+          for (int[] chunk : mChunks) {
+            fill(mMatrix, mSample, chunk);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * The read counts of every bin of a region, as returned by
+ * {@link CountAssembly#getCounts(GenomicRegion, int)}.
+ */
+public class DenseCounts implements RegionCounts {
+
+  /** The region. */
+  private final GenomicRegion mRegion;
+
+  /** The window. */
+  private final int mWindow;
+
+  /** The count of each bin. */
+  private final int[] mCounts;
+
+  /**
+   * Instantiates a new set of dense counts.
+   *
+   * @param region the region
+   * @param window the window
+   * @param counts the count of each bin.
+   */
+  public DenseCounts(GenomicRegion region, int window, int[] counts) {
+    mRegion = region;
+    mWindow = window;
+    mCounts = counts;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#getRegion()
+   */
+  @Override
+  public GenomicRegion getRegion() {
+    return mRegion;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#getWindow()
+   */
+  @Override
+  public int getWindow() {
+    return mWindow;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#size()
+   */
+  @Override
+  public int size() {
+    return mCounts.length;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#get(int)
+   */
+  @Override
+  public int get(int bin) {
+    return mCounts[bin];
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#isSparse()
+   */
+  @Override
+  public boolean isSparse() {
+    return false;
+  }
+
+  /**
+   * Returns the counts of every bin. The array is not copied.
+   *
+   * @return the counts
+   */
+  @Override
+  public int[] toArray() {
+    return mCounts;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#toArray(int[], int)
+   */
+  @Override
+  public int toArray(int[] counts, int offset) {
+    System.arraycopy(mCounts, 0, counts, offset, mCounts.length);
+
+    return mCounts.length;
+  }
+}
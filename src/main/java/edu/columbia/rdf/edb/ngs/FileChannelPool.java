@@ -0,0 +1,191 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Keeps a bounded number of read only file channels open so that repeated
+ * queries on the same file do not have to open and close it each time. When
+ * the pool is full the least recently used channel is closed. Channels are
+ * only ever read using positional reads so one channel can be shared by
+ * concurrent callers.
+ *
+ * @param <K> the key type
+ */
+public class FileChannelPool<K> {
+
+  /** The default maximum number of open channels. */
+  public static final int DEFAULT_MAX_SIZE = 32;
+
+  /** The channels in least recently used order. */
+  private final Map<K, FileChannel> mChannels;
+
+  /** The max size. */
+  private final int mMaxSize;
+
+  /**
+   * Instantiates a new pool using the default size.
+   */
+  public FileChannelPool() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Instantiates a new pool.
+   *
+   * @param maxSize the maximum number of channels to keep open.
+   */
+  public FileChannelPool(int maxSize) {
+    mMaxSize = Math.max(1, maxSize);
+
+    mChannels = new LinkedHashMap<K, FileChannel>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<K, FileChannel> eldest) {
+        if (size() > mMaxSize) {
+          close(eldest.getValue());
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the open channel for a key, opening the file if necessary.
+   *
+   * @param key the key
+   * @param file the file the key refers to.
+   * @return the channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public synchronized FileChannel getChannel(K key, Path file)
+      throws IOException {
+    FileChannel channel = mChannels.get(key);
+
+    if (channel == null || !channel.isOpen()) {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+
+      mChannels.put(key, channel);
+    }
+
+    return channel;
+  }
+
+  /**
+   * Read a block of bytes from a file using a pooled channel.
+   *
+   * @param key the key
+   * @param file the file
+   * @param position the byte position in the file to start reading from.
+   * @param length the number of bytes to read.
+   * @return a buffer, ready for reading, containing exactly length bytes.
+   * @throws IOException Signals that an I/O exception has occurred, or an
+   *                     EOFException if the file is too short.
+   */
+  public ByteBuffer read(K key, Path file, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+
+    try {
+      readFully(getChannel(key, file), buffer, position);
+    } catch (ClosedByInterruptException e) {
+      throw e;
+    } catch (ClosedChannelException e) {
+      // The channel was evicted by another thread whilst we were using it
+      // so reopen it and try again.
+      buffer.clear();
+
+      readFully(getChannel(key, file), buffer, position);
+    }
+
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * Close all channels in the pool. The pool can still be used afterwards,
+   * channels will be reopened on demand.
+   */
+  public synchronized void close() {
+    for (FileChannel channel : mChannels.values()) {
+      close(channel);
+    }
+
+    mChannels.clear();
+  }
+
+  /**
+   * Returns the number of open channels.
+   *
+   * @return the size
+   */
+  public synchronized int size() {
+    return mChannels.size();
+  }
+
+  /**
+   * Fill a buffer from a channel starting at a given position.
+   *
+   * @param channel the channel
+   * @param buffer the buffer
+   * @param position the position
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void readFully(FileChannel channel,
+      ByteBuffer buffer,
+      long position) throws IOException {
+    long p = position;
+
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, p);
+
+      if (n == -1) {
+        throw new EOFException();
+      }
+
+      p += n;
+    }
+  }
+
+  /**
+   * Close a channel ignoring errors.
+   *
+   * @param channel the channel
+   */
+  private static void close(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // The channel is being discarded so there is nothing to recover
+    }
+  }
+}
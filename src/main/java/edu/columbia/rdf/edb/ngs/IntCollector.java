@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Collects the values passed to it into a growable primitive array, for
+ * example to turn {@link CountAssembly#forEachStart} into an int[] of
+ * starts without boxing.
+ */
+public class IntCollector implements IntConsumer {
+
+  /** The default initial capacity. */
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /** The values. */
+  private int[] mValues;
+
+  /** The number of values. */
+  private int mSize = 0;
+
+  /**
+   * Instantiates a new collector.
+   */
+  public IntCollector() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Instantiates a new collector.
+   *
+   * @param capacity the number of values expected.
+   */
+  public IntCollector(int capacity) {
+    mValues = new int[Math.max(1, capacity)];
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.util.function.IntConsumer#accept(int)
+   */
+  @Override
+  public void accept(int value) {
+    if (mSize == mValues.length) {
+      mValues = Arrays.copyOf(mValues, mSize * 2);
+    }
+
+    mValues[mSize++] = value;
+  }
+
+  /**
+   * Returns the number of values collected.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Returns the values collected.
+   *
+   * @return the values
+   */
+  public int[] toArray() {
+    return mSize == mValues.length ? mValues : Arrays.copyOf(mValues, mSize);
+  }
+}
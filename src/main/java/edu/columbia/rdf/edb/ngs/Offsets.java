@@ -21,10 +21,10 @@ package edu.columbia.rdf.edb.ngs;
 public class Offsets {
 
   /** The start offset. */
-  public int startOffset = -1;
+  public long startOffset = -1;
 
   /** The end offset. */
-  public int endOffset = -1;
+  public long endOffset = -1;
 
   /**
    * Instantiates a new offsets.
@@ -32,7 +32,7 @@ public class Offsets {
    * @param so the so
    * @param eo the eo
    */
-  public Offsets(int so, int eo) {
+  public Offsets(long so, long eo) {
     this.startOffset = so;
     this.endOffset = eo;
   }
@@ -15,17 +15,32 @@
  */
 package edu.columbia.rdf.edb.ngs;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 
-import org.jebtk.core.collections.DefaultHashMap;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
 
 /**
  * The Class ReadCountsFile.
  */
 public abstract class ReadCountsFile extends CountAssembly {
 
+  /**
+   * The minimum gap, in bases, allowed between regions that are read
+   * together in a batch query.
+   */
+  public static final int MIN_CLUSTER_GAP = 10000;
+
+  /** The max gap, in bins, between regions read together. */
+  public static final int CLUSTER_GAP_BINS = 100;
+
+  /** The minimum width, in bases, that a cluster can grow to. */
+  public static final int MIN_CLUSTER_WIDTH = 10000000;
+
+  /** The max width, in bins, of a cluster. */
+  public static final int CLUSTER_WIDTH_BINS = 1000000;
+
   /**
    * Bins a list of starts into buckets with each bucket representing a bin of
    * size window. The array begins at the bin containing the start and ends at
@@ -43,61 +58,199 @@ public abstract class ReadCountsFile extends CountAssembly {
       int start,
       int end,
       int window) {
+    int[] ret = new int[binCount(start, end, window)];
+
+    binCounts(starts, start, end, window, ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Bins a list of starts into a caller supplied array so that the same array
+   * can be reused across many calls. Bins are written to
+   * counts[offset]...counts[offset + n - 1] where n is the number of bins
+   * between start and end. Any existing values in that range are overwritten.
+   *
+   * @param starts the starts
+   * @param start the start
+   * @param end the end
+   * @param window the bin size
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   */
+  protected static int binCounts(final int[] starts,
+      int start,
+      int end,
+      int window,
+      int[] counts,
+      int offset) {
+    return binCounts(starts,
+        0,
+        starts.length,
+        start,
+        end,
+        window,
+        counts,
+        offset);
+  }
+
+  /**
+   * Bins the starts starts[from]...starts[to - 1] into a caller supplied
+   * array.
+   *
+   * @param starts the starts
+   * @param from the index of the first start to bin.
+   * @param to the index after the last start to bin.
+   * @param start the start
+   * @param end the end
+   * @param window the bin size
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   */
+  protected static int binCounts(final int[] starts,
+      int from,
+      int to,
+      int start,
+      int end,
+      int window,
+      int[] counts,
+      int offset) {
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+    int l = binCount(start, end, window);
 
     // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
 
-    Map<Integer, Integer> map = DefaultHashMap.create(0);
+    Arrays.fill(counts, offset, offset + l, 0);
 
-    for (int rs : starts) {
-      int sbin = rs / window - startBin;
+    int sbin;
+
+    for (int i = from; i < to; ++i) {
+      sbin = starts[i] / window - startBin;
 
       if (sbin >= 0 && sbin < l) {
-        map.put(sbin, map.get(sbin) + 1);
+        ++counts[offset + sbin];
       }
     }
 
-    //List<Integer> ret = Mathematics.intZeros(l);
-    
-    int[] ret = new int[l];
+    return l;
+  }
 
-    for (Entry<Integer, Integer> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //, map.get(bin));
-    }
+  /**
+   * Bin counts.
+   *
+   * @param starts the starts
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the counts
+   */
+  protected static int[] binCounts(final Collection<Integer> starts,
+      int start,
+      int end,
+      int window) {
+    int[] ret = new int[binCount(start, end, window)];
+
+    binCounts(starts, start, end, window, ret, 0);
 
     return ret;
   }
-  
-  protected static int[] binCounts(final Collection<Integer> starts,
+
+  /**
+   * Bins a collection of starts into a caller supplied array.
+   *
+   * @param starts the starts
+   * @param start the start
+   * @param end the end
+   * @param window the bin size
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   */
+  protected static int binCounts(final Collection<Integer> starts,
       int start,
       int end,
-      int window) {
+      int window,
+      int[] counts,
+      int offset) {
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+    int l = binCount(start, end, window);
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    Arrays.fill(counts, offset, offset + l, 0);
 
-    Map<Integer, Integer> map = DefaultHashMap.create(0);
+    int sbin;
 
     for (int rs : starts) {
-      int sbin = rs / window - startBin;
+      sbin = rs / window - startBin;
 
       if (sbin >= 0 && sbin < l) {
-        map.put(sbin, map.get(sbin) + 1);
+        ++counts[offset + sbin];
       }
     }
 
-    //List<Integer> ret = Mathematics.intZeros(l);
-    
-    int[] ret = new int[l];
+    return l;
+  }
 
-    for (Entry<Integer, Integer> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //, map.get(bin));
+  /**
+   * Cluster regions for a batch query so that regions close to each other
+   * can be served by one read. How close regions must be scales with the
+   * window since coarser windows read fewer bytes per base.
+   *
+   * @param regions the regions
+   * @param window the window
+   * @return the clusters
+   */
+  protected static List<RegionCluster> cluster(List<GenomicRegion> regions,
+      int window) {
+    int maxGap = (int) Math.min(Integer.MAX_VALUE,
+        Math.max(MIN_CLUSTER_GAP, (long) CLUSTER_GAP_BINS * window));
+
+    int maxWidth = (int) Math.min(Integer.MAX_VALUE,
+        Math.max(MIN_CLUSTER_WIDTH, (long) CLUSTER_WIDTH_BINS * window));
+
+    return RegionCluster.cluster(regions, maxGap, maxWidth);
+  }
+
+  /**
+   * Returns the index of the first of a sorted run of starts that is not
+   * less than p, or to if there is none.
+   *
+   * @param starts the starts
+   * @param from the index of the first start to search.
+   * @param to the index after the last start to search.
+   * @param p the position
+   * @return the index
+   */
+  protected static int lowerBound(final int[] starts,
+      int from,
+      int to,
+      int p) {
+    int l = from;
+    int h = to;
+
+    while (l < h) {
+      int m = (l + h) >>> 1;
+
+      if (starts[m] < p) {
+        l = m + 1;
+      } else {
+        h = m;
+      }
     }
 
-    return ret;
+    return l;
+  }
+
+  /**
+   * Returns the number of bins of size window needed to span a region.
+   *
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the bin count
+   */
+  protected static int binCount(int start, int end, int window) {
+    return end / window - start / window + 1;
   }
 }
@@ -29,18 +29,23 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
-import org.jebtk.bioinformatics.genomic.FileSequenceReader;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultHashMap;
-import org.jebtk.core.collections.HashMapCreator;
-import org.jebtk.core.collections.IterMap;
-import org.jebtk.core.io.ByteStream;
 import org.jebtk.core.io.FileUtils;
+import org.jebtk.core.io.PathUtils;
 
 /**
  * Decodes counts per base from a 2 byte per base count file.
@@ -50,19 +55,32 @@ import org.jebtk.core.io.FileUtils;
  */
 public class ReadCountsFile32Bit extends ReadCountsFile {
 
+  /**
+   * Matches count file names of the form chr.counts.win.window.nbit.
+   */
+  private static final Pattern FILE_PATTERN =
+      Pattern.compile("(.+)\\.counts\\.win\\.(\\d+)\\.(\\d+)bit");
+
   /**
    * The member directory.
    */
   private Path mDir;
 
   /**
-   * The member file map.
+   * The count files of each chromosome and window, found by listing the
+   * directory once when the reader is created.
    */
-  private Map<Chromosome, IterMap<Integer, Path>> mFileMap = DefaultHashMap
-      .create(new HashMapCreator<Integer, Path>());
+  private final Map<String, Map<Integer, CountsFile>> mFileMap;
+
+  /** Long lived handles to the count files. */
+  private final FileChannelPool<Path> mChannels = new FileChannelPool<Path>();
 
-  private Map<Chromosome, IterMap<Integer, Integer>> mBitMap = DefaultHashMap
-      .create(new HashMapCreator<Integer, Integer>());
+  /** Whether count files should be memory mapped. */
+  private final boolean mMapped;
+
+  /** Each count file mapped once when memory mapping is enabled. */
+  private final Map<Path, ByteBuffer> mBufferMap =
+      new ConcurrentHashMap<Path, ByteBuffer>();
 
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
@@ -71,7 +89,30 @@ public class ReadCountsFile32Bit extends ReadCountsFile {
    * @param metaFile the meta file
    */
   public ReadCountsFile32Bit(Path metaFile) {
+    this(metaFile, false);
+  }
+
+  /**
+   * Create a reader that optionally memory maps each count file the first
+   * time it is queried.
+   *
+   * @param metaFile the meta file
+   * @param mapped true if count files should be memory mapped.
+   */
+  public ReadCountsFile32Bit(Path metaFile, boolean mapped) {
     mDir = metaFile;
+    mMapped = mapped;
+
+    Map<String, Map<Integer, CountsFile>> fileMap =
+        Collections.emptyMap();
+
+    try {
+      fileMap = scan(metaFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    mFileMap = fileMap;
   }
 
   /**
@@ -92,338 +133,681 @@ public class ReadCountsFile32Bit extends ReadCountsFile {
   @Override
   public int[] getCounts(GenomicRegion region, int window)
       throws IOException {
-    Chromosome chr = region.getChr();
-
-    if (!mFileMap.get(chr).containsKey(window)) {
-      Path file = mDir.resolve(chr + ".counts.win." + window + ".4bit");
-
-      if (FileUtils.exists(file)) {
-        mFileMap.get(chr).put(window, file);
-        mBitMap.get(chr).put(window, 4);
-      } else {
-        file = mDir.resolve(chr + ".counts.win." + window + ".8bit");
-
-        if (FileUtils.exists(file)) {
-          mFileMap.get(chr).put(window, file);
-          mBitMap.get(chr).put(window, 8);
-        } else {
-          file = mDir.resolve(chr + ".counts.win." + window + ".12bit");
-
-          if (FileUtils.exists(file)) {
-            mFileMap.get(chr).put(window, file);
-            mBitMap.get(chr).put(window, 12);
-          } else {
-            file = mDir.resolve(chr + ".counts.win." + window + ".16bit");
-
-            if (FileUtils.exists(file)) {
-              mFileMap.get(chr).put(window, file);
-              mBitMap.get(chr).put(window, 16);
-            } else {
-              file = mDir.resolve(chr + ".counts.win." + window + ".20bit");
-
-              if (FileUtils.exists(file)) {
-                mFileMap.get(chr).put(window, file);
-                mBitMap.get(chr).put(window, 20);
-              } else {
-                file = mDir.resolve(chr + ".counts.win." + window + ".24bit");
-
-                if (FileUtils.exists(file)) {
-                  mFileMap.get(chr).put(window, file);
-                  mBitMap.get(chr).put(window, 24);
-                } else {
-                  file = mDir.resolve(chr + ".counts.win." + window + ".32bit");
-
-                  if (FileUtils.exists(file)) {
-                    mFileMap.get(chr).put(window, file);
-                    mBitMap.get(chr).put(window, 32);
-                  }
-                }
-              }
-            }
-          }
-        }
-      }
-    }
+    CountsFile file = getFile(region.getChr(), window);
 
-    System.err.println("read 32 " + chr + " " + window + " " + mFileMap.get(chr).containsKey(window));
-    
     // Extract from file with appropriate bit depth
-    if (mFileMap.get(chr).containsKey(window)) {
-      switch (mBitMap.get(chr).get(window)) {
-      case 24:
-        return getCounts24(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 20:
-        return getCounts20(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 16:
-        return getCounts16(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 12:
-        return getCounts12(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 8:
-        return getCounts8(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      case 4:
-        return getCounts4(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      default:
-        // Default assume 32bit numbers
-        return getCounts32(mFileMap.get(chr).get(window),
-            region.getStart(),
-            region.getEnd(),
-            window);
-      }
+    if (file != null) {
+      int s = (region.getStart() - 1) / window;
+      int e = (region.getEnd() - 1) / window;
+
+      byte[] buf = getBytes(file,
+          firstByte(s, file.mBits),
+          lastByte(e, file.mBits));
+
+      return getCounts(buf, 0, s, e - s + 1, file.mBits);
     } else {
       return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
     }
   }
 
-  private static int[] getCounts4(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+    CountsFile file = getFile(region.getChr(), window);
+
+    if (file == null) {
+      return 0;
+    }
+
+    int s = (region.getStart() - 1) / window;
+    int e = (region.getEnd() - 1) / window;
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    byte[] buf = getBytes(file,
+        firstByte(s, file.mBits),
+        lastByte(e, file.mBits));
 
-    byte[] buf = FileSequenceReader.getBytes(file, s / 2, e / 2);
+    // Decode straight into the caller's array
+    getCounts(buf, 0, s, e - s + 1, file.mBits, counts, offset);
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    return e - s + 1;
+  }
 
-    boolean even = true;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
 
-    int p = 0;
+    for (RegionCluster cluster : cluster(regions, window)) {
+      CountsFile file = getFile(cluster.getChr(), window);
 
-    for (int i = 0; i < l; ++i) {
-      if (even) {
-        scores[i] = (buf[p] & 0b11110000) >> 4;
-      } else {
-        scores[i] = buf[p] & 0b1111;
+      if (file == null) {
+        for (int i : cluster.getIndices()) {
+          ret[i] = ArrayUtils.EMPTY_INT_ARRAY;
+        }
 
-        ++p;
+        continue;
       }
-    }
 
-    return scores;
-  }
+      int bits = file.mBits;
 
-  private static int[] getCounts8(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+      // Read the bytes of the whole cluster in one go and then decode each
+      // region from them.
+      int cs = (cluster.getStart() - 1) / window;
+      int ce = (cluster.getEnd() - 1) / window;
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+      int offset = firstByte(cs, bits);
 
-    byte[] buf = FileSequenceReader.getBytes(file, s, e);
+      byte[] buf = getBytes(file, offset, lastByte(ce, bits));
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+      for (int i : cluster.getIndices()) {
+        GenomicRegion region = regions.get(i);
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = (int) buf[i];
+        int s = (region.getStart() - 1) / window;
+        int e = (region.getEnd() - 1) / window;
+
+        ret[i] = getCounts(buf,
+            firstByte(s, bits) - offset,
+            s,
+            e - s + 1,
+            bits);
+      }
     }
 
-    return scores;
+    return Arrays.asList(ret);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    // The file table is fixed when the reader is created and files are only
+    // read with positional reads or from duplicates of the mapped buffers.
+    return true;
   }
 
-  private static int[] getCounts12(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mChannels.close();
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    // Mapped buffers are released when they are garbage collected
+    mBufferMap.clear();
+  }
 
-    // We need one extra byte since the last coordinate can span 2 bytes
-    byte[] buf = FileSequenceReader.getBytes(file, s * 3 / 2, e * 3 / 2 + 1);
+  /**
+   * Returns the count file for a chromosome and window.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @return the file or null if there is no file.
+   */
+  private CountsFile getFile(Chromosome chr, int window) {
+    Map<Integer, CountsFile> files = mFileMap.get(chr.toString());
 
-    //List<Integer> scores = new ArrayList<Integer>(l);
-    
-    int[] scores = new int[l];
-    
-    int p = 0;
+    return files != null ? files.get(window) : null;
+  }
 
-    // Whether to start at the beginning or end of the byte
-    boolean even = s % 2 == 0;
+  /**
+   * List a directory once to find the count file for each chromosome and
+   * window. If a window has been saved at more than one bit depth, the
+   * smallest depth is used.
+   *
+   * @param dir the dir
+   * @return the files indexed by chromosome and window.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static Map<String, Map<Integer, CountsFile>> scan(Path dir)
+      throws IOException {
+    Map<String, Map<Integer, CountsFile>> ret =
+        new HashMap<String, Map<Integer, CountsFile>>();
 
-    // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + even);
+    for (Path file : FileUtils.ls(dir)) {
+      Matcher matcher = FILE_PATTERN.matcher(PathUtils.getName(file));
 
-    for (int i = 0; i < l; ++i) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // Integer.toBinaryString(buf[p]) + " " + even);
+      if (!matcher.matches()) {
+        continue;
+      }
+
+      int window = Integer.parseInt(matcher.group(2));
+      int bits = Integer.parseInt(matcher.group(3));
 
-      int score = 0;
+      if (!isSupported(bits)) {
+        continue;
+      }
 
-      if (even) {
-        score = (buf[p] << 4) | ((buf[p + 1] & 0b11110000) >> 4);
-      } else {
-        score = ((buf[p] & 0b1111) << 8) | (buf[p + 1] & 0b11111111);
+      Map<Integer, CountsFile> files = ret.get(matcher.group(1));
 
-        ++p;
+      if (files == null) {
+        files = new HashMap<Integer, CountsFile>();
+        ret.put(matcher.group(1), files);
       }
 
-      scores[i] = score; //scores.add(score);
-
-      // if (even) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // String.format("%8s", Integer.toBinaryString(buf[p])).replace(" ", "0")
-      // + " "
-      // + score + " " + even);
-      // } else {
-      // int pp = p - 1;
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + pp + " " +
-      // String.format("%8s", Integer.toBinaryString(buf[pp])).replace(" ", "0")
-      // + " "
-      // + String.format("%8s", Integer.toBinaryString(buf[pp + 1])).replace("
-      // ", "0")
-      // + " " + score + " " + even);
-      // }
+      CountsFile current = files.get(window);
 
-      ++p;
+      if (current == null || bits < current.mBits) {
+        files.put(window, new CountsFile(file, bits));
+      }
+    }
 
-      even = !even;
+    for (String chr : ret.keySet()) {
+      ret.put(chr, Collections.unmodifiableMap(ret.get(chr)));
     }
 
-    return scores;
+    return Collections.unmodifiableMap(ret);
+  }
+
+  /**
+   * Returns true if counts of a given bit depth can be decoded.
+   *
+   * @param bits the bit depth
+   * @return true, if supported
+   */
+  private static boolean isSupported(int bits) {
+    switch (bits) {
+    case 4:
+    case 8:
+    case 12:
+    case 16:
+    case 20:
+    case 24:
+    case 32:
+      return true;
+    default:
+      return false;
+    }
   }
 
   /**
-   * Gets the counts.
+   * Read a block of bytes from a count file. Bytes past the end of the file
+   * are 0.
    *
    * @param file the file
-   * @param start the start
-   * @param end the end
-   * @param window the window
-   * @return the counts
+   * @param first the first byte to read.
+   * @param last the last byte to read.
+   * @return the bytes
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getCounts16(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  private byte[] getBytes(CountsFile file, int first, int last)
+      throws IOException {
+    byte[] ret = new byte[last - first + 1];
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    ByteBuffer buffer = getBuffer(file);
 
-    byte[] buf = FileSequenceReader.getBytes(file, s * 2, e * 2 + 1);
+    if (buffer != null) {
+      int l = Math.max(0, Math.min(ret.length, buffer.capacity() - first));
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+      if (l > 0) {
+        ByteBuffer in = buffer.duplicate();
 
-    int p = 0;
+        in.position(first);
+        in.get(ret, 0, l);
+      }
+    } else {
+      FileChannel channel = mChannels.getChannel(file.mFile, file.mFile);
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = ((buf[p] << 8) | (buf[p + 1] & 0b11111111));
+      // Only read as far as the end of the file
+      int l = (int) Math.max(0, Math.min(ret.length, channel.size() - first));
 
-      p += 2;
+      if (l > 0) {
+        mChannels.read(file.mFile, file.mFile, first, l).get(ret, 0, l);
+      }
     }
 
-    return scores;
+    return ret;
   }
 
-  private static int[] getCounts20(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Returns the memory mapped buffer for a count file, mapping it on first
+   * use. Returns null if memory mapping is disabled or the file is too large
+   * to be mapped into a single buffer.
+   *
+   * @param file the file
+   * @return the buffer or null
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer getBuffer(CountsFile file) throws IOException {
+    if (!mMapped) {
+      return null;
+    }
+
+    ByteBuffer buffer = mBufferMap.get(file.mFile);
+
+    if (buffer == null) {
+      FileChannel channel = mChannels.getChannel(file.mFile, file.mFile);
+
+      if (channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+      buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
 
-    // We need one extra byte since the last coordinate can span 2 bytes
-    byte[] buf = FileSequenceReader.getBytes(file, s * 5 / 2, e * 5 / 2 + 2);
+      // If another thread mapped the file first, use its mapping
+      ByteBuffer existing = mBufferMap.putIfAbsent(file.mFile, buffer);
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+      if (existing != null) {
+        buffer = existing;
+      }
+    }
 
-    int p = 0;
+    return buffer;
+  }
 
-    // Whether to start at the beginning or end of the byte
-    boolean even = s % 2 == 0;
+  /**
+   * Returns the index of the byte containing the first bit of a bin.
+   *
+   * @param bin the bin
+   * @param bits the bit depth
+   * @return the byte index
+   */
+  static int firstByte(int bin, int bits) {
+    return (int) ((long) bin * bits / 8);
+  }
 
-    // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + even);
+  /**
+   * Returns the index of the last byte that must be read to decode a bin.
+   *
+   * @param bin the bin
+   * @param bits the bit depth
+   * @return the byte index
+   */
+  static int lastByte(int bin, int bits) {
+    return firstByte(bin, bits) + (bits - 1) / 8;
+  }
 
-    for (int i = 0; i < l; ++i) {
-      // System.err.println("12bit " + s + " " + (s * 3 / 2) + " " + p + " " +
-      // Integer.toBinaryString(buf[p]) + " " + even);
+  /**
+   * Decode a run of bins from a buffer of bytes.
+   *
+   * @param buf the buffer
+   * @param p the index in buf of the byte containing the first bin.
+   * @param s the index of the first bin in the file.
+   * @param l the number of bins to decode.
+   * @param bits the bit depth
+   * @return the counts
+   */
+  static int[] getCounts(byte[] buf, int p, int s, int l, int bits) {
+    int[] scores = new int[l];
 
-      int score = 0;
+    getCounts(buf, p, s, l, bits, scores, 0);
 
-      if (even) {
-        score = (buf[p] << 12) | (buf[p + 1] << 4) | ((buf[p + 2] & 0xF0) >> 4);
-      } else {
-        score = ((buf[p] & 0xF) << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF);
+    return scores;
+  }
 
-        ++p;
-      }
+  /**
+   * Decode a run of bins from a buffer of bytes into a caller supplied
+   * array. Counts are stored as unsigned big endian integers packed most
+   * significant bit first, except for 32 bit counts which are signed.
+   *
+   * @param buf the buffer
+   * @param p the index in buf of the byte containing the first bin.
+   * @param s the index of the first bin in the file.
+   * @param l the number of bins to decode.
+   * @param bits the bit depth
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  static void getCounts(byte[] buf,
+      int p,
+      int s,
+      int l,
+      int bits,
+      int[] scores,
+      int o) {
+    switch (bits) {
+    case 24:
+      getCounts24(buf, p, l, scores, o);
+      break;
+    case 20:
+      getCounts20(buf, p, s, l, scores, o);
+      break;
+    case 16:
+      getCounts16(buf, p, l, scores, o);
+      break;
+    case 12:
+      getCounts12(buf, p, s, l, scores, o);
+      break;
+    case 8:
+      getCounts8(buf, p, l, scores, o);
+      break;
+    case 4:
+      getCounts4(buf, p, s, l, scores, o);
+      break;
+    default:
+      // Default assume 32bit numbers
+      getCounts32(buf, p, l, scores, o);
+      break;
+    }
+  }
 
-      scores[i] = score;
+  /**
+   * Decode 4 bit counts, two per byte. Bins are decoded 8 at a time from
+   * each 4 byte word.
+   *
+   * @param buf the buffer
+   * @param p the index of the byte containing the first bin.
+   * @param s the index of the first bin in the file.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts4(final byte[] buf,
+      int p,
+      int s,
+      int l,
+      int[] scores,
+      int o) {
+    int i = 0;
+
+    // An odd bin starts in the low nibble
+    if (l > 0 && (s & 1) == 1) {
+      scores[o] = buf[p] & 0xF;
 
       ++p;
+      ++i;
+    }
+
+    for (; i + 8 <= l; i += 8) {
+      int w = getInt(buf, p);
+
+      scores[o + i] = w >>> 28;
+      scores[o + i + 1] = (w >>> 24) & 0xF;
+      scores[o + i + 2] = (w >>> 20) & 0xF;
+      scores[o + i + 3] = (w >>> 16) & 0xF;
+      scores[o + i + 4] = (w >>> 12) & 0xF;
+      scores[o + i + 5] = (w >>> 8) & 0xF;
+      scores[o + i + 6] = (w >>> 4) & 0xF;
+      scores[o + i + 7] = w & 0xF;
 
-      even = !even;
+      p += 4;
     }
 
-    return scores;
+    getCountsTail(buf, p, i, l, 4, scores, o);
+  }
+
+  /**
+   * Decode 8 bit counts.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte to decode.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts8(final byte[] buf,
+      int p,
+      int l,
+      int[] scores,
+      int o) {
+    for (int i = 0; i < l; ++i) {
+      scores[o + i] = buf[p + i] & 0xFF;
+    }
+  }
+
+  /**
+   * Decode 12 bit counts, two per 3 bytes. Bins are decoded 8 at a time
+   * from each three 4 byte words.
+   *
+   * @param buf the buffer
+   * @param p the index of the byte containing the first bin.
+   * @param s the index of the first bin in the file.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts12(final byte[] buf,
+      int p,
+      int s,
+      int l,
+      int[] scores,
+      int o) {
+    int i = 0;
+
+    // An odd bin starts in the low nibble
+    if (l > 0 && (s & 1) == 1) {
+      scores[o] = ((buf[p] & 0xF) << 8) | (buf[p + 1] & 0xFF);
+
+      p += 2;
+      ++i;
+    }
+
+    for (; i + 8 <= l; i += 8) {
+      int a = getInt(buf, p);
+      int b = getInt(buf, p + 4);
+      int c = getInt(buf, p + 8);
+
+      scores[o + i] = a >>> 20;
+      scores[o + i + 1] = (a >>> 8) & 0xFFF;
+      scores[o + i + 2] = ((a & 0xFF) << 4) | (b >>> 28);
+      scores[o + i + 3] = (b >>> 16) & 0xFFF;
+      scores[o + i + 4] = (b >>> 4) & 0xFFF;
+      scores[o + i + 5] = ((b & 0xF) << 8) | (c >>> 24);
+      scores[o + i + 6] = (c >>> 12) & 0xFFF;
+      scores[o + i + 7] = c & 0xFFF;
+
+      p += 12;
+    }
+
+    getCountsTail(buf, p, i, l, 12, scores, o);
   }
 
-  private static int[] getCounts24(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Decode 16 bit counts.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte to decode.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts16(final byte[] buf,
+      int p,
+      int l,
+      int[] scores,
+      int o) {
+    for (int i = 0; i < l; ++i) {
+      scores[o + i] = ((buf[p] & 0xFF) << 8) | (buf[p + 1] & 0xFF);
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+      p += 2;
+    }
+  }
 
-    byte[] d = FileSequenceReader.getBytes(file, s * 3, e * 3 + 2);
-    
-    ByteStream buf = new ByteStream(d);
+  /**
+   * Decode 20 bit counts, two per 5 bytes. Bins are decoded 8 at a time
+   * from two 8 byte words and one 4 byte word.
+   *
+   * @param buf the buffer
+   * @param p the index of the byte containing the first bin.
+   * @param s the index of the first bin in the file.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts20(final byte[] buf,
+      int p,
+      int s,
+      int l,
+      int[] scores,
+      int o) {
+    int i = 0;
+
+    // An odd bin starts in the low nibble
+    if (l > 0 && (s & 1) == 1) {
+      scores[o] = ((buf[p] & 0xF) << 16) | ((buf[p + 1] & 0xFF) << 8)
+          | (buf[p + 2] & 0xFF);
+
+      p += 3;
+      ++i;
+    }
 
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+    for (; i + 8 <= l; i += 8) {
+      long a = getLong(buf, p);
+      long b = getLong(buf, p + 8);
+      int c = getInt(buf, p + 16);
+
+      scores[o + i] = (int) (a >>> 44);
+      scores[o + i + 1] = (int) (a >>> 24) & 0xFFFFF;
+      scores[o + i + 2] = (int) (a >>> 4) & 0xFFFFF;
+      scores[o + i + 3] = ((int) a & 0xF) << 16 | (int) (b >>> 48);
+      scores[o + i + 4] = (int) (b >>> 28) & 0xFFFFF;
+      scores[o + i + 5] = (int) (b >>> 8) & 0xFFFFF;
+      scores[o + i + 6] = ((int) b & 0xFF) << 12 | (c >>> 20);
+      scores[o + i + 7] = c & 0xFFFFF;
+
+      p += 20;
+    }
 
+    getCountsTail(buf, p, i, l, 20, scores, o);
+  }
+
+  /**
+   * Decode 24 bit counts.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte to decode.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts24(final byte[] buf,
+      int p,
+      int l,
+      int[] scores,
+      int o) {
     for (int i = 0; i < l; ++i) {
-      scores[i] = buf.readInt24(); //((buf[p] << 16) | (buf[p + 1] << 8) | (buf[p + 2] & 0xFF));
+      scores[o + i] = ((buf[p] & 0xFF) << 16) | ((buf[p + 1] & 0xFF) << 8)
+          | (buf[p + 2] & 0xFF);
+
+      p += 3;
     }
+  }
 
-    return scores;
+  /**
+   * Decode 32 bit counts.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte to decode.
+   * @param l the number of bins
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCounts32(final byte[] buf,
+      int p,
+      int l,
+      int[] scores,
+      int o) {
+    for (int i = 0; i < l; ++i) {
+      scores[o + i] = getInt(buf, p);
+
+      p += 4;
+    }
   }
 
-  private static int[] getCounts32(final Path file,
-      int start,
-      int end,
-      int window) throws IOException {
+  /**
+   * Decode the bins left over after the last whole block of 8. The first
+   * bin to decode must start on a byte boundary, which is true after each
+   * block since 8 bins of any depth fill a whole number of bytes.
+   *
+   * @param buf the buffer
+   * @param p the index of the byte containing bin i.
+   * @param i the index of the first bin to decode.
+   * @param l the number of bins
+   * @param bits the bit depth
+   * @param scores the array to write the counts to.
+   * @param o the index in scores of the first bin.
+   */
+  private static void getCountsTail(final byte[] buf,
+      int p,
+      int i,
+      int l,
+      int bits,
+      int[] scores,
+      int o) {
+    int mask = (1 << bits) - 1;
 
-    int s = (start - 1) / window;
-    int e = (end - 1) / window;
-    int l = e - s + 1;
+    int bit = 0;
 
-    byte[] d = FileSequenceReader.getBytes(file, s * 4, e * 4 + 3);
+    for (; i < l; ++i) {
+      int q = p + (bit >>> 3);
+      int off = bit & 7;
 
-    ByteBuffer buf = ByteBuffer.wrap(d);
-    
-    int[] scores = new int[l]; //List<Integer> scores = new ArrayList<Integer>(l);
+      // Bytes spanned by the bin
+      int n = (off + bits + 7) >>> 3;
 
-    for (int i = 0; i < l; ++i) {
-      scores[i] = buf.getInt();
+      int word = 0;
+
+      for (int j = 0; j < n; ++j) {
+        word = (word << 8) | (buf[q + j] & 0xFF);
+      }
+
+      scores[o + i] = (word >>> (n * 8 - bits - off)) & mask;
+
+      bit += bits;
     }
+  }
 
-    return scores;
+  /**
+   * Read a big endian int from a buffer.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte.
+   * @return the int
+   */
+  private static int getInt(final byte[] buf, int p) {
+    return (buf[p] << 24) | ((buf[p + 1] & 0xFF) << 16)
+        | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+  }
+
+  /**
+   * Read a big endian long from a buffer.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte.
+   * @return the long
+   */
+  private static long getLong(final byte[] buf, int p) {
+    return ((long) getInt(buf, p) << 32) | (getInt(buf, p + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * A count file and the bit depth of its counts.
+   */
+  private static class CountsFile {
+
+    /** The file. */
+    private final Path mFile;
+
+    /** The bit depth. */
+    private final int mBits;
+
+    /**
+     * Instantiates a new counts file.
+     *
+     * @param file the file
+     * @param bits the bits
+     */
+    public CountsFile(Path file, int bits) {
+      mFile = file;
+      mBits = bits;
+    }
   }
 }
@@ -28,67 +28,56 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.DataInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
-import org.jebtk.core.collections.DefaultHashMap;
-import org.jebtk.core.collections.HashMapCreator;
-import org.jebtk.core.collections.IterHashMap;
-import org.jebtk.core.collections.IterMap;
-import org.jebtk.core.io.ByteStream;
 import org.jebtk.core.io.FileUtils;
-import org.jebtk.core.io.PathUtils;
 import org.jebtk.core.text.TextUtils;
 
 /**
  * Decodes counts using a multi resolution file.
  *
+ * Files are read using positional reads on pooled channels so one reader
+ * can be shared by any number of threads without locking.
+ *
  * @author Antony Holmes
  */
 public class ReadCountsFileBC extends ReadCountsFile {
 
-  private static final int MAGIC_NUMBER_OFFSET_BYTES = 0;
-  private static final int BIN_SIZE_OFFSET_BYTES = 
+  static final int MAGIC_NUMBER_OFFSET_BYTES = 0;
+  static final int BIN_SIZE_OFFSET_BYTES = 
       MAGIC_NUMBER_OFFSET_BYTES + 4;
-  private static final int BIN_WIDTH_OFFSET_BYTES = BIN_SIZE_OFFSET_BYTES + 1;
-  private static final int N_BINS_OFFSET_BYTES = BIN_WIDTH_OFFSET_BYTES + 4;
-  private static final int BINS_OFFSET_BYTES = N_BINS_OFFSET_BYTES + 4;
-  private static final int MIN_BIN_WIDTH = 100;
-  private static final Map<Integer, Integer> POWER_MAP = 
-      new HashMap<Integer, Integer>();
-
-  static {
-    POWER_MAP.put(100, 2);
-    POWER_MAP.put(1000, 3);
-    POWER_MAP.put(10000, 4);
-    POWER_MAP.put(100000, 5);
-    POWER_MAP.put(1000000, 6);
-    POWER_MAP.put(10000000, 7);
-    POWER_MAP.put(100000000, 8);
-    POWER_MAP.put(1000000000, 9);
-  }
+  static final int BIN_WIDTH_OFFSET_BYTES = BIN_SIZE_OFFSET_BYTES + 1;
+  static final int N_BINS_OFFSET_BYTES = BIN_WIDTH_OFFSET_BYTES + 4;
+  static final int BINS_OFFSET_BYTES = N_BINS_OFFSET_BYTES + 4;
+  /** The smallest power stored. */
+  private static final int MIN_POWER = 2;
 
-  private Path mDir = null;
+  /** The bin width of each power. */
+  private static final int[] POWERS = { 1, 10, 100, 1000, 10000, 100000,
+      1000000, 10000000, 100000000, 1000000000 };
 
-  private IterMap<Chromosome, IterMap<Integer, Path>> mFileMap = 
-      DefaultHashMap.create(new HashMapCreator<Integer, Path>());
+  private Path mDir = null;
 
-  private IterMap<Integer, Integer> mCountMap = 
-      new IterHashMap<Integer, Integer>();
+  /** The files in the directory, loaded on first use. */
+  private volatile BCManifest mManifest = null;
 
-  private RandomAccessFile mFile = null;
+  /** Open files shared by all threads. */
+  private final FileChannelPool<Path> mChannels = new FileChannelPool<Path>();
 
-  private Chromosome mChr = null;
-  private int mPower = -1;
-  private int mReadCount = -1;
+  private volatile int mReadCount = -1;
   private String mMode;
 
+  /** How stored bins are combined into wider bins. */
+  private final BCMode mBCMode;
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -102,6 +91,7 @@ public class ReadCountsFileBC extends ReadCountsFile {
   public ReadCountsFileBC(Path bciFile, BCMode mode) {
     mDir = bciFile.toAbsolutePath().getParent();
     mMode = mode.toString().toLowerCase();
+    mBCMode = mode;
   }
 
   /*
@@ -118,53 +108,86 @@ public class ReadCountsFileBC extends ReadCountsFile {
         window);
   }
 
-  private static int[] _getCounts(RandomAccessFile file,
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getBinCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public int getBinCount(GenomicRegion region, int window) {
+    // The bin containing the end is not included
+    return Math.max(1,
+        region.getEnd() / window - region.getStart() / window);
+  }
+
+  private int[] _getCounts(BCManifest.Entry file,
       Chromosome chr,
       int start,
       int end,
-      int binWidth,
-      int binSize) throws IOException {
+      int binWidth) throws IOException {
     int sb = start / binWidth;
     int eb = end / binWidth;
     int n = Math.max(1, eb - sb);
 
+    return readBins(file, sb, n);
+  }
+
+  /**
+   * Read a run of consecutive bins from a file. Bins past the end of the
+   * file are 0.
+   *
+   * @param file the file
+   * @param sb the first bin to read.
+   * @param n the number of bins to read.
+   * @return the bins
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int[] readBins(BCManifest.Entry file, int sb, int n) throws IOException {
+    int binSize = file.getBinSize();
 
-    int sa = sb;
-    int sn = n;
+    long sa = sb;
+    long sn = n;
 
     if (binSize > 1) {
       sa *= binSize;
       sn *= binSize;
     }
 
-    file.seek(BINS_OFFSET_BYTES + sa);
+    sa += BINS_OFFSET_BYTES;
 
-    byte[] d = new byte[sn];
-
-    file.read(d);
-    
-    //ByteBuffer buffer = ByteBuffer.wrap(d);
-    ByteStream buffer = new ByteStream(d);
+    // Only read as far as the end of the file
+    int l = (int) Math.max(0, Math.min(sn, file.getSize() - sa));
 
     int[] ret = new int[n]; // np.zeros(n, dtype=int)
 
+    if (l == 0) {
+      return ret;
+    }
+
+    Path path = mDir.resolve(file.getFile());
+
+    ByteBuffer buffer = mChannels.read(path, path, sa, l);
+
+    int m = l / Math.max(1, binSize);
+
     switch (binSize) {
     case 4:
       // 4 byte int
-      for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.readInt();
+      for (int i = 0; i < m; ++i) {
+        ret[i] = buffer.getInt();
       }
       break;
     case 2:
       // 2 byte short
-      for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.readShort();
+      for (int i = 0; i < m; ++i) {
+        ret[i] = buffer.getShort();
       }
       break;
     default:
       // a byte
-      for (int i = 0; i < n; ++i) {
-        ret[i] = buffer.read();
+      for (int i = 0; i < m; ++i) {
+        ret[i] = buffer.get() & 0xff;
       }
       break;
     }
@@ -189,119 +212,325 @@ public class ReadCountsFileBC extends ReadCountsFile {
    */
   public int[] getCounts(Chromosome chr, int start, int end, int window)
       throws IOException {
+    int power = getBasePower(chr, window);
 
-    int power = POWER_MAP.get(window);
-    
-    RandomAccessFile file = getFile(chr, power);
+    BCManifest.Entry file = getFile(chr, power);
 
-    int s = start;
-    int e = end;
+    int w = POWERS[power];
 
-    int binSize = getBinSize(file);
+    if (w == window) {
+      return _getCounts(file, chr, start, end, window);
+    }
 
-    int[] d = _getCounts(file, chr, s, e, window, binSize);
+    return aggregate(file, w, start, end, window);
+  }
 
-    if (window < MIN_BIN_WIDTH) {
-      int sb = start / window;
-      int eb = end / window;
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#estimateReadCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion)
+   */
+  @Override
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    Chromosome chr = region.getChr();
 
+    int start = region.getStart();
+    int end = region.getEnd();
 
-      int i = 0;
-      int f;
-      int n;
-      int[] d2 = null;
+    // Sum the widest stored bins no wider than the region so that only a
+    // few bins are read. Whole bins are counted so this is an upper bound.
+    int window = POWERS[0];
 
-      n = Math.max(1, eb - sb);
-      f = MIN_BIN_WIDTH / window;
-      d2 = new int[n];
+    for (int w : POWERS) {
+      if (w <= end - start + 1) {
+        window = w;
+      }
+    }
 
-      for (int i2 = 0; i2 < n; ++i2) {
-        d2[i2] = d[i];
+    int power = getBasePower(chr, window);
 
-        if ((i2 + 1) % f == 0) {
-          i += 1;
-        }
+    int w = POWERS[power];
+
+    int sb = start / w;
+
+    long ret = 0;
+
+    for (int c : readBins(getFile(chr, power), sb, end / w - sb + 1)) {
+      ret += c;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the power of the stored bin width used to answer a query at a
+   * given window. This is the coarsest stored width that divides the window
+   * or, if there is none, the finest stored width.
+   *
+   * @param chr the chr
+   * @param window the window
+   * @return the power
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int getBasePower(Chromosome chr, int window) throws IOException {
+    BCManifest manifest = getManifest();
+
+    String name = chr.toString();
+
+    int ret = -1;
+
+    for (int p = POWERS.length - 1; p >= MIN_POWER; --p) {
+      if (manifest.get(name, p) == null) {
+        continue;
+      }
+
+      if (window % POWERS[p] == 0) {
+        return p;
       }
 
-      d = d2;
+      ret = p;
+    }
+
+    if (ret == -1) {
+      throw new FileNotFoundException(chr + " in " + mDir);
     }
 
-    return d;
+    return ret;
   }
 
-  private RandomAccessFile getFile(Chromosome chr, int power) throws IOException {
+  /**
+   * Create counts at an arbitrary window from bins stored at width w. When
+   * the window is a multiple of w each output bin combines window / w
+   * stored bins according to the mode: the sum for COUNT, the max for MAX
+   * and the mean for MEAN. Otherwise each stored bin is assigned to the
+   * output bin containing its start. Windows smaller than w repeat the
+   * stored bin each output bin falls in.
+   *
+   * @param file the file
+   * @param w the stored bin width
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @return the counts
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int[] aggregate(BCManifest.Entry file,
+      int w,
+      int start,
+      int end,
+      int window) throws IOException {
+    int sb = start / window;
+    int eb = end / window;
+    int n = Math.max(1, eb - sb);
+
+    // The stored bins covering the output bins
+    int b1 = (int) ((long) sb * window / w);
+    int b2 = (int) (((long) (sb + n) * window - 1) / w);
+
+    int[] d = readBins(file, b1, b2 - b1 + 1);
+
+    int[] ret = new int[n];
+
+    if (window < w) {
+      for (int i = 0; i < n; ++i) {
+        ret[i] = d[(int) ((long) (sb + i) * window / w) - b1];
+      }
+
+      return ret;
+    }
+
+    if (window % w == 0) {
+      int r = window / w;
 
-    if (!mFileMap.get(chr).containsKey(power)) {
-      String c = chr.toString() + ".";
-      String p = power + "bw";
+      int p = 0;
 
-      for (Path file : FileUtils.ls(mDir)) {
-        String name = PathUtils.getName(file);
+      switch (mBCMode) {
+      case MAX:
+        for (int i = 0; i < n; ++i) {
+          int m = d[p];
 
-        if (name.contains(c) && name.contains(p)) {
-          mFileMap.get(chr).put(power, file);
+          for (int j = 1; j < r; ++j) {
+            m = Math.max(m, d[p + j]);
+          }
 
-          break;
+          ret[i] = m;
+          p += r;
         }
+        break;
+      default:
+        for (int i = 0; i < n; ++i) {
+          int sum = 0;
+
+          for (int j = 0; j < r; ++j) {
+            sum += d[p + j];
+          }
+
+          ret[i] = mBCMode == BCMode.MEAN ? sum / r : sum;
+          p += r;
+        }
+        break;
       }
+
+      return ret;
     }
 
-    if (mChr != null && mChr.equals(chr) && mPower == power) {
-      return mFile;
+    int[] bins = new int[n];
+
+    for (int j = 0; j < d.length; ++j) {
+      int i = (int) ((long) (b1 + j) * w / window) - sb;
+
+      if (i < 0 || i >= n) {
+        continue;
+      }
+
+      if (mBCMode == BCMode.MAX) {
+        ret[i] = bins[i] > 0 ? Math.max(ret[i], d[j]) : d[j];
+      } else {
+        ret[i] += d[j];
+      }
+
+      ++bins[i];
     }
 
-    
-    mFile = FileUtils.newRandomAccess(mFileMap.get(chr).get(power));
-    mChr = chr;
-    mPower = power;
-    return mFile;
+    if (mBCMode == BCMode.MEAN) {
+      for (int i = 0; i < n; ++i) {
+        if (bins[i] > 0) {
+          ret[i] /= bins[i];
+        }
+      }
+    }
+
+    return ret;
   }
 
-  /**
-   * Returns the number of reads in the representation that can be used for
-   * normalization purposes.
+  /*
+   * (non-Javadoc)
    * 
-   * @param power
-   * @return
-   * @throws IOException
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
    */
-  private int getBinCount(int power) throws IOException {
-    
-    System.err.println("get bin counts");
-    
-    if (!mCountMap.containsKey(power)) {
-      String p = power + "bw";
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
 
-      for (Path file : FileUtils.ls(mDir)) {
-        String name = PathUtils.getName(file);
+    for (RegionCluster cluster : cluster(regions, window)) {
+      int power = getBasePower(cluster.getChr(), window);
 
-        if (name.startsWith("counts") && name.contains(p) && name.endsWith("bc")) {
-          DataInputStream r = FileUtils.newDataInputStream(file);
+      if (POWERS[power] != window) {
+        // Aggregated windows are built one region at a time
+        for (int i : cluster.getIndices()) {
+          ret[i] = getCounts(regions.get(i), window);
+        }
 
-          int c = r.readInt();
-          
-          //System.err.println("found " + name + " "  + power + " " + c);
+        continue;
+      }
 
-          r.close();
+      BCManifest.Entry file = getFile(cluster.getChr(), power);
 
-          mCountMap.put(power, c);
-          
-          break;
-        }
+      // Find the last bin any region in the cluster needs
+      int sb = cluster.getStart() / window;
+      int eb = sb;
+
+      for (int i : cluster.getIndices()) {
+        GenomicRegion region = regions.get(i);
+
+        int rsb = region.getStart() / window;
+
+        eb = Math.max(eb,
+            rsb + Math.max(1, region.getEnd() / window - rsb));
+      }
+
+      // Read the bins of the whole cluster in one go and then copy out
+      // each region.
+      int[] d = readBins(file, sb, eb - sb);
+
+      for (int i : cluster.getIndices()) {
+        GenomicRegion region = regions.get(i);
+
+        int rsb = region.getStart() / window;
+        int n = Math.max(1, region.getEnd() / window - rsb);
+
+        ret[i] = Arrays.copyOfRange(d, rsb - sb, rsb - sb + n);
       }
     }
 
-    return mCountMap.get(power);
+    return Arrays.asList(ret);
   }
 
-  public void close() {
-    if (mFile != null) {
-      try {
-        mFile.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+  /**
+   * Returns the file of a chromosome at a given power.
+   *
+   * @param chr the chr
+   * @param power the power
+   * @return the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private BCManifest.Entry getFile(Chromosome chr, int power)
+      throws IOException {
+    BCManifest.Entry ret = getManifest().get(chr.toString(), power);
+
+    if (ret == null) {
+      throw new FileNotFoundException(chr + " " + power + "bw in " + mDir);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the manifest of the directory, loading it the first time it is
+   * needed. The directory is only listed if it has no manifest file.
+   *
+   * @return the manifest
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BCManifest getManifest() throws IOException {
+    BCManifest manifest = mManifest;
+
+    if (manifest == null) {
+      synchronized (this) {
+        manifest = mManifest;
+
+        if (manifest == null) {
+          manifest = BCManifest.load(mDir);
+
+          mManifest = manifest;
+        }
       }
     }
+
+    return manifest;
+  }
+
+  /**
+   * Save the manifest to the directory so that future readers do not need
+   * to list it.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void writeManifest() throws IOException {
+    getManifest().write(mDir.resolve(BCManifest.MANIFEST_FILE));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mChannels.close();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return true;
   }
 
   /*
@@ -325,14 +554,4 @@ public class ReadCountsFileBC extends ReadCountsFile {
     
     return mReadCount;
   }
-
-  private static int getPower(int window) {
-    return POWER_MAP.get(window);
-  }
-
-  private static int getBinSize(RandomAccessFile file) throws IOException {
-    file.seek(BIN_SIZE_OFFSET_BYTES);
-
-    return file.read();
-  }
-}
\ No newline at end of file
+}
@@ -28,15 +28,14 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.bioinformatics.genomic.Strand;
-import org.jebtk.core.collections.ArrayUtils;
 
 /**
  * Decodes counts using a multi resolution file.
@@ -62,9 +61,6 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
    */
   public static final String FILE_EXT = "brt";
 
-  /** The Constant FLAG_STRAND_MASK. */
-  private static final byte FLAG_STRAND_MASK = 1;
-
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -86,12 +82,12 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getFile(chr, window, FILE_EXT);
 
     // System.err.println("read count file:" + file + " " + region + " " +
     // mReadLengthMap.get(chr) + " " + mOffsetMap.get(chr));
 
-    int[] counts = getCounts(file,
+    int[] counts = getCounts(chr,
         region.getStart(),
         region.getEnd(),
         window,
@@ -100,6 +96,30 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
     return counts;
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, window, FILE_EXT);
+
+    return getCounts(chr,
+        region.getStart(),
+        region.getEnd(),
+        window,
+        mOffsetMap.get(chr),
+        counts,
+        offset);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -109,17 +129,34 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
   @Override
   public int[] getStarts(GenomicRegion region, int window)
       throws IOException {
+    IntCollector starts = new IntCollector();
+
+    forEachStart(region, window, starts);
+
+    return starts.toArray();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#forEachStart(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * java.util.function.IntConsumer)
+   */
+  @Override
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getFile(chr, window, FILE_EXT);
 
-    int[] starts = getStarts(file,
+    forEachStart(chr,
         region.getStart(),
         region.getEnd(),
         window,
-        mOffsetMap.get(chr));
-
-    return starts;
+        mOffsetMap.get(chr),
+        consumer);
   }
 
   /*
@@ -133,9 +170,9 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getFile(chr, window, FILE_EXT);
 
-    Strand[] strands = getStrands(file,
+    Strand[] strands = getStrands(chr,
         region.getStart(),
         region.getEnd(),
         mOffsetMap.get(chr));
@@ -143,10 +180,58 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
     return strands;
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandedStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public StrandedStarts getStrandedStarts(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, window, FILE_EXT);
+
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    ByteBuffer in = readRecords(chr,
+        range.startBlock.startOffset,
+        range.endBlock.endOffset,
+        mOffsetMap.get(chr));
+
+    int l = in.remaining() / READ_WIDTH_BYTES;
+
+    int[] starts = new int[l];
+    byte[] flags = new byte[l];
+
+    int n = 0;
+
+    int p = 0;
+
+    int s;
+
+    for (int i = 0; i < l; ++i) {
+      s = in.getInt(p);
+
+      if (s >= start && s <= end) {
+        starts[n] = s;
+        flags[n++] = in.get(p + READ_START_WIDTH_BYTES);
+      }
+
+      p += READ_WIDTH_BYTES;
+    }
+
+    return StrandedStarts.create(region, window, starts, flags, n);
+  }
+
   /**
    * Gets the counts.
    *
-   * @param file the file
+   * @param chr the chr
    * @param start the start
    * @param end the end
    * @param window the window
@@ -154,161 +239,198 @@ public class ReadCountsFileBRT extends ReadCountsFileBinTree {
    * @return the counts
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public int[] getCounts(final Path file,
+  public int[] getCounts(Chromosome chr,
       int start,
       int end,
       int window,
-      int dataOffset) throws IOException {
+      long dataOffset) throws IOException {
+    int[] counts = new int[binCount(start, end, window)];
 
-    int[] starts = getStarts(file, start, end, window, dataOffset);
-
-    int[] counts = binCounts(starts, start, end, window);
+    getCounts(chr, start, end, window, dataOffset, counts, 0);
 
     return counts;
   }
 
   /**
-   * Get the counts from the file,.
+   * Bins the reads in a region into a caller supplied array as they are
+   * decoded.
    *
-   * @param file The r tree binary file.
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param dataOffset the data offset
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int getCounts(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      long dataOffset,
+      int[] counts,
+      int offset) throws IOException {
+    int l = binCount(start, end, window);
+
+    Arrays.fill(counts, offset, offset + l, 0);
+
+    // Every start passed on is within the region so its bin is too
+    int o = offset - start / window;
+
+    forEachStart(chr,
+        start,
+        end,
+        window,
+        dataOffset,
+        s -> ++counts[o + s / window]);
+
+    return l;
+  }
+
+  /**
+   * Read the raw records between two blocks. To read the starts, first skip
+   * to dataOffset (the byte position after the R Tree where the counts are
+   * written sequentially), then skip to the record index.
+   *
+   * @param chr the chr
+   * @param first the index of the first read.
+   * @param last the index of the last read.
+   * @param dataOffset The byte offset in the file where the reads begin.
+   * @return the records
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer readRecords(Chromosome chr,
+      long first,
+      long last,
+      long dataOffset) throws IOException {
+    int l = (int) Math.max(0, last - first + 1);
+
+    return read(chr,
+        dataOffset + first * READ_WIDTH_BYTES,
+        l * READ_WIDTH_BYTES);
+  }
+
+  /**
+   * Pass the starts of the reads in a region to a consumer, reading the
+   * file a batch of reads at a time.
+   *
+   * @param chr the chr
    * @param start The 1 based genomic start coordinate.
    * @param end The 1 based genomic end coordinate.
    * @param window The size of the window being viewed.
    * @param dataOffset The byte offset in the file where the reads begin.
-   * @return the starts
+   * @param consumer the consumer of the starts.
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getStarts(final Path file,
+  private void forEachStart(Chromosome chr,
       int start,
       int end,
       int window,
-      int dataOffset) throws IOException {
+      long dataOffset,
+      IntConsumer consumer) throws IOException {
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+    // first get the buffer offset of the start
 
-    int[] starts = ArrayUtils.EMPTY_INT_ARRAY; //new ArrayList<Integer>();
+    BlockRange range = getDataOffsets(chr, start, end, window);
 
-    try {
-      // first get the buffer offset of the start
+    long first = range.startBlock.startOffset;
+    long last = range.endBlock.endOffset;
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    for (long r = first; r <= last; r += CURSOR_READS) {
+      ByteBuffer in = readRecords(chr,
+          r,
+          Math.min(last, r + CURSOR_READS - 1),
+          dataOffset);
 
-      int l = eo.endOffset - so.startOffset + 1;
-      
-      starts = new int[l];
+      int l = in.remaining() / READ_WIDTH_BYTES;
 
-      // System.err.println("starts " + start + " " + end + " " +
-      // Arrays.toString(so)
-      // + " " + Arrays.toString(eo) + " " + l);
-
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
+      int p = 0;
 
       for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
-
-        int s = in.readInt();
+        int s = in.getInt(p);
 
-        // skip flags
-        in.readByte();
+        if (s > end) {
+          return;
+        }
 
-        if (s >= start && s <= end) {
-          starts[i] = s;
+        if (s >= start) {
+          consumer.accept(s);
         }
+
+        p += READ_WIDTH_BYTES;
       }
-    } finally {
-      in.close();
     }
-
-    return starts;
   }
 
   /**
    * Gets the strands.
    *
-   * @param file the file
+   * @param chr the chr
    * @param start the start
    * @param end the end
    * @param dataOffset the data offset
    * @return the strands
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static Strand[] getStrands(final Path file,
+  private Strand[] getStrands(Chromosome chr,
       int start,
       int end,
-      int dataOffset) throws IOException {
+      long dataOffset) throws IOException {
 
-    byte[] props = getFlags(file, start, end, dataOffset);
+    byte[] props = getFlags(chr, start, end, dataOffset);
 
     // System.err.println("flags:" + props);
 
-    Strand[] strands = new Strand[props.length]; //new ArrayList<Strand>(props.size());
-
-    for (int i = 0; i < props.length; ++i) {
-      if ((props[i] & FLAG_STRAND_MASK) == FLAG_STRAND_MASK) {
-        strands[i] = Strand.ANTISENSE;
-      } else {
-        strands[i] = Strand.SENSE;
-      }
-    }
-
-    return strands;
+    return StrandedStarts.toStrands(props);
   }
 
   /**
    * Extract the 1 byte param field associated with a read.
    *
-   * @param file the file
+   * @param chr the chr
    * @param start the start
    * @param end the end
    * @param dataOffset the data offset
    * @return the flags
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static byte[] getFlags(final Path file,
+  private byte[] getFlags(Chromosome chr,
       int start,
       int end,
-      int dataOffset) throws IOException {
+      long dataOffset) throws IOException {
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+    // first get the buffer offset of the start
 
-    List<Byte> flags = new ArrayList<Byte>();
+    BlockRange range = getDataOffsets(chr, start, end, MIN_BIN_WIDTH);
 
-    try {
-      // first get the buffer offset of the start
+    ByteBuffer in = readRecords(chr,
+        range.startBlock.startOffset,
+        range.endBlock.endOffset,
+        dataOffset);
 
-      Block so = getDataOffset(in, start);
-      Block eo = getDataOffset(in, end);
+    int l = in.remaining() / READ_WIDTH_BYTES;
 
-      int l = eo.endOffset - so.startOffset + 1;
+    byte[] flags = new byte[l];
 
-      // System.err.println("ends " + Arrays.toString(so) + " " +
-      // Arrays.toString(eo)
-      // + " " + l);
+    int n = 0;
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + so.startOffset * READ_WIDTH_BYTES);
+    int p = 0;
 
-      for (int i = 0; i < l; ++i) {
-        int s = in.readInt();
-        byte flag = in.readByte();
+    for (int i = 0; i < l; ++i) {
+      int s = in.getInt(p);
 
-        // System.err.println("ha " + i + " " + s + " " + flag);
+      // System.err.println("ha " + i + " " + s + " " + flag);
 
-        if (s >= start && s <= end) {
-          flags.add(flag);
-        }
+      if (s >= start && s <= end) {
+        flags[n++] = in.get(p + READ_START_WIDTH_BYTES);
       }
-    } finally {
-      in.close();
+
+      p += READ_WIDTH_BYTES;
     }
 
-    return ArrayUtils.mapToByte(flags); //flags.stream().mapToByte(Byte::byteValue).toArray(); //flags;
+    return n == l ? flags : Arrays.copyOf(flags, n);
   }
 
 }
@@ -28,20 +28,17 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.function.IntConsumer;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.bioinformatics.genomic.Strand;
-import org.jebtk.core.Mathematics;
 import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultTreeMap;
-import org.jebtk.core.io.FileUtils;
 import org.jebtk.core.json.Json;
 
 /**
@@ -68,9 +65,6 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
    */
   public static final String FILE_EXT = "brt2";
 
-  /** The Constant FLAG_STRAND_MASK. */
-  private static final byte FLAG_STRAND_MASK = 1;
-
   /** The m reads. */
   private int mReads = -1;
 
@@ -81,7 +75,19 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
    * @param metaFile the directory
    */
   public ReadCountsFileBRT2(Path metaFile) {
-    super(metaFile);
+    this(metaFile, false);
+  }
+
+  /**
+   * Create a reader that optionally memory maps each chromosome file the
+   * first time it is queried. Reads are then decoded directly from the
+   * mapped buffer rather than with one system call per field.
+   *
+   * @param metaFile the directory
+   * @param mapped true if chromosome files should be memory mapped.
+   */
+  public ReadCountsFileBRT2(Path metaFile, boolean mapped) {
+    super(metaFile, mapped);
 
     try {
       mReads = Json.fromJson(mMetaFile).getInt("Mapped Reads");
@@ -105,6 +111,25 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
         window);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+    return getCounts(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        counts,
+        offset);
+  }
+
   /**
    * Gets the counts.
    *
@@ -117,120 +142,374 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
    */
   public int[] getCounts(Chromosome chr, int start, int end, int window)
       throws IOException {
+    int[] ret = new int[binCount(start, end, window)];
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getCounts(chr, start, end, window, ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Writes the counts into a caller supplied array. Reads are binned as they
+   * are decoded so no intermediate arrays of starts are created.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int getCounts(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+
+    getFile(chr, window, getFileExt());
 
     // System.err.println("brt2 file " + file);
 
-    int dataOffset = mOffsetMap.get(chr);
+    long dataOffset = mOffsetMap.get(chr);
+
+    int startBin = start / window;
+    int l = binCount(start, end, window);
 
-    RandomAccessFile in = FileUtils.newRandomAccess(file);
+    Arrays.fill(counts, offset, offset + l, 0);
 
-    List<Integer> starts = new ArrayList<Integer>(1000);
+    BinTreeIndex index = getIndex(chr);
 
-    int[] ret;
-    
-    try {
-      // first get the buffer offset of the start
+    // The bins can extend beyond the region
+    int spanStart = startBin * window;
+    int spanEnd = (int) Math.min(Integer.MAX_VALUE,
+        (long) (startBin + l) * window - 1);
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    // Only the part of the bins between the first and last bins of
+    // MIN_BIN_WIDTH containing reads needs to be read
+    int occupiedStart = index.getOccupiedStart(spanStart, spanEnd);
 
-      int l = eo.endOffset - so.startOffset + 1;
+    if (occupiedStart == -1) {
+      return l;
+    }
+
+    int occupiedEnd = index.getOccupiedEnd(spanStart, spanEnd);
+
+    int level = getLevel(window);
+
+    BCMode mode = getMode();
+
+    if (window >= MIN_BIN_WIDTH && (level == -1 || mode != BCMode.COUNT)) {
+      BinSummary summary = readSummary(chr, start, end, window);
+
+      if (summary == null) {
+        summary = summarizeBins(chr, dataOffset, start, end, window);
+      }
+
+      addEmptyBins(summary, startBin, window);
+
+      for (int i = 0; i < l; ++i) {
+        counts[offset + i] = (int) summary.getValue(i, mode);
+      }
+
+      return l;
+    }
+
+    if (level != -1) {
+      // The window matches a level so read its bins directly
+      int b1 = occupiedStart / window;
+
+      ByteBuffer in = 
+          readMultiRes(chr, dataOffset, level, b1, occupiedEnd / window);
+
+      int b = offset + b1 - startBin;
+
+      while (in.hasRemaining()) {
+        counts[b++] = in.getInt();
+      }
+
+      return l;
+    }
+
+    // Higher resolution so slower to access.
+
+    BlockRange range = getDataOffsets(chr,
+        Math.max(start, occupiedStart),
+        Math.min(end, occupiedEnd),
+        window);
+
+    Block so = range.startBlock;
+    Block eo = range.endBlock;
 
-      // System.err.println("starts hmm " + start + " " + end + " " + so.width +
-      // " " +
-      // eo.width + " " + window);
+    int[] starts = new int[readCount(so, eo)];
 
-      if (window >= MIN_BIN_WIDTH) {
-        // Skip to structured block
-        in.seek(dataOffset + multiResOffset(so));
+    int n = readReads(chr,
+        so.startOffset,
+        eo.endOffset,
+        dataOffset,
+        starts,
+        null);
 
-        int b = so.bin;
+    int s;
 
-        int v;
+    for (int i = 0; i < n; ++i) {
+      s = starts[i];
 
-        while (b <= eo.bin) {
-          v = in.readInt();
+      // Group by window size
+      if (s >= start && s <= end) {
+        ++counts[offset + s / window - startBin];
+      }
+    }
 
-          starts.add(v);
+    return l;
+  }
 
-          ++b;
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
+
+    int level = getLevel(window);
+
+    for (RegionCluster cluster : cluster(regions, window)) {
+      Chromosome chr = cluster.getChr();
+
+      if (window >= MIN_BIN_WIDTH
+          && (level == -1 || getMode() != BCMode.COUNT)) {
+        // Not a stored level, or the bins are not totals, so fall back to
+        // querying each region
+        for (int i : cluster.getIndices()) {
+          ret[i] = getCounts(regions.get(i), window);
         }
 
-        ret = getCounts(starts, so, start, end, window);
-      } else {
-        // Higher resolution so slower to access.
+        continue;
+      }
 
-        // To read the starts, first skip to dataOffset (the byte position
-        // after the R Tree where the counts are written sequentially),
-        // then skip to the array index (i * 4 bytes (width of int)).
-        in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+      getFile(chr, window, getFileExt());
 
-        int s;
+      long dataOffset = mOffsetMap.get(chr);
 
-        for (int i = 0; i < l; ++i) {
-          // Skip start
-          s = in.readInt();
+      if (isEmpty(chr, cluster.getStart(), cluster.getEnd(), window)) {
+        // No reads so every bin is zero
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
 
-          // Skip flags
-          in.readByte();
+          ret[i] = 
+              new int[binCount(region.getStart(), region.getEnd(), window)];
+        }
+
+        continue;
+      }
+
+      if (level != -1) {
+        // Read the bins of the whole cluster in one go and then copy out
+        // each region.
+        int clusterBin = cluster.getStart() / window;
+
+        ByteBuffer in = readMultiRes(chr,
+            dataOffset,
+            level,
+            clusterBin,
+            cluster.getEnd() / window);
+
+        int n = in.remaining() / MULTI_RES_WIDTH_BYTES;
+
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
+
+          int startBin = region.getStart() / window;
+
+          int[] counts = 
+              new int[binCount(region.getStart(), region.getEnd(), window)];
+
+          int b = startBin - clusterBin;
 
-          if (s >= start && s <= end) {
-            starts.add(s);
+          for (int j = 0; j < counts.length && b < n; ++j) {
+            counts[j] = in.getInt(b++ * MULTI_RES_WIDTH_BYTES);
           }
+
+          ret[i] = counts;
+        }
+      } else {
+        // Decode the reads of the whole cluster once, then bin the slice
+        // belonging to each region. Empty bins at either end of the cluster
+        // are skipped.
+        BinTreeIndex index = getIndex(chr);
+
+        int clusterStart = Math.max(cluster.getStart(),
+            index.getOccupiedStart(cluster.getStart(), cluster.getEnd()));
+        int clusterEnd = Math.min(cluster.getEnd(),
+            index.getOccupiedEnd(cluster.getStart(), cluster.getEnd()));
+
+        BlockRange range =
+            getDataOffsets(chr, clusterStart, clusterEnd, window);
+
+        int[] starts = getStarts(chr,
+            range.startBlock,
+            range.endBlock,
+            clusterStart,
+            clusterEnd,
+            dataOffset);
+
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
+
+          int start = region.getStart();
+          int end = region.getEnd();
+
+          int from = lowerBound(starts, 0, starts.length, start);
+          int to = lowerBound(starts, from, starts.length, end + 1);
+
+          int[] counts = new int[binCount(start, end, window)];
+
+          binCounts(starts, from, to, start, end, window, counts, 0);
+
+          ret[i] = counts;
         }
+      }
+    }
+
+    return Arrays.asList(ret);
+  }
+
+  /**
+   * Returns the count, sum, sum of squares, min and max of the read counts
+   * of the MIN_BIN_WIDTH bins within each window, or of the window itself if
+   * it is smaller. Summaries are read from the summary section of version 3
+   * files and otherwise derived from the multi resolution counts, so no
+   * reads are decoded for windows of at least MIN_BIN_WIDTH. Bins without
+   * reads count as 0, so the mean is over every bin a window covers as in
+   * the BC format.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the summary of each window.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    getFile(chr, window, getFileExt());
+
+    if (isEmpty(chr, start, end, window)) {
+      return new BinSummary(binCount(start, end, window));
+    }
 
-        // Group by window size
-        ret = binCounts(starts, start, end, window);
+    if (window >= MIN_BIN_WIDTH) {
+      BinSummary ret = readSummary(chr, start, end, window);
+
+      if (ret == null) {
+        ret = summarizeBins(chr, mOffsetMap.get(chr), start, end, window);
       }
-    } finally {
-      in.close();
+
+      return addEmptyBins(ret, start / window, window);
+    }
+
+    // Each window lies within a single bin so it is its own summary
+    int[] counts = getCounts(chr, start, end, window);
+
+    BinSummary ret = new BinSummary(counts.length);
+
+    for (int i = 0; i < counts.length; ++i) {
+      ret.add(i, counts[i]);
     }
 
     return ret;
   }
 
   /**
-   * Gets the counts.
+   * Count the MIN_BIN_WIDTH bins of each window that are missing from a
+   * summary as bins of 0 reads. Bins without reads have no node in the tree
+   * and older version 3 files do not count them in their summaries.
+   *
+   * @param summary the summary of each window.
+   * @param startBin the bin of the first window.
+   * @param window the window, at least MIN_BIN_WIDTH.
+   * @return the summary
+   */
+  private static BinSummary addEmptyBins(BinSummary summary,
+      int startBin,
+      int window) {
+    for (int i = 0; i < summary.size(); ++i) {
+      long empty = windowBins(startBin + i, window) - summary.getCount(i);
+
+      if (empty > 0) {
+        summary.add(i, empty, 0, 0, 0, 0);
+      }
+    }
+
+    return summary;
+  }
+
+  /**
+   * Returns the number of MIN_BIN_WIDTH bins whose start lies in a window.
+   *
+   * @param bin the bin of the window
+   * @param window the window, at least MIN_BIN_WIDTH.
+   * @return the number of bins
+   */
+  private static long windowBins(int bin, int window) {
+    long first = ((long) bin * window + MIN_BIN_WIDTH - 1) / MIN_BIN_WIDTH;
+    long last =
+        ((long) (bin + 1) * window + MIN_BIN_WIDTH - 1) / MIN_BIN_WIDTH;
+
+    return last - first;
+  }
+
+  /**
+   * Summarize the read counts of the MIN_BIN_WIDTH bins within each window
+   * using the multi resolution counts, for files without stored summaries.
+   * Each bin is combined into the window containing its start.
    *
-   * @param counts the counts
-   * @param startBlock the start block
+   * @param chr the chr
+   * @param dataOffset The byte offset in the file where the data begins.
    * @param start the start
    * @param end the end
-   * @param window the window
-   * @return the counts
+   * @param window the window, at least MIN_BIN_WIDTH.
+   * @return the summary of each window.
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static int[] getCounts(final List<Integer> counts,
-      Block startBlock,
+  private BinSummary summarizeBins(Chromosome chr,
+      long dataOffset,
       int start,
       int end,
-      int window) {
-    int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
+      int window) throws IOException {
+    int sb = start / window;
+    int n = end / window - sb + 1;
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    // The bins covering the windows
+    int b1 = (int) ((long) sb * window / MIN_BIN_WIDTH);
+    int b2 = (int) (((long) (sb + n) * window - 1) / MIN_BIN_WIDTH);
 
-    Map<Integer, Integer> map = DefaultTreeMap.create(0);
+    ByteBuffer in = readMultiRes(chr, dataOffset, MIN_BIN_LEVEL, b1, b2);
 
-    int rs = startBlock.bin; // - startBin;
+    BinSummary ret = new BinSummary(n);
 
-    for (int value : counts) {
-      map.put(rs, map.get(rs) + value);
+    int c;
 
-      ++rs;
-    }
+    for (int j = b1; in.hasRemaining(); ++j) {
+      c = in.getInt();
 
-    List<Integer> ret = Mathematics.intZeros(l);
+      int b = (int) ((long) j * MIN_BIN_WIDTH / window) - sb;
 
-    for (int bin : map.keySet()) {
-      if (bin >= startBin && bin <= endBin) {
-        ret.set(bin - startBin, map.get(bin));
+      if (b >= 0 && b < n) {
+        ret.add(b, c);
       }
     }
 
-    return ArrayUtils.mapToInt(ret);
+    return ret;
   }
 
   /*
@@ -244,15 +523,127 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getFile(chr, window, getFileExt());
 
-    int[] starts = getStarts(file,
-        region.getStart(),
-        region.getEnd(),
+    BinTreeIndex index = getIndex(chr);
+
+    // Reads can only start in the occupied part of the region
+    int start = index.getOccupiedStart(region.getStart(), region.getEnd());
+
+    if (start == -1) {
+      return ArrayUtils.EMPTY_INT_ARRAY;
+    }
+
+    int end = index.getOccupiedEnd(region.getStart(), region.getEnd());
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    Block so = range.startBlock;
+    Block eo = range.endBlock;
+
+    return getStarts(chr, so, eo, start, end, mOffsetMap.get(chr));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#forEachStart(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * java.util.function.IntConsumer)
+   */
+  @Override
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, window, getFileExt());
+
+    BinTreeIndex index = getIndex(chr);
+
+    // Reads can only start in the occupied part of the region
+    int start = index.getOccupiedStart(region.getStart(), region.getEnd());
+
+    if (start == -1) {
+      return;
+    }
+
+    int end = index.getOccupiedEnd(region.getStart(), region.getEnd());
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    long first = range.startBlock.startOffset;
+    long last = range.endBlock.endOffset;
+
+    long dataOffset = mOffsetMap.get(chr);
+
+    int[] starts = new int[(int) Math.max(0,
+        Math.min(CURSOR_READS, last - first + 1))];
+
+    int s;
+
+    // Decode a batch of reads at a time so memory use is fixed
+    for (long r = first; r <= last; r += CURSOR_READS) {
+      int l = readReads(chr,
+          r,
+          Math.min(last, r + CURSOR_READS - 1),
+          dataOffset,
+          starts,
+          null);
+
+      for (int i = 0; i < l; ++i) {
+        s = starts[i];
+
+        if (s > end) {
+          // Reads are sorted so none of the remaining reads can be in the
+          // region
+          return;
+        }
+
+        if (s >= start) {
+          consumer.accept(s);
+        }
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSparseCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public SparseCounts getSparseCounts(GenomicRegion region, int window)
+      throws IOException {
+    if (window >= MIN_BIN_WIDTH) {
+      // Counts come from whole bins of the tree and there are few of them
+      return super.getSparseCounts(region, window);
+    }
+
+    // Each read fills at most one bin
+    SparseCounts.Builder ret = new SparseCounts.Builder(region,
         window,
-        mOffsetMap.get(chr));
+        (int) Math.min(Integer.MAX_VALUE, estimateReadCount(region)));
 
-    return starts;
+    forEachStart(region, window, ret);
+
+    return ret.build();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#estimateReadCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion)
+   */
+  @Override
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, 1, getFileExt());
+
+    return estimateReadCount(chr, region.getStart(), region.getEnd());
   }
 
   /*
@@ -266,15 +657,85 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
       throws IOException {
     Chromosome chr = region.getChr();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    getFile(chr, window, getFileExt());
 
-    Strand[] strands = getStrands(file,
-        region.getStart(),
-        region.getEnd(),
-        window,
-        mOffsetMap.get(chr));
+    BinTreeIndex index = getIndex(chr);
+
+    // Reads can only start in the occupied part of the region
+    int start = index.getOccupiedStart(region.getStart(), region.getEnd());
+
+    if (start == -1) {
+      return EMPTY_STRAND_ARRAY;
+    }
+
+    int end = index.getOccupiedEnd(region.getStart(), region.getEnd());
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
 
-    return strands;
+    Block so = range.startBlock;
+    Block eo = range.endBlock;
+
+    return StrandedStarts.toStrands(getFlags(chr, so, eo, start, end, mOffsetMap.get(chr)));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandedStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public StrandedStarts getStrandedStarts(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, window, getFileExt());
+
+    BinTreeIndex index = getIndex(chr);
+
+    // Reads can only start in the occupied part of the region
+    int start = index.getOccupiedStart(region.getStart(), region.getEnd());
+
+    if (start == -1) {
+      return StrandedStarts.create(region,
+          window,
+          ArrayUtils.EMPTY_INT_ARRAY,
+          new byte[0],
+          0);
+    }
+
+    int end = index.getOccupiedEnd(region.getStart(), region.getEnd());
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    Block so = range.startBlock;
+    Block eo = range.endBlock;
+
+    int[] starts = new int[readCount(so, eo)];
+    byte[] flags = new byte[starts.length];
+
+    int l = readReads(chr,
+        so.startOffset,
+        eo.endOffset,
+        mOffsetMap.get(chr),
+        starts,
+        flags);
+
+    int n = 0;
+
+    int s;
+
+    // Keep the reads within the region, compacting in place
+    for (int i = 0; i < l; ++i) {
+      s = starts[i];
+
+      if (s >= start && s <= end) {
+        starts[n] = s;
+        flags[n++] = flags[i];
+      }
+    }
+
+    return StrandedStarts.create(region, window, starts, flags, n);
   }
 
   /*
@@ -288,160 +749,181 @@ public class ReadCountsFileBRT2 extends ReadCountsFileBinTree {
   }
 
   /**
-   * Get the counts from the file,.
+   * Returns the extension of the chromosome files read by this reader.
    *
-   * @param file The r tree binary file.
-   * @param start The 1 based genomic start coordinate.
-   * @param end The 1 based genomic end coordinate.
-   * @param window The size of the window being viewed.
-   * @param dataOffset The byte offset in the file where the reads begin.
-   * @return the starts
-   * @throws IOException Signals that an I/O exception has occurred.
+   * @return the file extension
    */
-  private static int[] getStarts(final Path file,
-      int start,
-      int end,
-      int window,
-      int dataOffset) throws IOException {
-
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
-
-    List<Integer> starts = new ArrayList<Integer>(1000);
+  protected String getFileExt() {
+    return FILE_EXT;
+  }
 
-    Block so;
-    Block eo;
+  /**
+   * Returns the number of reads between two blocks.
+   *
+   * @param so the start block
+   * @param eo the end block
+   * @return the read count
+   */
+  protected static int readCount(Block so, Block eo) {
+    return (int) Math.max(0, eo.endOffset - so.startOffset + 1);
+  }
 
-    // int readLength;
+  /**
+   * Decode the starts, and optionally the flags, of a run of reads, usually
+   * every read between two blocks. Subclasses storing reads in a different
+   * layout override this method; the tree and multi resolution counts are
+   * shared.
+   *
+   * @param chr the chr
+   * @param first the index of the first read.
+   * @param last the index of the last read.
+   * @param dataOffset The byte offset in the file where the data begins.
+   * @param starts the array to write the starts to. Must have room for
+   *          every read from first to last.
+   * @param flags the array to write the flags to, or null if the flags are
+   *          not needed.
+   * @return the number of reads decoded.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected int readReads(Chromosome chr,
+      long first,
+      long last,
+      long dataOffset,
+      int[] starts,
+      byte[] flags) throws IOException {
+    ByteBuffer in = readRecords(chr, first, last, dataOffset);
 
-    try {
-      // readLength = in.readInt();
+    int l = in.remaining() / READ_WIDTH_BYTES;
 
-      // first get the buffer offset of the start
-      so = getDataOffset(in, start, window);
-      eo = getDataOffset(in, end, window);
+    int p = 0;
 
-      int l = eo.endOffset - so.startOffset + 1;
+    for (int i = 0; i < l; ++i) {
+      starts[i] = in.getInt(p);
 
-      // System.err.println("starts " + start + " " + end + " " +
-      // Arrays.toString(so)
-      // + " " + Arrays.toString(eo) + " " + l);
+      p += READ_WIDTH_BYTES;
+    }
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+    if (flags != null) {
+      p = READ_START_WIDTH_BYTES;
 
       for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
-
-        int s = in.readInt();
-        // int e = s + readLength;
+        flags[i] = in.get(p);
 
-        // skip flags
-        in.readByte();
-
-        // System.err.println("ha " + i + " " + s + " " + start + " " + end);
-
-        // if ((s >= start && s <= end) || (e >= start && e <= end)) {
-        if (s >= start && s <= end) {
-          starts.add(s);
-        }
+        p += READ_WIDTH_BYTES;
       }
-    } finally {
-      in.close();
     }
 
-    // System.err.println("starts " + starts.size() + " " + start + " " +
-    // so.startOffset + " " + so.bin + " " + eo.endOffset + " " + eo.bin + " " +
-    // window);
+    return l;
+  }
 
-    return ArrayUtils.mapToInt(starts);
+  /**
+   * Read the raw records of a run of reads. To read the starts, first skip
+   * to dataOffset (the byte position after the R Tree where the counts are
+   * written sequentially), then skip to the record index.
+   *
+   * @param chr the chr
+   * @param first the index of the first read.
+   * @param last the index of the last read.
+   * @param dataOffset The byte offset in the file where the reads begin.
+   * @return the records
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer readRecords(Chromosome chr,
+      long first,
+      long last,
+      long dataOffset) throws IOException {
+    int l = (int) Math.max(0, last - first + 1);
+
+    return read(chr,
+        dataOffset + RAW_OFFSET + first * READ_WIDTH_BYTES,
+        l * READ_WIDTH_BYTES);
   }
 
   /**
-   * Gets the strands.
+   * Get the starts of the reads between two blocks that fall within a region.
    *
-   * @param file the file
-   * @param start the start
-   * @param end the end
-   * @param window the window
-   * @param dataOffset the data offset
-   * @return the strands
+   * @param chr the chr
+   * @param so the start block
+   * @param eo the end block
+   * @param start The 1 based genomic start coordinate.
+   * @param end The 1 based genomic end coordinate.
+   * @param dataOffset The byte offset in the file where the reads begin.
+   * @return the starts
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static Strand[] getStrands(final Path file,
+  private int[] getStarts(Chromosome chr,
+      Block so,
+      Block eo,
       int start,
       int end,
-      int window,
-      int dataOffset) throws IOException {
+      long dataOffset) throws IOException {
 
-    byte[] props = getFlags(file, start, end, window, dataOffset);
+    int[] starts = new int[readCount(so, eo)];
 
-    // System.err.println("flags:" + props);
+    int l = readReads(chr,
+        so.startOffset,
+        eo.endOffset,
+        dataOffset,
+        starts,
+        null);
 
-    Strand[] strands = new Strand[props.length];
+    int n = 0;
 
-    for (int i = 0; i < props.length; ++i) {
-      if ((props[i] & FLAG_STRAND_MASK) == FLAG_STRAND_MASK) {
-        strands[i] = Strand.ANTISENSE;
-      } else {
-        strands[i] = Strand.SENSE;
+    int s;
+
+    for (int i = 0; i < l; ++i) {
+      s = starts[i];
+
+      if (s >= start && s <= end) {
+        starts[n++] = s;
       }
     }
 
-    return strands;
+    // System.err.println("starts " + starts.size() + " " + start + " " +
+    // so.startOffset + " " + so.bin + " " + eo.endOffset + " " + eo.bin + " " +
+    // window);
+
+    return n == l ? starts : Arrays.copyOf(starts, n);
   }
 
   /**
-   * Extract the 1 byte param field associated with a read.
+   * Extract the 1 byte param field associated with each read between two
+   * blocks that falls within a region.
    *
-   * @param file the file
+   * @param chr the chr
+   * @param so the start block
+   * @param eo the end block
    * @param start the start
    * @param end the end
-   * @param window the window
    * @param dataOffset the data offset
    * @return the flags
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static byte[] getFlags(final Path file,
+  private byte[] getFlags(Chromosome chr,
+      Block so,
+      Block eo,
       int start,
       int end,
-      int window,
-      int dataOffset) throws IOException {
-
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
-
-    List<Byte> flags = new ArrayList<Byte>();
-
-    try {
-      // first get the buffer offset of the start
+      long dataOffset) throws IOException {
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    int[] starts = new int[readCount(so, eo)];
+    byte[] flags = new byte[starts.length];
 
-      int l = eo.endOffset - so.startOffset + 1;
+    int l = readReads(chr,
+        so.startOffset,
+        eo.endOffset,
+        dataOffset,
+        starts,
+        flags);
 
-      // System.err.println("ends " + Arrays.toString(so) + " " +
-      // Arrays.toString(eo)
-      // + " " + l);
+    int n = 0;
 
-      // To read the starts, first skip to dataOffset (the byte position
-      // after the R Tree where the counts are written sequentially),
-      // then skip to the array index (i * 4 bytes (width of int)).
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
-
-      for (int i = 0; i < l; ++i) {
-        int s = in.readInt();
-        byte flag = in.readByte();
-
-        if (s >= start && s <= end) {
-          flags.add(flag);
-        }
+    for (int i = 0; i < l; ++i) {
+      if (starts[i] >= start && starts[i] <= end) {
+        flags[n++] = flags[i];
       }
-    } finally {
-      in.close();
     }
 
-    return ArrayUtils.mapToByte(flags);
+    return n == l ? flags : Arrays.copyOf(flags, n);
   }
 }
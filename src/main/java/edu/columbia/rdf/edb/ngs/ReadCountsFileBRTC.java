@@ -0,0 +1,665 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+
+/**
+ * Reads a compressed version of the BRT2 format. The header, tree and multi
+ * resolution counts are identical to BRT2 but the reads are stored in
+ * chunks of {@link #DEFAULT_CHUNK_READS} reads. Each chunk holds the first
+ * start as a 4 byte int, the number of bits needed for the largest gap
+ * between neighbouring starts (1 byte), the gaps bit packed at that width
+ * and then the flags, packed 1 bit per read when every flag is 0 or 1.
+ * Fixed width gaps can be unpacked without branching on each byte.
+ *
+ * After the multi resolution counts, the reads section begins with the
+ * number of reads per chunk (int), the number of reads (long) and the
+ * position of the chunk table (long). The chunks follow and the table of
+ * chunk offsets, relative to the first chunk, is at the end of the file.
+ * The table has one more entry than there are chunks so that the size of
+ * each chunk is known. Since chunks are a fixed number of reads, the reads
+ * between two tree nodes can be decoded without reading any other chunks.
+ *
+ * Files are created from BRT2 files using {@link #convert(Path, Path)}.
+ *
+ * @author Antony Holmes
+ */
+public class ReadCountsFileBRTC extends ReadCountsFileBRT2 {
+
+  /**
+   * The constant FILE_EXT.
+   */
+  public static final String FILE_EXT = "brtc";
+
+  /** The default number of reads in a chunk. */
+  public static final int DEFAULT_CHUNK_READS = 128;
+
+  /** The chunk size, read count and chunk table position fields. */
+  public static final int READS_HEADER_BYTES = 4 + 8 + 8;
+
+  /** The flags of a chunk are stored as 1 byte per read. */
+  private static final byte FLAGS_BYTES = 0;
+
+  /** The flags of a chunk are stored as 1 bit per read. */
+  private static final byte FLAGS_BITS = 1;
+
+  /** The layout of the reads section of each chromosome file. */
+  private final Map<Chromosome, Chunks> mChunksMap =
+      new ConcurrentHashMap<Chromosome, Chunks>();
+
+  /**
+   * Instantiates a new read counts file.
+   *
+   * @param metaFile the directory
+   */
+  public ReadCountsFileBRTC(Path metaFile) {
+    this(metaFile, false);
+  }
+
+  /**
+   * Create a reader that optionally memory maps each chromosome file the
+   * first time it is queried.
+   *
+   * @param metaFile the directory
+   * @param mapped true if chromosome files should be memory mapped.
+   */
+  public ReadCountsFileBRTC(Path metaFile, boolean mapped) {
+    super(metaFile, mapped);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#getFileExt()
+   */
+  @Override
+  protected String getFileExt() {
+    return FILE_EXT;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBRT2#readReads(org.jebtk.
+   * bioinformatics.genomic.Chromosome, long, long, long, int[], byte[])
+   */
+  @Override
+  protected int readReads(Chromosome chr,
+      long first,
+      long last,
+      long dataOffset,
+      int[] starts,
+      byte[] flags) throws IOException {
+    Chunks chunks = getChunks(chr, dataOffset);
+
+    first = Math.max(0, first);
+    last = Math.min(chunks.mReads - 1, last);
+
+    if (last < first) {
+      return 0;
+    }
+
+    int k = chunks.mChunkReads;
+
+    long c1 = first / k;
+    long c2 = last / k;
+
+    int nc = (int) (c2 - c1 + 1);
+
+    // The offsets of the chunks and of the end of the last chunk
+    ByteBuffer table = read(chr, chunks.mTableOffset + c1 * 8, (nc + 1) * 8);
+
+    long o1 = table.getLong(0);
+
+    // 8 extra bytes, from the chunk table, so that gaps can be unpacked a
+    // word at a time without checking for the end of the buffer
+    ByteBuffer in = read(chr,
+        chunks.mChunksOffset + o1,
+        (int) (table.getLong(nc * 8) - o1) + 8);
+
+    // Decoding from an array is faster than from a buffer
+    byte[] buf;
+    int base;
+
+    if (in.hasArray()) {
+      buf = in.array();
+      base = in.arrayOffset() + in.position();
+    } else {
+      buf = new byte[in.remaining()];
+      base = 0;
+
+      in.get(buf);
+    }
+
+    int n = (int) (last - first + 1);
+
+    // Index in the output of the first read of the current chunk
+    int j = (int) (c1 * k - first);
+
+    int[] gaps = new int[(k + 7) & ~7];
+
+    for (int c = 0; c < nc; ++c) {
+      int p = base + (int) (table.getLong(c * 8) - o1);
+
+      int l = (int) Math.min(k, chunks.mReads - (c1 + c) * k);
+
+      decodeChunk(buf, p, l, j, n, starts, flags, gaps);
+
+      j += l;
+    }
+
+    return n;
+  }
+
+  /**
+   * Decode one chunk, keeping only the reads that fall in the output.
+   *
+   * @param buf the buffer containing the chunk.
+   * @param p the position of the chunk in the buffer.
+   * @param l the number of reads in the chunk.
+   * @param j the index in the output of the first read in the chunk, which
+   *          may be negative.
+   * @param n the number of reads in the output.
+   * @param starts the starts
+   * @param flags the flags, or null if they are not needed.
+   * @param gaps a buffer to unpack the gaps into, with room for l rounded
+   *          up to a multiple of 8 gaps.
+   */
+  private static void decodeChunk(final byte[] buf,
+      int p,
+      int l,
+      int j,
+      int n,
+      int[] starts,
+      byte[] flags,
+      int[] gaps) {
+    // The reads of the chunk that are in the output
+    int from = Math.max(0, -j);
+    int to = Math.min(l, n - j);
+
+    int s = getInt(buf, p);
+
+    int w = buf[p + 4];
+
+    // Where the gaps start and end
+    int g = p + 5;
+    int ge = g + ((l - 1) * w + 7) / 8;
+
+    if (w == 0) {
+      // Every read has the same start
+      for (int i = from; i < to; ++i) {
+        starts[j + i] = s;
+      }
+    } else {
+      unpack(buf, g, w, l - 1, gaps);
+
+      // Gap i is between read i and read i + 1
+      int i = 0;
+
+      for (; i < from; ++i) {
+        s += gaps[i];
+      }
+
+      for (; i < to; ++i) {
+        starts[j + i] = s;
+
+        s += gaps[i];
+      }
+    }
+
+    if (flags == null) {
+      return;
+    }
+
+    p = ge;
+
+    if (buf[p++] == FLAGS_BITS) {
+      for (int i = from; i < to; ++i) {
+        flags[j + i] = (byte) ((buf[p + (i >> 3)] >> (i & 7)) & 1);
+      }
+    } else {
+      for (int i = from; i < to; ++i) {
+        flags[j + i] = buf[p + i];
+      }
+    }
+  }
+
+  /**
+   * Unpack fixed width gaps. Up to 8 bits, each 8 gaps fill a whole number
+   * of bytes and are extracted from a single 8 byte word with independent
+   * shifts. Wider gaps are taken from the top of an accumulator that is
+   * refilled 4 bytes at a time. The buffer must have at least 8 readable
+   * bytes after the gaps.
+   *
+   * @param buf the buffer
+   * @param q the index of the first byte of the gaps.
+   * @param w the bits per gap
+   * @param l the number of gaps
+   * @param gaps the array to write the gaps to. Must have room for l
+   *          rounded up to a multiple of 8 gaps.
+   */
+  private static void unpack(final byte[] buf,
+      int q,
+      int w,
+      int l,
+      int[] gaps) {
+    long mask = (1L << w) - 1;
+
+    if (w <= 8) {
+      for (int i = 0; i < l; i += 8) {
+        long x = getLong(buf, q);
+
+        gaps[i] = (int) ((x >>> (64 - w)) & mask);
+        gaps[i + 1] = (int) ((x >>> (64 - 2 * w)) & mask);
+        gaps[i + 2] = (int) ((x >>> (64 - 3 * w)) & mask);
+        gaps[i + 3] = (int) ((x >>> (64 - 4 * w)) & mask);
+        gaps[i + 4] = (int) ((x >>> (64 - 5 * w)) & mask);
+        gaps[i + 5] = (int) ((x >>> (64 - 6 * w)) & mask);
+        gaps[i + 6] = (int) ((x >>> (64 - 7 * w)) & mask);
+        gaps[i + 7] = (int) ((x >>> (64 - 8 * w)) & mask);
+
+        q += w;
+      }
+    } else {
+      long acc = 0;
+      int bits = 0;
+
+      for (int i = 0; i < l; ++i) {
+        if (bits < w) {
+          acc = (acc << 32) | (getInt(buf, q) & 0xFFFFFFFFL);
+          bits += 32;
+          q += 4;
+        }
+
+        bits -= w;
+
+        gaps[i] = (int) ((acc >>> bits) & mask);
+      }
+    }
+  }
+
+  /**
+   * Read a big endian long from a buffer.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte.
+   * @return the long
+   */
+  private static long getLong(final byte[] buf, int p) {
+    return ((long) getInt(buf, p) << 32) | (getInt(buf, p + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Read a big endian int from a buffer.
+   *
+   * @param buf the buffer
+   * @param p the index of the first byte.
+   * @return the int
+   */
+  private static int getInt(final byte[] buf, int p) {
+    return (buf[p] << 24) | ((buf[p + 1] & 0xFF) << 16)
+        | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+  }
+
+  /**
+   * Returns the layout of the reads section of a chromosome file, reading
+   * it the first time it is requested.
+   *
+   * @param chr the chr
+   * @param dataOffset The byte offset in the file where the data begins.
+   * @return the chunks
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Chunks getChunks(Chromosome chr, long dataOffset)
+      throws IOException {
+    Chunks ret = mChunksMap.get(chr);
+
+    if (ret == null) {
+      long offset = dataOffset + RAW_OFFSET;
+
+      ByteBuffer in = read(chr, offset, READS_HEADER_BYTES);
+
+      ret = new Chunks(in.getInt(),
+          in.getLong(),
+          offset + READS_HEADER_BYTES,
+          in.getLong());
+
+      mChunksMap.put(chr, ret);
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBinTree#close()
+   */
+  @Override
+  public void close() {
+    super.close();
+
+    mChunksMap.clear();
+  }
+
+  /**
+   * Convert a BRT2 chromosome file to the compressed format.
+   *
+   * @param brt2File the BRT2 file
+   * @param file the compressed file to create.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void convert(Path brt2File, Path file) throws IOException {
+    convert(brt2File, file, DEFAULT_CHUNK_READS);
+  }
+
+  /**
+   * Convert a BRT2 chromosome file to the compressed format. The reads are
+   * streamed so only the chunk table is held in memory.
+   *
+   * @param brt2File the BRT2 file
+   * @param file the compressed file to create.
+   * @param chunkReads the number of reads per chunk.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void convert(Path brt2File, Path file, int chunkReads)
+      throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(brt2File)));
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file)));
+
+    long dataOffset;
+
+    long tableOffset;
+
+    // Where the summaries of a version 3 file start in each file
+    long summaryOffset = -1;
+    long newSummaryOffset = -1;
+
+    try {
+      // The header decides how long the header, tree and multi resolution
+      // counts are. They are copied unchanged.
+      int field = in.readInt();
+
+      out.writeInt(field);
+
+      if (field == VERSION_3_MARKER) {
+        out.writeInt(in.readInt());
+
+        dataOffset = in.readLong();
+
+        out.writeLong(dataOffset);
+
+        copy(in, out, GENOME.length);
+
+        // Patched once the chunks are written
+        summaryOffset = in.readLong();
+
+        out.writeLong(0);
+
+        copy(in, out, dataOffset + RAW_OFFSET - HEADER_OFFSET_BYTES_V3);
+      } else if (field == VERSION_2_MARKER) {
+        out.writeInt(in.readInt());
+
+        dataOffset = in.readLong();
+
+        out.writeLong(dataOffset);
+
+        copy(in, out, dataOffset + RAW_OFFSET - 16);
+      } else {
+        dataOffset = in.readInt();
+
+        out.writeInt((int) dataOffset);
+
+        copy(in, out, dataOffset + RAW_OFFSET - 8);
+      }
+
+      long readsEnd =
+          summaryOffset != -1 ? summaryOffset : Files.size(brt2File);
+
+      long reads = (readsEnd - dataOffset - RAW_OFFSET) / READ_WIDTH_BYTES;
+
+      int chunks = (int) ((reads + chunkReads - 1) / chunkReads);
+
+      long[] table = new long[chunks + 1];
+
+      out.writeInt(chunkReads);
+      out.writeLong(reads);
+
+      // Patched once the chunks are written
+      out.writeLong(0);
+
+      int[] starts = new int[chunkReads];
+      byte[] flags = new byte[chunkReads];
+
+      // Big enough for the worst case chunk
+      byte[] buf = new byte[4 + 1 + 4 * chunkReads + 1 + chunkReads];
+
+      long p = 0;
+
+      for (int c = 0; c < chunks; ++c) {
+        int l = (int) Math.min(chunkReads, reads - (long) c * chunkReads);
+
+        for (int i = 0; i < l; ++i) {
+          starts[i] = in.readInt();
+          flags[i] = in.readByte();
+        }
+
+        table[c] = p;
+
+        int n = encodeChunk(starts, flags, l, buf);
+
+        out.write(buf, 0, n);
+
+        p += n;
+      }
+
+      table[chunks] = p;
+
+      for (long t : table) {
+        out.writeLong(t);
+      }
+
+      tableOffset = dataOffset + RAW_OFFSET + READS_HEADER_BYTES + p;
+
+      if (summaryOffset != -1) {
+        // The summaries follow the chunk table unchanged
+        newSummaryOffset = tableOffset + (long) table.length * 8;
+
+        copy(in, out, Files.size(brt2File) - summaryOffset);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+
+    try {
+      raf.seek(dataOffset + RAW_OFFSET + 4 + 8);
+      raf.writeLong(tableOffset);
+
+      if (newSummaryOffset != -1) {
+        // The summary offset is the last field of the header
+        raf.seek(HEADER_OFFSET_BYTES_V3 - 8);
+        raf.writeLong(newSummaryOffset);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Encode one chunk.
+   *
+   * @param starts the starts in ascending order.
+   * @param flags the flags
+   * @param l the number of reads.
+   * @param buf the buffer to encode the chunk into.
+   * @return the number of bytes used.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static int encodeChunk(int[] starts, byte[] flags, int l, byte[] buf)
+      throws IOException {
+    ByteBuffer out = ByteBuffer.wrap(buf);
+
+    out.putInt(starts[0]);
+
+    int max = 0;
+
+    for (int i = 1; i < l; ++i) {
+      int d = starts[i] - starts[i - 1];
+
+      if (d < 0) {
+        throw new IOException("Reads are not sorted by start.");
+      }
+
+      max = Math.max(max, d);
+    }
+
+    int w = 32 - Integer.numberOfLeadingZeros(max);
+
+    out.put((byte) w);
+
+    if (w > 0) {
+      // Pack the gaps most significant bit first
+      long acc = 0;
+      int n = 0;
+
+      for (int i = 1; i < l; ++i) {
+        acc = (acc << w) | (starts[i] - starts[i - 1]);
+        n += w;
+
+        while (n >= 8) {
+          out.put((byte) (acc >>> (n - 8)));
+          n -= 8;
+        }
+      }
+
+      if (n > 0) {
+        out.put((byte) (acc << (8 - n)));
+      }
+    }
+
+    boolean bits = true;
+
+    for (int i = 0; i < l; ++i) {
+      if ((flags[i] & ~1) != 0) {
+        bits = false;
+        break;
+      }
+    }
+
+    if (bits) {
+      out.put(FLAGS_BITS);
+
+      int p = out.position();
+
+      int n = (l + 7) / 8;
+
+      Arrays.fill(buf, p, p + n, (byte) 0);
+
+      for (int i = 0; i < l; ++i) {
+        buf[p + (i >> 3)] |= flags[i] << (i & 7);
+      }
+
+      out.position(p + n);
+    } else {
+      out.put(FLAGS_BYTES);
+      out.put(flags, 0, l);
+    }
+
+    return out.position();
+  }
+
+  /**
+   * Copy a number of bytes between streams.
+   *
+   * @param in the in
+   * @param out the out
+   * @param n the number of bytes to copy.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void copy(DataInputStream in, DataOutputStream out, long n)
+      throws IOException {
+    byte[] buf = new byte[8192];
+
+    while (n > 0) {
+      int l = in.read(buf, 0, (int) Math.min(buf.length, n));
+
+      if (l == -1) {
+        throw new EOFException();
+      }
+
+      out.write(buf, 0, l);
+
+      n -= l;
+    }
+  }
+
+  /**
+   * The layout of the reads section of a chromosome file.
+   */
+  private static class Chunks {
+
+    /** The reads per chunk. */
+    private final int mChunkReads;
+
+    /** The number of reads. */
+    private final long mReads;
+
+    /** Where the first chunk starts. */
+    private final long mChunksOffset;
+
+    /** Where the chunk table starts. */
+    private final long mTableOffset;
+
+    /**
+     * Instantiates a new chunks.
+     *
+     * @param chunkReads the chunk reads
+     * @param reads the reads
+     * @param chunksOffset the chunks offset
+     * @param tableOffset the table offset
+     */
+    public Chunks(int chunkReads,
+        long reads,
+        long chunksOffset,
+        long tableOffset) {
+      mChunkReads = chunkReads;
+      mReads = reads;
+      mChunksOffset = chunksOffset;
+      mTableOffset = tableOffset;
+    }
+  }
+}
@@ -28,17 +28,16 @@
 package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.function.IntConsumer;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.core.collections.ArrayUtils;
-import org.jebtk.core.collections.DefaultTreeMap;
 
 /**
  * Decodes values stored at positions in a tree.
@@ -89,6 +88,24 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
     return ArrayUtils.doubleToInt(getValues(region, window));
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    List<int[]> ret = new ArrayList<int[]>(regions.size());
+
+    for (double[] values : getValues(regions, window)) {
+      ret.add(ArrayUtils.doubleToInt(values));
+    }
+
+    return ret;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -116,47 +133,108 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
    */
   public int[] getStarts(Chromosome chr, int start, int end, int window)
       throws IOException {
-    List<Integer> starts = new ArrayList<Integer>();
+    IntCollector starts = new IntCollector();
 
-    Path file = getFile(chr, window, FILE_EXT);
+    forEachStart(chr, start, end, window, starts);
 
-    int dataOffset = mOffsetMap.get(chr);
+    return starts.toArray();
+  }
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#forEachStart(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * java.util.function.IntConsumer)
+   */
+  @Override
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
+    forEachStart(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        consumer);
+  }
 
-    try {
-      // first get the buffer offset of the start
+  /**
+   * Pass the starts of the reads in a region to a consumer, reading the
+   * file a batch of reads at a time.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param consumer the consumer of the starts.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void forEachStart(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      IntConsumer consumer) throws IOException {
+    getFile(chr, window, FILE_EXT);
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+    long dataOffset = mOffsetMap.get(chr);
 
-      int l = eo.end - so.start + 1;
+    BinTreeIndex index = getIndex(chr);
 
-      in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+    // Reads can only start in the occupied part of the region
+    int occupiedStart = index.getOccupiedStart(start, end);
 
-      int s;
+    if (occupiedStart == -1) {
+      return;
+    }
 
-      for (int i = 0; i < l; ++i) {
-        // System.err.println("ha " + i + " " + Arrays.toString(e));
+    end = index.getOccupiedEnd(start, end);
+    start = occupiedStart;
+
+    // first get the buffer offset of the start
+
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    long first = range.startBlock.startOffset;
+    long last = range.endBlock.endOffset;
+
+    int s;
 
-        // Skip start
-        s = in.readInt();
+    for (long r = first; r <= last; r += CURSOR_READS) {
+      ByteBuffer in = readRecords(chr,
+          r,
+          Math.min(last, r + CURSOR_READS - 1),
+          dataOffset);
 
-        // skip value
-        in.readFloat();
+      int l = in.remaining() / READ_WIDTH_BYTES;
 
-        // Skip flags
-        in.readByte();
+      for (int i = 0; i < l; ++i) {
+        // Skip value and flags
+        s = in.getInt(i * READ_WIDTH_BYTES);
+
+        if (s > end) {
+          return;
+        }
 
-        if (s >= start && s <= end) {
-          starts.add(s);
+        if (s >= start) {
+          consumer.accept(s);
         }
       }
-    } finally {
-      in.close();
     }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#estimateReadCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion)
+   */
+  @Override
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    Chromosome chr = region.getChr();
+
+    getFile(chr, 1, FILE_EXT);
 
-    return ArrayUtils.mapToInt(starts);
+    return estimateReadCount(chr, region.getStart(), region.getEnd());
   }
 
   /*
@@ -175,197 +253,455 @@ public class ReadCountsFileBVT extends ReadCountsFileBinTree {
   }
 
   /**
-   * Get the counts from the file,.
+   * Gets the values of many regions at once, returned in request order.
+   * Nearby regions are grouped so that each group is read from the file
+   * once and then divided between its regions.
    *
-   * @param chr the chr
-   * @param start The 1 based genomic start coordinate.
-   * @param end The 1 based genomic end coordinate.
-   * @param window The size of the window being viewed.
-   * @return the starts
+   * @param regions the regions
+   * @param window the window
+   * @return the values of each region.
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public double[] getValues(Chromosome chr, int start, int end, int window)
+  public List<double[]> getValues(List<GenomicRegion> regions, int window)
       throws IOException {
+    double[][] ret = new double[regions.size()][];
 
-    Path file = getFile(chr, window, FILE_EXT);
+    int level = getLevel(window);
 
-    int dataOffset = mOffsetMap.get(chr);
+    for (RegionCluster cluster : cluster(regions, window)) {
+      Chromosome chr = cluster.getChr();
 
-    RandomAccessFile in = new RandomAccessFile(file.toFile(), "r");
+      if (getMode() != BCMode.COUNT
+          || (level == -1 && window >= MIN_BIN_WIDTH)) {
+        // Not a stored level, or the bins are not totals, so fall back to
+        // querying each region
+        for (int i : cluster.getIndices()) {
+          ret[i] = getValues(regions.get(i), window);
+        }
 
-    List<Double> values = new ArrayList<Double>();
+        continue;
+      }
+
+      getFile(chr, window, FILE_EXT);
+
+      long dataOffset = mOffsetMap.get(chr);
 
-    double[] ret;
-    try {
-      // first get the buffer offset of the start
+      if (isEmpty(chr, cluster.getStart(), cluster.getEnd(), window)) {
+        // No reads so every bin is zero
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
 
-      Block so = getDataOffset(in, start, window);
-      Block eo = getDataOffset(in, end, window);
+          ret[i] = new double[region.getEnd() / window
+              - region.getStart() / window + 1];
+        }
 
-      int l = eo.endOffset - so.startOffset + 1;
+        continue;
+      }
 
-      // System.err.println("starts " + start + " " + so.level + " " + eo.level
-      // + " "
-      // + window);
+      if (level != -1) {
+        int clusterBin = cluster.getStart() / window;
 
-      if (window >= MIN_BIN_WIDTH) {
-        // Skip to structured block
-        in.seek(dataOffset + multiResOffset(so));
+        ByteBuffer in = readMultiRes(chr,
+            dataOffset,
+            level,
+            clusterBin,
+            cluster.getEnd() / window);
 
-        int b = so.bin;
+        int n = in.remaining() / MULTI_RES_WIDTH_BYTES;
 
-        while (b <= eo.bin) {
-          double v = in.readFloat();
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
 
-          // System.err.println("s " + b + " " + so.bin + " " + s + " " + v);
+          int startBin = region.getStart() / window;
 
-          values.add(v);
+          double[] values = 
+              new double[region.getEnd() / window - startBin + 1];
 
-          ++b;
-        }
+          int b = startBin - clusterBin;
 
-        ret = getValues(values, so, start, end, window);
+          for (int j = 0; j < values.length && b < n; ++j) {
+            values[j] = in.getFloat(b++ * MULTI_RES_WIDTH_BYTES);
+          }
+
+          ret[i] = values;
+        }
       } else {
-        // Higher resolution so slower to access.
+        // Decode the records of the whole cluster once, skipping empty bins
+        // at either end of the cluster
+        BinTreeIndex index = getIndex(chr);
 
-        // To read the starts, first skip to dataOffset (the byte position
-        // after the R Tree where the counts are written sequentially),
-        // then skip to the array index (i * 4 bytes (width of int)).
-        in.seek(dataOffset + RAW_OFFSET + so.startOffset * READ_WIDTH_BYTES);
+        BlockRange range = getDataOffsets(chr,
+            Math.max(cluster.getStart(),
+                index.getOccupiedStart(cluster.getStart(), cluster.getEnd())),
+            Math.min(cluster.getEnd(),
+                index.getOccupiedEnd(cluster.getStart(), cluster.getEnd())),
+            window);
 
-        int s;
-        double v;
+        ByteBuffer in = 
+            readRecords(chr, range.startBlock, range.endBlock, dataOffset);
 
-        List<Integer> starts = new ArrayList<Integer>(l);
+        int l = in.remaining() / READ_WIDTH_BYTES;
 
-        for (int i = 0; i < l; ++i) {
-          // Skip start
-          s = in.readInt();
+        int[] starts = new int[l];
+        float[] values = new float[l];
+
+        int n = 0;
 
-          v = in.readFloat();
+        int s;
 
-          // Skip flags
-          in.readByte();
+        for (int i = 0; i < l; ++i) {
+          s = in.getInt(i * READ_WIDTH_BYTES);
 
-          if (s >= start && s <= end) {
-            starts.add(s);
-            values.add(v);
+          if (s >= cluster.getStart() && s <= cluster.getEnd()) {
+            starts[n] = s;
+            values[n] = 
+                in.getFloat(i * READ_WIDTH_BYTES + READ_START_WIDTH_BYTES);
+            ++n;
           }
         }
 
-        // Group by window size
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
+
+          int start = region.getStart();
+          int end = region.getEnd();
+
+          int startBin = start / window;
+
+          double[] sums = new double[end / window - startBin + 1];
+
+          int to = lowerBound(starts, 0, n, end + 1);
 
-        ret = getValues(starts, values, start, end, window);
+          for (int j = lowerBound(starts, 0, n, start); j < to; ++j) {
+            sums[starts[j] / window - startBin] += values[j];
+          }
+
+          ret[i] = sums;
+        }
       }
-    } finally {
-      in.close();
     }
 
+    return Arrays.asList(ret);
+  }
+
+  /**
+   * Get the values from the file.
+   *
+   * @param chr the chr
+   * @param start The 1 based genomic start coordinate.
+   * @param end The 1 based genomic end coordinate.
+   * @param window The size of the window being viewed.
+   * @return the values
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public double[] getValues(Chromosome chr, int start, int end, int window)
+      throws IOException {
+    double[] ret = new double[end / window - start / window + 1];
+
+    getValues(chr, start, end, window, ret, 0);
+
     return ret;
   }
 
   /*
    * (non-Javadoc)
    * 
-   * @see edu.columbia.rdf.htsview.ngs.ReadCountsFileBinTree#multiResOffset(edu.
-   * columbia.rdf.htsview.ngs.Block)
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getValues(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, double[], int)
    */
   @Override
-  public int multiResOffset(Block b) {
-    return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
+  public int getValues(GenomicRegion region,
+      int window,
+      double[] values,
+      int offset) throws IOException {
+    return getValues(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        values,
+        offset);
   }
 
   /**
-   * Gets the counts.
+   * Writes the values of a region into a caller supplied array. Values are
+   * summed straight from the file into the bins so no intermediate lists
+   * are created. In MEAN and MAX mode the values of each bin are combined
+   * accordingly instead.
    *
-   * @param starts the starts
-   * @param values the values
-   * @param start the start
-   * @param end the end
-   * @param window the bin size
-   * @return the counts
+   * @param chr the chr
+   * @param start The 1 based genomic start coordinate.
+   * @param end The 1 based genomic end coordinate.
+   * @param window The size of the window being viewed.
+   * @param values the array to write the values to.
+   * @param offset the index in values of the first bin.
+   * @return the number of bins written.
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static double[] getValues(final List<Integer> starts,
-      final List<Double> values,
+  public int getValues(Chromosome chr,
       int start,
       int end,
-      int window) {
+      int window,
+      double[] values,
+      int offset) throws IOException {
+    getFile(chr, window, FILE_EXT);
+
+    long dataOffset = mOffsetMap.get(chr);
+
     int startBin = start / window;
     int endBin = end / window;
     int l = endBin - startBin + 1;
 
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
+    Arrays.fill(values, offset, offset + l, 0);
+
+    BinTreeIndex index = getIndex(chr);
+
+    // The bins can extend beyond the region
+    int spanStart = startBin * window;
+    int spanEnd = (int) Math.min(Integer.MAX_VALUE,
+        (endBin + 1L) * window - 1);
+
+    // Only the part of the bins between the first and last bins of
+    // MIN_BIN_WIDTH containing reads needs to be read
+    int occupiedStart = index.getOccupiedStart(spanStart, spanEnd);
+
+    if (occupiedStart == -1) {
+      return l;
+    }
+
+    int occupiedEnd = index.getOccupiedEnd(spanStart, spanEnd);
+
+    int level = getLevel(window);
+
+    BCMode mode = getMode();
+
+    if (window >= MIN_BIN_WIDTH && (level == -1 || mode != BCMode.COUNT)) {
+      BinSummary summary = readSummary(chr, start, end, window);
+
+      if (summary != null) {
+        summary.getValues(mode, values, offset);
+
+        return l;
+      }
+    }
+
+    if (mode != BCMode.COUNT || level == -1 && window >= MIN_BIN_WIDTH) {
+      // Without stored summaries, windows that are not a level are summed
+      // from the reads
+      summarizeRecords(chr, dataOffset, start, end, window)
+          .getValues(mode, values, offset);
+
+      return l;
+    }
+
+    if (level != -1) {
+      // The window matches a level so read its bins directly
+      int b1 = occupiedStart / window;
+
+      ByteBuffer in = 
+          readMultiRes(chr, dataOffset, level, b1, occupiedEnd / window);
+
+      int b = offset + b1 - startBin;
+
+      while (in.hasRemaining()) {
+        values[b++] = in.getFloat();
+      }
+
+      return l;
+    }
+
+    // Higher resolution so slower to access. Sum the values of each bin
+    // a batch of reads at a time.
+    BlockRange range = getDataOffsets(chr,
+        Math.max(start, occupiedStart),
+        Math.min(end, occupiedEnd),
+        window);
+
+    Block so = range.startBlock;
+    Block eo = range.endBlock;
+
+    int o = offset - startBin;
+
+    int s;
+
+    for (long r = so.startOffset; r <= eo.endOffset; r += CURSOR_READS) {
+      ByteBuffer in = readRecords(chr,
+          r,
+          Math.min(eo.endOffset, r + CURSOR_READS - 1),
+          dataOffset);
+
+      int n = in.remaining() / READ_WIDTH_BYTES;
+
+      int p = 0;
+
+      for (int i = 0; i < n; ++i) {
+        s = in.getInt(p);
+
+        if (s > end) {
+          return l;
+        }
+
+        if (s >= start) {
+          values[o + s / window] += 
+              in.getFloat(p + READ_START_WIDTH_BYTES);
+        }
+
+        p += READ_WIDTH_BYTES;
+      }
+    }
 
-    Map<Integer, Double> map = DefaultTreeMap.create(0.0);
+    return l;
+  }
 
-    for (int i = 0; i < starts.size(); ++i) {
-      int rs = starts.get(i);
-      double value = values.get(i);
+  /**
+   * Returns the count, sum, sum of squares, min and max of the values of the
+   * reads within each window. Summaries are read from the summary section of
+   * version 3 files when the window is at least MIN_BIN_WIDTH and are
+   * otherwise computed from the reads.
+   *
+   * @param region the region
+   * @param window the window
+   * @return the summary of each window.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public BinSummary getSummary(GenomicRegion region, int window)
+      throws IOException {
+    Chromosome chr = region.getChr();
 
-      int sbin = rs / window - startBin;
+    int start = region.getStart();
+    int end = region.getEnd();
 
-      map.put(sbin, map.get(sbin) + value);
+    getFile(chr, window, FILE_EXT);
 
-      /*
-       * int ebin = (rs + readLength) / binSize - startBin;
-       * 
-       * map.put(bin, map.get(bin) + value);
-       * 
-       * for (int bin = sbin; bin <= ebin; ++bin) { map.put(bin, map.get(bin) +
-       * value); }
-       */
+    if (isEmpty(chr, start, end, window)) {
+      return new BinSummary(end / window - start / window + 1);
     }
 
-    double[] ret = new double[l]; //List<Double> ret = Mathematics.zeros(l);
+    BinSummary ret = readSummary(chr, start, end, window);
 
-    for (Entry<Integer, Double> item : map.entrySet()) {
-      ret[item.getKey()] = item.getValue(); //ret.set(bin, map.get(bin));
+    if (ret == null) {
+      ret = summarizeRecords(chr, mOffsetMap.get(chr), start, end, window);
     }
 
     return ret;
   }
 
   /**
-   * Gets the values.
+   * Summarize the values of the reads within each window, reading the file
+   * a batch of reads at a time.
    *
-   * @param values the values
-   * @param startBlock the start block
+   * @param chr the chr
+   * @param dataOffset The byte offset in the file where the data begins.
    * @param start the start
    * @param end the end
    * @param window the window
-   * @return the values
+   * @return the summary of each window.
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private static double[] getValues(final List<Double> values,
-      Block startBlock,
+  private BinSummary summarizeRecords(Chromosome chr,
+      long dataOffset,
       int start,
       int end,
-      int window) {
+      int window) throws IOException {
     int startBin = start / window;
-    int endBin = end / window;
-    int l = endBin - startBin + 1;
-
-    // System.err.println(start + " " + end + " " + s + " " + e + " " + l);
 
-    Map<Integer, Double> map = DefaultTreeMap.create(0.0);
+    BinSummary ret = new BinSummary(end / window - startBin + 1);
 
-    int rs = startBlock.bin; // - startBin;
+    BinTreeIndex index = getIndex(chr);
 
-    for (double value : values) {
-      map.put(rs, map.get(rs) + value);
+    // Reads can only start in the occupied part of the region
+    int occupiedStart = index.getOccupiedStart(start, end);
 
-      ++rs;
+    if (occupiedStart == -1) {
+      return ret;
     }
 
-    double[] ret = new double[l]; //StrandList<Double> ret = Mathematics.zeros(l);
+    end = index.getOccupiedEnd(start, end);
+    start = occupiedStart;
 
-    for (Entry<Integer, Double> item : map.entrySet()) {
-      Integer bin = item.getKey();
-      
-      if (bin >= startBin && bin <= endBin) {
-        ret[bin - startBin] = item.getValue(); //, map.get(bin));
+    BlockRange range = getDataOffsets(chr, start, end, window);
+
+    long first = range.startBlock.startOffset;
+    long last = range.endBlock.endOffset;
+
+    int s;
+
+    for (long r = first; r <= last; r += CURSOR_READS) {
+      ByteBuffer in = readRecords(chr,
+          r,
+          Math.min(last, r + CURSOR_READS - 1),
+          dataOffset);
+
+      int n = in.remaining() / READ_WIDTH_BYTES;
+
+      int p = 0;
+
+      for (int i = 0; i < n; ++i) {
+        s = in.getInt(p);
+
+        if (s > end) {
+          return ret;
+        }
+
+        if (s >= start) {
+          ret.add(s / window - startBin,
+              in.getFloat(p + READ_START_WIDTH_BYTES));
+        }
+
+        p += READ_WIDTH_BYTES;
       }
     }
 
     return ret;
   }
+
+  /**
+   * Read the raw records between two blocks. To read the starts, first skip
+   * to dataOffset (the byte position after the R Tree where the counts are
+   * written sequentially), then skip to the record index.
+   *
+   * @param chr the chr
+   * @param so the start block
+   * @param eo the end block
+   * @param dataOffset The byte offset in the file where the reads begin.
+   * @return the records
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer readRecords(Chromosome chr,
+      Block so,
+      Block eo,
+      long dataOffset) throws IOException {
+    return readRecords(chr, so.startOffset, eo.endOffset, dataOffset);
+  }
+
+  /**
+   * Read the raw records of a run of reads.
+   *
+   * @param chr the chr
+   * @param first the index of the first read.
+   * @param last the index of the last read.
+   * @param dataOffset The byte offset in the file where the reads begin.
+   * @return the records
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ByteBuffer readRecords(Chromosome chr,
+      long first,
+      long last,
+      long dataOffset) throws IOException {
+    int l = (int) Math.max(0, last - first + 1);
+
+    return read(chr,
+        dataOffset + RAW_OFFSET + first * READ_WIDTH_BYTES,
+        l * READ_WIDTH_BYTES);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.htsview.ngs.ReadCountsFileBinTree#multiResOffset(edu.
+   * columbia.rdf.htsview.ngs.Block)
+   */
+  @Override
+  public int multiResOffset(Block b) {
+    return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
+  }
 }
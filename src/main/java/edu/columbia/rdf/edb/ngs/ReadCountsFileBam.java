@@ -29,8 +29,12 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.IntConsumer;
 
 import org.jebtk.bioinformatics.ext.samtools.SamUtils;
 import org.jebtk.bioinformatics.genomic.Chromosome;
@@ -39,18 +43,29 @@ import org.jebtk.bioinformatics.genomic.GenomicRegion;
 import org.jebtk.bioinformatics.genomic.Strand;
 import org.jebtk.core.collections.ArrayUtils;
 
+import htsjdk.samtools.BAMIndexMetaData;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 /**
  * Decodes counts using a multi resolution file.
  *
+ * Open readers are kept in a pool and reused between queries. Each query
+ * takes a reader from the pool, or opens a new one if none are free, and
+ * returns it afterwards so concurrent queries never share a reader. The
+ * name each chromosome has in the BAM file, e.g. chr1 or 1, is looked up
+ * once in the sequence dictionary.
+ *
  * @author Antony Holmes
  */
 public class ReadCountsFileBam extends ReadCountsFile {
 
+  /** Marks a chromosome that is not in the sequence dictionary. */
+  private static final String NO_CONTIG = "";
+
   /** The m file. */
   private Path mFile;
 
@@ -60,6 +75,21 @@ public class ReadCountsFileBam extends ReadCountsFile {
   /** The m read length. */
   private int mReadLength = -1;
 
+  /** Readers not currently in use. */
+  private final ConcurrentLinkedDeque<SamReader> mReaders =
+      new ConcurrentLinkedDeque<SamReader>();
+
+  /** The name of each chromosome in the BAM file. */
+  private final Map<Chromosome, String> mContigMap =
+      new ConcurrentHashMap<Chromosome, String>();
+
+  /**
+   * The aligned reads and length of each chromosome from the index, or
+   * null if they are not known.
+   */
+  private final Map<Chromosome, long[]> mContigStatsMap =
+      new ConcurrentHashMap<Chromosome, long[]>();
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -112,6 +142,106 @@ public class ReadCountsFileBam extends ReadCountsFile {
     return binCounts(getStarts(chr, start, end, window), start, end, window);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int, int[], int)
+   */
+  @Override
+  public int getCounts(GenomicRegion region,
+      int window,
+      int[] counts,
+      int offset) throws IOException {
+    int start = region.getStart();
+    int end = region.getEnd();
+
+    return binCounts(getStarts(region.getChr(), start, end, window),
+        start,
+        end,
+        window,
+        counts,
+        offset);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getCounts(java.util.List,
+   * int)
+   */
+  @Override
+  public List<int[]> getCounts(List<GenomicRegion> regions, int window)
+      throws IOException {
+    int[][] ret = new int[regions.size()][];
+
+    // One reader serves every region
+    SamReader inputSam = acquire();
+
+    try {
+      for (RegionCluster cluster : cluster(regions, window)) {
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+        int n = 0;
+
+        SAMRecordIterator iter = query(inputSam,
+            cluster.getChr(),
+            cluster.getStart(),
+            cluster.getEnd());
+
+        if (iter != null) {
+          try {
+            SAMRecord record;
+
+            while (iter.hasNext()) {
+              record = iter.next();
+
+              if (n == starts.length) {
+                starts = Arrays.copyOf(starts, n * 2);
+                ends = Arrays.copyOf(ends, n * 2);
+              }
+
+              starts[n] = record.getStart();
+              ends[n] = record.getEnd();
+              ++n;
+            }
+          } finally {
+            iter.close();
+          }
+        }
+
+        // A read belongs to a region if it is entirely contained within it,
+        // the same as querying the region on its own.
+        for (int i : cluster.getIndices()) {
+          GenomicRegion region = regions.get(i);
+
+          int start = region.getStart();
+          int end = region.getEnd();
+
+          int startBin = start / window;
+
+          int[] counts = new int[binCount(start, end, window)];
+
+          int j = lowerBound(starts, 0, n, start);
+
+          while (j < n && starts[j] <= end) {
+            if (ends[j] <= end) {
+              ++counts[starts[j] / window - startBin];
+            }
+
+            ++j;
+          }
+
+          ret[i] = counts;
+        }
+      }
+    } finally {
+      release(inputSam);
+    }
+
+    return Arrays.asList(ret);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -139,46 +269,112 @@ public class ReadCountsFileBam extends ReadCountsFile {
    */
   public int[] getStarts(Chromosome chr, int start, int end, int window)
       throws IOException {
+    IntCollector starts = new IntCollector();
 
-    List<Integer> starts = new ArrayList<Integer>();
+    forEachStart(chr, start, end, window, starts);
 
-    SAMRecordIterator iter = null;
+    return starts.toArray();
+  }
 
-    SamReader inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#forEachStart(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int,
+   * java.util.function.IntConsumer)
+   */
+  @Override
+  public void forEachStart(GenomicRegion region,
+      int window,
+      IntConsumer consumer) throws IOException {
+    forEachStart(region.getChr(),
+        region.getStart(),
+        region.getEnd(),
+        window,
+        consumer);
+  }
 
-    try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+  /**
+   * Pass the starts of the reads in a region to a consumer as they are read
+   * from the BAM file.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param window the window
+   * @param consumer the consumer of the starts.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void forEachStart(Chromosome chr,
+      int start,
+      int end,
+      int window,
+      IntConsumer consumer) throws IOException {
+    SamReader inputSam = acquire();
 
-      inputSam.close();
+    try {
+      SAMRecordIterator iter = query(inputSam, chr, start, end);
 
-      inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+      if (iter == null) {
+        return;
+      }
 
       try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        inputSam.close();
-
-        return ArrayUtils.EMPTY_INT_ARRAY; //Collections.emptyList();
+        while (iter.hasNext()) {
+          consumer.accept(iter.next().getStart());
+        }
+      } finally {
+        iter.close();
       }
+    } finally {
+      release(inputSam);
     }
+  }
 
-    try {
-      SAMRecord record;
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getSparseCounts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public SparseCounts getSparseCounts(GenomicRegion region, int window)
+      throws IOException {
+    SparseCounts.Builder ret = new SparseCounts.Builder(region, window);
 
-      while (iter.hasNext()) {
-        record = iter.next();
+    // Reads overlapping the start of the region are ignored by the builder
+    forEachStart(region, window, ret);
 
-        starts.add(record.getStart());
-      }
-    } finally {
-      inputSam.close();
+    return ret.build();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#estimateReadCount(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion)
+   */
+  @Override
+  public long estimateReadCount(GenomicRegion region) throws IOException {
+    long[] stats = getContigStats(region.getChr());
+
+    if (stats == null) {
+      return -1;
     }
 
-    return starts.stream().mapToInt(Integer::intValue).toArray(); //starts.;
+    long reads = stats[0];
+    long length = stats[1];
+
+    if (reads == 0 || length < 1) {
+      return 0;
+    }
+
+    // The index only counts the reads of whole chromosomes, so assume they
+    // are spread evenly along it
+    long overlap = Math.max(0,
+        Math.min(region.getEnd(), length) - region.getStart() + 1);
+
+    return (long) Math.ceil((double) reads * overlap / length);
   }
 
   /*
@@ -208,51 +404,91 @@ public class ReadCountsFileBam extends ReadCountsFile {
    */
   public Strand[] getStrands(Chromosome chr, int start, int end, int window)
       throws IOException {
-    SAMRecordIterator iter = null;
-
-    SamReader inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+    SamReader inputSam = acquire();
 
     try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+      SAMRecordIterator iter = query(inputSam, chr, start, end);
 
-      inputSam.close();
+      if (iter == null) {
+        return EMPTY_STRAND_ARRAY; //Collections.emptyList();
+      }
 
-      inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+      Strand[] strands = new Strand[1024];
+      int n = 0;
 
       try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        inputSam.close();
+        while (iter.hasNext()) {
+          if (n == strands.length) {
+            strands = Arrays.copyOf(strands, n * 2);
+          }
 
-        return EMPTY_STRAND_ARRAY; //Collections.emptyList();
+          strands[n++] = SamUtils.strand(iter.next().getFlags());
+        }
+      } finally {
+        iter.close();
       }
-    }
 
-    SAMRecord record;
+      return Arrays.copyOf(strands, n);
+    } finally {
+      release(inputSam);
+    }
+  }
 
-    List<Strand> strands = new ArrayList<Strand>();
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#getStrandedStarts(org.jebtk.
+   * bioinformatics.genomic.GenomicRegion, int)
+   */
+  @Override
+  public StrandedStarts getStrandedStarts(GenomicRegion region, int window)
+      throws IOException {
+    SamReader inputSam = acquire();
 
     try {
-      if (iter != null) {
+      SAMRecordIterator iter = query(inputSam,
+          region.getChr(),
+          region.getStart(),
+          region.getEnd());
+
+      if (iter == null) {
+        return new StrandedStarts(region,
+            window,
+            ArrayUtils.EMPTY_INT_ARRAY,
+            new byte[0]);
+      }
+
+      int[] starts = new int[1024];
+      byte[] flags = new byte[1024];
+      int n = 0;
+
+      try {
+        SAMRecord record;
+
         while (iter.hasNext()) {
           record = iter.next();
 
-          strands.add(SamUtils.strand(record.getFlags()));
+          if (n == starts.length) {
+            starts = Arrays.copyOf(starts, n * 2);
+            flags = Arrays.copyOf(flags, n * 2);
+          }
+
+          starts[n] = record.getStart();
+
+          if (SamUtils.strand(record.getFlags()) == Strand.ANTISENSE) {
+            flags[n] = StrandedStarts.FLAG_STRAND_MASK;
+          }
+
+          ++n;
         }
+      } finally {
+        iter.close();
       }
+
+      return StrandedStarts.create(region, window, starts, flags, n);
     } finally {
-      inputSam.close();
+      release(inputSam);
     }
-    
-    Strand[] ret = new Strand[strands.size()];
-
-    strands.toArray(ret);
-    
-    return ret;
   }
 
   /*
@@ -275,44 +511,172 @@ public class ReadCountsFileBam extends ReadCountsFile {
     return mReadLength;
   }
 
-  private static SAMRecordIterator openSam(Path file,
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    // Each query has a reader to itself
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    SamReader inputSam;
+
+    while ((inputSam = mReaders.poll()) != null) {
+      close(inputSam);
+    }
+  }
+
+  /**
+   * Take a reader from the pool, opening a new one if none are free. The
+   * reader must be given back with {@link #release(SamReader)}.
+   *
+   * @return the reader
+   */
+  private SamReader acquire() {
+    SamReader inputSam = mReaders.pollFirst();
+
+    if (inputSam == null) {
+      inputSam = SamReaderFactory.makeDefault().open(mFile.toFile());
+    }
+
+    return inputSam;
+  }
+
+  /**
+   * Return a reader to the pool.
+   *
+   * @param inputSam the reader
+   */
+  private void release(SamReader inputSam) {
+    // Most recently used first so that the fewest readers stay warm
+    mReaders.offerFirst(inputSam);
+  }
+
+  /**
+   * Query the reads contained in a region.
+   *
+   * @param inputSam the reader
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @return an iterator or null if the chromosome is not in the file.
+   */
+  private SAMRecordIterator query(SamReader inputSam,
       Chromosome chr,
       int start,
-      int end,
-      int window) {
-    SamReader inputSam = SamReaderFactory.makeDefault().open(file.toFile());
+      int end) {
+    String contig = getContig(inputSam, chr);
 
-    SAMRecordIterator iter = null;
+    if (contig == NO_CONTIG) {
+      return null;
+    }
+
+    return inputSam.queryContained(contig, start, end);
+  }
+
+  /**
+   * Returns the number of aligned reads and the length of a chromosome from
+   * the index statistics of the BAM file. The answer is remembered.
+   *
+   * @param chr the chr
+   * @return the read count and length, or null if the file has no index.
+   */
+  private long[] getContigStats(Chromosome chr) {
+    long[] ret = mContigStatsMap.get(chr);
+
+    if (ret != null) {
+      return ret;
+    }
+
+    SamReader inputSam = acquire();
 
     try {
-      iter = inputSam.queryContained(chr.toString(), start, end);
-    } catch (Exception e1) {
-      // e1.printStackTrace();
+      if (!inputSam.hasIndex()) {
+        return null;
+      }
 
-      try {
-        inputSam.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+      String contig = getContig(inputSam, chr);
+
+      if (contig == NO_CONTIG) {
+        ret = new long[2];
+      } else {
+        SAMSequenceDictionary dict =
+            inputSam.getFileHeader().getSequenceDictionary();
+
+        int ref = dict.getSequenceIndex(contig);
+
+        BAMIndexMetaData meta =
+            inputSam.indexing().getIndex().getMetaData(ref);
+
+        ret = new long[] { meta != null ? meta.getAlignedRecordCount() : 0,
+            dict.getSequence(ref).getSequenceLength() };
       }
+    } finally {
+      release(inputSam);
+    }
 
-      iter = null;
-      inputSam = SamReaderFactory.makeDefault().open(file.toFile());
+    mContigStatsMap.put(chr, ret);
 
-      try {
-        // In cases where chromosome are called 1, 2, 3 etc rather than
-        // chr1, chr2, chr3 etc.
-        iter = inputSam.queryContained(chr.toString().substring(3), start, end);
-      } catch (Exception e2) {
-        try {
-          inputSam.close();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    return ret;
+  }
+
+  /**
+   * Returns the name of a chromosome in the BAM file. Files may name
+   * chromosomes 1, 2, 3 etc rather than chr1, chr2, chr3 etc so both forms
+   * are looked up in the sequence dictionary and the answer remembered.
+   *
+   * @param inputSam the reader
+   * @param chr the chr
+   * @return the contig name or NO_CONTIG if the chromosome is not in the
+   *         file.
+   */
+  private String getContig(SamReader inputSam, Chromosome chr) {
+    String contig = mContigMap.get(chr);
+
+    if (contig == null) {
+      SAMSequenceDictionary dict =
+          inputSam.getFileHeader().getSequenceDictionary();
+
+      String name = chr.toString();
+
+      contig = NO_CONTIG;
 
-        iter = null;
+      if (dict.getSequence(name) != null) {
+        contig = name;
+      } else if (name.startsWith("chr")) {
+        if (dict.getSequence(name.substring(3)) != null) {
+          contig = name.substring(3);
+        }
+      } else if (dict.getSequence("chr" + name) != null) {
+        contig = "chr" + name;
       }
+
+      mContigMap.put(chr, contig);
     }
 
-    return iter;
+    return contig;
+  }
+
+  /**
+   * Close a reader ignoring errors.
+   *
+   * @param inputSam the reader
+   */
+  private static void close(SamReader inputSam) {
+    try {
+      inputSam.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 }
@@ -27,16 +27,19 @@
  */
 package edu.columbia.rdf.edb.ngs;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Path;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jebtk.bioinformatics.genomic.Chromosome;
 import org.jebtk.bioinformatics.genomic.Genome;
 import org.jebtk.bioinformatics.genomic.GenomeService;
-import org.jebtk.core.io.FileUtils;
 import org.jebtk.core.json.Json;
 
 /**
@@ -49,6 +52,48 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
   /** The Constant GENOME. */
   protected static final byte[] GENOME = new byte[8];
 
+  /** The original format with int offsets. */
+  public static final int VERSION_1 = 1;
+
+  /**
+   * The format with long offsets in the header and tree so that files can
+   * be larger than 2 GB.
+   */
+  public static final int VERSION_2 = 2;
+
+  /**
+   * The first field of a version 2 file. Version 1 files start with the read
+   * length, which is never negative.
+   */
+  public static final int VERSION_2_MARKER = -VERSION_2;
+
+  /**
+   * The version 2 format with a summary of the reads under each tree node
+   * appended after the reads.
+   */
+  public static final int VERSION_3 = 3;
+
+  /** The first field of a version 3 file. */
+  public static final int VERSION_3_MARKER = -VERSION_3;
+
+  /**
+   * The read length, data offset and genome fields at the start of each
+   * file.
+   */
+  private static final int HEADER_BYTES = 4 + 4 + 8;
+
+  /**
+   * The version marker, read length, long data offset and genome fields at
+   * the start of each version 2 file.
+   */
+  private static final int HEADER_V2_BYTES = 4 + 4 + 8 + 8;
+
+  /**
+   * The version 2 header followed by the long offset of the summary section
+   * in each version 3 file.
+   */
+  private static final int HEADER_V3_BYTES = HEADER_V2_BYTES + 8;
+
   /**
    * The member directory.
    */
@@ -57,17 +102,33 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
   /**
    * The member file map.
    */
-  protected Map<Chromosome, Path> mFileMap = new HashMap<Chromosome, Path>();
+  protected Map<Chromosome, Path> mFileMap = 
+      new ConcurrentHashMap<Chromosome, Path>();
 
   /**
    * The member offset map.
    */
-  protected Map<Chromosome, Integer> mOffsetMap = new HashMap<Chromosome, Integer>();
+  protected Map<Chromosome, Long> mOffsetMap = 
+      new ConcurrentHashMap<Chromosome, Long>();
+
+  /**
+   * The format version of each chromosome file.
+   */
+  protected Map<Chromosome, Integer> mVersionMap = 
+      new ConcurrentHashMap<Chromosome, Integer>();
+
+  /**
+   * The byte offset of the summary section of each version 3 chromosome
+   * file.
+   */
+  protected Map<Chromosome, Long> mSummaryOffsetMap = 
+      new ConcurrentHashMap<Chromosome, Long>();
 
   /**
    * The member read length map.
    */
-  protected Map<Chromosome, Integer> mReadLengthMap = new HashMap<Chromosome, Integer>();
+  protected Map<Chromosome, Integer> mReadLengthMap = 
+      new ConcurrentHashMap<Chromosome, Integer>();
 
   /** The m genome. */
   protected Genome mGenome;
@@ -78,6 +139,17 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
   /** The m read length. */
   private int mReadLength;
 
+  /** Long lived handles to the chromosome files. */
+  protected final FileChannelPool<Chromosome> mChannels = 
+      new FileChannelPool<Chromosome>();
+
+  /** Whether chromosome files should be memory mapped. */
+  private final boolean mMapped;
+
+  /** Each chromosome file mapped once when memory mapping is enabled. */
+  private final Map<Chromosome, ByteBuffer> mBufferMap = 
+      new ConcurrentHashMap<Chromosome, ByteBuffer>();
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -85,6 +157,18 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
    * @param metaFile the meta file
    */
   public ReadCountsFileBin(Path metaFile) {
+    this(metaFile, false);
+  }
+
+  /**
+   * Create a reader that optionally memory maps each chromosome file the
+   * first time it is queried.
+   *
+   * @param metaFile the meta file
+   * @param mapped true if chromosome files should be memory mapped.
+   */
+  public ReadCountsFileBin(Path metaFile, boolean mapped) {
+    mMapped = mapped;
     mMetaFile = metaFile;
     mDirectory = metaFile.getParent();
 
@@ -115,6 +199,18 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
     return mGenome; // Json.parse(mMetaFile).getString("Genome");
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.CountAssembly#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    // Files are only read with positional reads or from duplicates of the
+    // mapped buffers and the lookup tables are concurrent.
+    return true;
+  }
+
   /**
    * Gets the file.
    *
@@ -126,33 +222,151 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
    */
   protected Path getFile(Chromosome chr, int window, String ext)
       throws IOException {
-    if (!mFileMap.containsKey(chr)) {
-      Path file = mDirectory.resolve(chr + "." + ext);
+    Path file = mFileMap.get(chr);
+
+    if (file == null) {
+      file = mDirectory.resolve(chr + "." + ext);
+
+      // System.err.println("load file " + file);
+
+      ByteBuffer in = mChannels.read(chr, file, 0, HEADER_BYTES);
+
+      int version = VERSION_1;
+
+      switch (in.getInt(0)) {
+      case VERSION_2_MARKER:
+        version = VERSION_2;
+
+        in = mChannels.read(chr, file, 0, HEADER_V2_BYTES);
+
+        // Skip the marker
+        in.getInt();
+        break;
+      case VERSION_3_MARKER:
+        version = VERSION_3;
+
+        in = mChannels.read(chr, file, 0, HEADER_V3_BYTES);
+
+        // The summary offset follows the version 2 header
+        mSummaryOffsetMap.put(chr, in.getLong(HEADER_V2_BYTES));
 
+        // Skip the marker
+        in.getInt();
+        break;
+      default:
+        break;
+      }
+
+      mReadLength = in.getInt(); // mReadLengthMap.put(chr, in.getInt());
+
+      // The next field tells us where in the file to go to find the read
+      // data. It is 8 bytes in version 2 and 3 files and 4 bytes otherwise.
+      if (version >= VERSION_2) {
+        mOffsetMap.put(chr, in.getLong());
+      } else {
+        mOffsetMap.put(chr, (long) in.getInt());
+      }
+
+      mVersionMap.put(chr, version);
+
+      if (mGenome == null) {
+        // Read the genome
+        byte[] genome = new byte[GENOME.length];
+
+        in.get(genome);
+
+        mGenome = readGenome(genome);
+      }
+
+      // Only publish the file once its header has been read so that
+      // concurrent callers never see a file without an offset
       mFileMap.put(chr, file);
+    }
 
-      RandomAccessFile in = FileUtils.newRandomAccess(file);
+    return file;
+  }
 
-      // System.err.println("load file " + file);
+  /**
+   * Read a block of bytes from a chromosome file. {@link #getFile} must have
+   * been called for the chromosome first. The file is read using a pooled
+   * handle, or from its memory mapped buffer if mapping is enabled, so
+   * calling this method does not open or close the file.
+   *
+   * @param chr the chr
+   * @param position the byte position in the file.
+   * @param length the number of bytes to read.
+   * @return a buffer, ready for reading, of exactly length bytes.
+   * @throws IOException Signals that an I/O exception has occurred, or an
+   *                     EOFException if the file is too short.
+   */
+  protected ByteBuffer read(Chromosome chr, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = getBuffer(chr);
+
+    if (buffer != null) {
+      if (position + length > buffer.capacity()) {
+        throw new EOFException();
+      }
+
+      ByteBuffer ret = buffer.duplicate();
+
+      ret.position((int) position);
+      ret.limit((int) position + length);
+
+      return ret.slice();
+    }
 
-      try {
-        mReadLength = in.readInt(); // mReadLengthMap.put(chr, in.readInt());
+    return mChannels.read(chr, mFileMap.get(chr), position, length);
+  }
 
-        // The second 4 bytes tells us where in the file to go to
-        // find the read data
-        mOffsetMap.put(chr, in.readInt());
+  /**
+   * Returns the memory mapped buffer for a chromosome file, mapping it on
+   * first use. Returns null if memory mapping is disabled or the file is too
+   * large to be mapped into a single buffer, in which case the file should be
+   * read using positional reads instead.
+   *
+   * @param chr the chr
+   * @return the buffer or null
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected ByteBuffer getBuffer(Chromosome chr) throws IOException {
+    if (!mMapped) {
+      return null;
+    }
 
-        if (mGenome == null) {
-          // Read the genome
+    ByteBuffer buffer = mBufferMap.get(chr);
 
-          mGenome = readGenome(in);
-        }
-      } finally {
-        in.close();
+    if (buffer == null) {
+      FileChannel channel = mChannels.getChannel(chr, mFileMap.get(chr));
+
+      if (channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+
+      buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+      // If another thread mapped the file first, use its mapping
+      ByteBuffer existing = mBufferMap.putIfAbsent(chr, buffer);
+
+      if (existing != null) {
+        buffer = existing;
       }
     }
 
-    return mFileMap.get(chr);
+    return buffer;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.htsview.ngs.CountAssembly#close()
+   */
+  @Override
+  public void close() {
+    mChannels.close();
+
+    // Mapped buffers are released when they are garbage collected
+    mBufferMap.clear();
   }
 
   /**
@@ -163,17 +377,29 @@ public abstract class ReadCountsFileBin extends ReadCountsFile {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public Genome readGenome(RandomAccessFile in) throws IOException {
-    in.read(GENOME);
+    byte[] genome = new byte[GENOME.length];
 
+    in.read(genome);
+
+    return readGenome(genome);
+  }
+
+  /**
+   * Read genome from the null terminated genome field of a header.
+   *
+   * @param genome the genome field
+   * @return the genome
+   */
+  private static Genome readGenome(byte[] genome) {
     // find the first null
     int c = 0;
 
     while (c < 8) {
-      if (GENOME[c++] == 0) {
+      if (genome[c++] == 0) {
         break;
       }
     }
 
-    return GenomeService.getInstance().guessGenome(new String(GENOME, 0, c));
+    return GenomeService.getInstance().guessGenome(new String(genome, 0, c));
   }
 }
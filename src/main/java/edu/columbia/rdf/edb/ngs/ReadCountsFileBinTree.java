@@ -29,7 +29,13 @@ package edu.columbia.rdf.edb.ngs;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
 
 /**
  * Decodes values stored at positions in a tree.
@@ -41,11 +47,23 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
   /** The Constant HEADER_OFFSET_BYTES. */
   public static final int HEADER_OFFSET_BYTES = 16; // 2 * 4;
 
+  /** Where the tree starts in a version 2 file. */
+  public static final int HEADER_OFFSET_BYTES_V2 = 24; // 4 + 4 + 8 + 8;
+
+  /** Where the tree starts in a version 3 file. */
+  public static final int HEADER_OFFSET_BYTES_V3 = 32; // 4 + 4 + 8 + 8 + 8;
+
   /**
    * Each block consists of 6, 4 byte fields.
    */
   public static final int BLOCK_SIZE_BYTES = 6 * 4;
 
+  /**
+   * Each version 2 block consists of 4, 4 byte fields and the start and end
+   * offsets as 8 byte fields.
+   */
+  public static final int BLOCK_SIZE_BYTES_V2 = 4 * 4 + 2 * 8;
+
   /**
    * This size of 1 billion is the smallest value 10^x that can fit a whole
    * chromosome inside it.
@@ -87,9 +105,34 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
   /** The Constant MULTI_RES_WIDTH_BYTES. */
   public static final int MULTI_RES_WIDTH_BYTES = 4; // 4 + 4;
 
+  /**
+   * Each node of a version 3 file is summarized by a long count, double sum
+   * and sum of squares and float min and max.
+   */
+  public static final int SUMMARY_WIDTH_BYTES = 8 + 8 + 8 + 4 + 4;
+
   /** The Constant RAW_OFFSET. */
   public static final int RAW_OFFSET = TOTAL_BINS * MULTI_RES_WIDTH_BYTES;
 
+  /** The number of reads decoded at a time when streaming starts. */
+  protected static final int CURSOR_READS = 65536;
+
+  /** The default limit on the heap used by in memory trees. */
+  public static final long DEFAULT_MAX_INDEX_MEMORY = 256L * 1024 * 1024;
+
+  /** The in memory trees in least recently used order. */
+  private final Map<Chromosome, BinTreeIndex> mIndexMap = 
+      new LinkedHashMap<Chromosome, BinTreeIndex>(16, 0.75f, true);
+
+  /** The bytes used by the in memory trees. */
+  private long mIndexMemory = 0;
+
+  /** The max bytes the in memory trees may use. */
+  private long mMaxIndexMemory = DEFAULT_MAX_INDEX_MEMORY;
+
+  /** How reads are combined into bins of at least MIN_BIN_WIDTH. */
+  private volatile BCMode mMode = BCMode.COUNT;
+
   /**
    * Directory containing genome files which must be of the form chr.n.txt. Each
    * file must contain exactly one line consisting of the entire chromosome.
@@ -100,6 +143,153 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
     super(metaFile);
   }
 
+  /**
+   * Create a reader that optionally memory maps each chromosome file the
+   * first time it is queried.
+   *
+   * @param metaFile the meta file
+   * @param mapped true if chromosome files should be memory mapped.
+   */
+  public ReadCountsFileBinTree(Path metaFile, boolean mapped) {
+    super(metaFile, mapped);
+  }
+
+  /**
+   * Returns where the tree starts in a file of a given format version.
+   *
+   * @param version the version
+   * @return the header size in bytes.
+   */
+  public static int getHeaderOffsetBytes(int version) {
+    if (version >= VERSION_3) {
+      return HEADER_OFFSET_BYTES_V3;
+    }
+
+    return version >= VERSION_2 ? HEADER_OFFSET_BYTES_V2 : HEADER_OFFSET_BYTES;
+  }
+
+  /**
+   * Returns the size of a tree node in a file of a given format version.
+   *
+   * @param version the version
+   * @return the block size in bytes.
+   */
+  public static int getBlockSizeBytes(int version) {
+    return version >= VERSION_2 ? BLOCK_SIZE_BYTES_V2 : BLOCK_SIZE_BYTES;
+  }
+
+  /**
+   * Set how reads are combined into bins of at least MIN_BIN_WIDTH: the
+   * total for COUNT, the mean for MEAN and the largest value for MAX. Bins
+   * are served from the summary section of version 3 files so no reads are
+   * decoded. The mode should be set before the reader is queried.
+   *
+   * @param mode the mode
+   */
+  public void setMode(BCMode mode) {
+    mMode = mode;
+  }
+
+  /**
+   * Returns how reads are combined into bins.
+   *
+   * @return the mode
+   */
+  public BCMode getMode() {
+    return mMode;
+  }
+
+  /**
+   * Returns the level of the tree whose summaries are combined into windows
+   * of a given size. This is the widest level whose bins divide the window
+   * or, if none do, the narrowest level.
+   *
+   * @param window the window, at least MIN_BIN_WIDTH.
+   * @return the level
+   */
+  private static int getSummaryLevel(int window) {
+    int ret = MIN_BIN_LEVEL;
+
+    for (int i = MIN_BIN_LEVEL - 1; i >= 0 && BIN_WIDTHS[i] <= window; --i) {
+      if (window % BIN_WIDTHS[i] == 0) {
+        ret = i;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Read the summaries of the bins covering a region from the summary
+   * section of a version 3 file. Each stored bin is combined into the window
+   * containing its start. {@link #getFile} must have been called for the
+   * chromosome first.
+   *
+   * @param chr the chr
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @param window the window
+   * @return the summary of each window or null if the file has no summary
+   *         section, the window is smaller than MIN_BIN_WIDTH or the tree
+   *         has no nodes of the width the summaries are stored at.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected BinSummary readSummary(Chromosome chr,
+      int start,
+      int end,
+      int window) throws IOException {
+    Long summaryOffset = mSummaryOffsetMap.get(chr);
+
+    if (summaryOffset == null || window < MIN_BIN_WIDTH) {
+      return null;
+    }
+
+    int level = getSummaryLevel(window);
+    int width = BIN_WIDTHS[level];
+
+    int sb = start / window;
+    int n = end / window - sb + 1;
+
+    // The stored bins covering the windows
+    int b1 = (int) ((long) sb * window / width);
+    int b2 = (int) (((long) (sb + n) * window - 1) / width);
+
+    BinTreeIndex index = getIndex(chr);
+
+    int from = index.getNode(level, b1);
+
+    if (from == -1) {
+      return null;
+    }
+
+    int to = index.getNode(level, b2 + 1);
+
+    ByteBuffer in = read(chr,
+        summaryOffset + (long) from * SUMMARY_WIDTH_BYTES,
+        (to - from) * SUMMARY_WIDTH_BYTES);
+
+    BinSummary ret = new BinSummary(n);
+
+    int p = 0;
+
+    for (int i = from; i < to; ++i) {
+      int b = (int) ((long) index.getBin(i) * width / window) - sb;
+
+      if (b >= 0 && b < n) {
+        ret.add(b,
+            in.getLong(p),
+            in.getDouble(p + 8),
+            in.getDouble(p + 16),
+            in.getFloat(p + 24),
+            in.getFloat(p + 28));
+      }
+
+      p += SUMMARY_WIDTH_BYTES;
+    }
+
+    return ret;
+  }
+
   /**
    * Multi res offset.
    *
@@ -110,6 +300,49 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
     return (CUM_BIN_COUNTS[b.level] + b.bin) * MULTI_RES_WIDTH_BYTES;
   }
 
+  /**
+   * Returns the level of the tree whose bins are a given width.
+   *
+   * @param window the window
+   * @return the level or -1 if the window is not one of the bin widths.
+   */
+  public static int getLevel(int window) {
+    for (int i = 0; i < BIN_WIDTHS.length; ++i) {
+      if (BIN_WIDTHS[i] == window) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Read the multi resolution values of a run of bins on one level. Every
+   * bin on every level is stored so the values can be read directly without
+   * consulting the tree.
+   *
+   * @param chr the chr
+   * @param dataOffset The byte offset in the file where the data begins.
+   * @param level the level
+   * @param startBin the first bin to read.
+   * @param endBin the last bin to read.
+   * @return a buffer containing one value per bin. If endBin lies beyond the
+   *         last bin on the level the buffer will be shorter.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected ByteBuffer readMultiRes(Chromosome chr,
+      long dataOffset,
+      int level,
+      int startBin,
+      int endBin) throws IOException {
+    int n = Math.max(0, Math.min(endBin, BIN_COUNTS[level] - 1) - startBin + 1);
+
+    return read(chr,
+        dataOffset + (long) (CUM_BIN_COUNTS[level] + startBin)
+            * MULTI_RES_WIDTH_BYTES,
+        n * MULTI_RES_WIDTH_BYTES);
+  }
+
   /**
    * Gets the data offset.
    *
@@ -126,7 +359,8 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
   /**
    * Returns the start and end indices of the closest block of reads to a given
    * position. Positions are relative and require the correct data offset to be
-   * added to locate them in the file.
+   * added to locate them in the file. The format version is read from the
+   * header of the file.
    *
    * @param in The BVT File to scan
    * @param p a one based genomic position in the chromosome the BRT file
@@ -137,20 +371,60 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
    */
   public static Block getDataOffset(RandomAccessFile in, int p, int window)
       throws IOException {
+    in.seek(0);
+
+    int version;
+
+    switch (in.readInt()) {
+    case VERSION_2_MARKER:
+      version = VERSION_2;
+      break;
+    case VERSION_3_MARKER:
+      version = VERSION_3;
+      break;
+    default:
+      version = VERSION_1;
+      break;
+    }
+
+    return getDataOffset(in, p, window, version);
+  }
+
+  /**
+   * Returns the closest block of reads to a given position by scanning the
+   * tree of a file of a given format version. Version 2 and 3 trees start
+   * after a longer header and their nodes store read offsets as longs.
+   *
+   * @param in The BVT File to scan
+   * @param p a one based genomic position in the chromosome the BRT file
+   *          represents.
+   * @param window the window
+   * @param version the file format version.
+   * @return the data offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Block getDataOffset(RandomAccessFile in,
+      int p,
+      int window,
+      int version) throws IOException {
     boolean found = false;
     int positionBin = -1;
     int bin = -1;
     int width = -1;
-    int startOffset = -1;
-    int endOffset = -1;
+    long startOffset = -1;
+    long endOffset = -1;
     int gso = -1;
     int groupWidth = -1;
     int start = -1;
 
+    boolean longOffsets = version >= VERSION_2;
+
+    int headerOffset = getHeaderOffsetBytes(version);
+
     // Skip to where the tree starts
-    in.seek(HEADER_OFFSET_BYTES);
+    in.seek(headerOffset);
 
-    int offset = HEADER_OFFSET_BYTES;
+    long offset = headerOffset;
 
     int binSize = MAX_BIN_WIDTH;
 
@@ -170,8 +444,13 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
 
       width = in.readInt();
 
-      startOffset = in.readInt();
-      endOffset = in.readInt();
+      if (longOffsets) {
+        startOffset = in.readLong();
+        endOffset = in.readLong();
+      } else {
+        startOffset = in.readInt();
+        endOffset = in.readInt();
+      }
 
       // Relative pointer to the next lowest level in the tree that
       // we can decompose this block into sub blocks.
@@ -252,4 +531,212 @@ public abstract class ReadCountsFileBinTree extends ReadCountsFileBin {
 
     return ret;
   }
+
+  /**
+   * Returns the closest block of reads to a given position in a chromosome
+   * file. The tree of the chromosome is loaded into memory the first time it
+   * is used so that lookups do not touch the file. {@link #getFile} must have
+   * been called for the chromosome first.
+   *
+   * @param chr the chr
+   * @param p a one based genomic position in the chromosome.
+   * @param window the window
+   * @return the data offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected Block getDataOffset(Chromosome chr, int p, int window)
+      throws IOException {
+    return getIndex(chr).getDataOffset(p, window);
+  }
+
+  /**
+   * Returns the closest blocks of reads to the start and end of a region in
+   * a chromosome file using a single descent of the tree.
+   * {@link #getFile} must have been called for the chromosome first.
+   *
+   * @param chr the chr
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @param window the window
+   * @return the blocks
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected BlockRange getDataOffsets(Chromosome chr,
+      int start,
+      int end,
+      int window) throws IOException {
+    return getIndex(chr).getDataOffsets(start, end, window);
+  }
+
+  /**
+   * Returns true if no reads start in the bins of a window covering a
+   * region. The occupancy of the in memory tree is used so the reads are
+   * not touched. {@link #getFile} must have been called for the chromosome
+   * first.
+   *
+   * @param chr the chr
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @param window the window
+   * @return true if the bins are empty.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected boolean isEmpty(Chromosome chr, int start, int end, int window)
+      throws IOException {
+    return getIndex(chr).isEmpty(start / window * window,
+        (int) Math.min(Integer.MAX_VALUE, (end / window + 1L) * window - 1));
+  }
+
+  /**
+   * Returns an estimate of the number of reads starting in a region from
+   * the read offsets of the in memory tree, so no reads are touched. The
+   * reads of the leaves overlapping the region are counted, so the estimate
+   * is exact apart from the leaves at either end. {@link #getFile} must
+   * have been called for the chromosome first.
+   *
+   * @param chr the chr
+   * @param start the one based start of the region.
+   * @param end the one based end of the region.
+   * @return the estimated read count
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected long estimateReadCount(Chromosome chr, int start, int end)
+      throws IOException {
+    BinTreeIndex index = getIndex(chr);
+
+    int occupiedStart = index.getOccupiedStart(start, end);
+
+    if (occupiedStart == -1) {
+      return 0;
+    }
+
+    BlockRange range = getDataOffsets(chr,
+        occupiedStart,
+        index.getOccupiedEnd(start, end),
+        1);
+
+    return Math.max(0,
+        range.endBlock.endOffset - range.startBlock.startOffset + 1);
+  }
+
+  /**
+   * Returns the in memory tree of a chromosome, loading it if necessary.
+   * {@link #getFile} must have been called for the chromosome first.
+   *
+   * @param chr the chr
+   * @return the index
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected BinTreeIndex getIndex(Chromosome chr) throws IOException {
+    BinTreeIndex index = getCachedIndex(chr);
+
+    if (index == null) {
+      int version = mVersionMap.get(chr);
+
+      int treeOffset = getHeaderOffsetBytes(version);
+
+      // The tree sits between the header and the data
+      ByteBuffer in = read(chr,
+          treeOffset,
+          (int) (mOffsetMap.get(chr) - treeOffset));
+
+      index = BinTreeIndex.parse(in, version);
+
+      cacheIndex(chr, index);
+    }
+
+    return index;
+  }
+
+  /**
+   * Gets the cached index.
+   *
+   * @param chr the chr
+   * @return the cached index or null
+   */
+  private synchronized BinTreeIndex getCachedIndex(Chromosome chr) {
+    return mIndexMap.get(chr);
+  }
+
+  /**
+   * Add an index to the cache, evicting the least recently used indexes
+   * until the cache is within its memory limit. The most recent index is
+   * always kept.
+   *
+   * @param chr the chr
+   * @param index the index
+   */
+  private synchronized void cacheIndex(Chromosome chr, BinTreeIndex index) {
+    BinTreeIndex old = mIndexMap.put(chr, index);
+
+    if (old != null) {
+      mIndexMemory -= old.getMemoryUsage();
+    }
+
+    mIndexMemory += index.getMemoryUsage();
+
+    trimIndexes();
+  }
+
+  /**
+   * Evict least recently used indexes until the cache fits in its memory
+   * limit.
+   */
+  private void trimIndexes() {
+    Iterator<BinTreeIndex> iter = mIndexMap.values().iterator();
+
+    while (mIndexMemory > mMaxIndexMemory && mIndexMap.size() > 1) {
+      mIndexMemory -= iter.next().getMemoryUsage();
+
+      iter.remove();
+    }
+  }
+
+  /**
+   * Set the maximum number of bytes of heap the in memory trees may use.
+   *
+   * @param bytes the max memory
+   */
+  public synchronized void setMaxIndexMemory(long bytes) {
+    mMaxIndexMemory = bytes;
+
+    trimIndexes();
+  }
+
+  /**
+   * Returns the number of bytes of heap used by the in memory tree of a
+   * chromosome, or 0 if it is not loaded.
+   *
+   * @param chr the chr
+   * @return the index memory usage
+   */
+  public synchronized long getIndexMemoryUsage(Chromosome chr) {
+    BinTreeIndex index = mIndexMap.get(chr);
+
+    return index != null ? index.getMemoryUsage() : 0;
+  }
+
+  /**
+   * Returns the number of bytes of heap used by all loaded trees.
+   *
+   * @return the index memory usage
+   */
+  public synchronized long getIndexMemoryUsage() {
+    return mIndexMemory;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.ReadCountsFileBin#close()
+   */
+  @Override
+  public void close() {
+    super.close();
+
+    synchronized (this) {
+      mIndexMap.clear();
+      mIndexMemory = 0;
+    }
+  }
 }
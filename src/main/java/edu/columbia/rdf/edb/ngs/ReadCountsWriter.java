@@ -0,0 +1,396 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jebtk.bioinformatics.ext.samtools.SamUtils;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+/**
+ * Converts a coordinate sorted and indexed BAM file into a sample directory
+ * of BRT2 bin tree files and BC count files, together with the meta, read
+ * count and manifest files the readers look for.
+ *
+ * Each chromosome is read from its own BAM reader and written as a
+ * separate task on a fork join pool. Reads are streamed into a
+ * {@link BinTreeWriter} and a {@link BCWriter} so the memory used by a task
+ * depends on the length of its chromosome, not its depth, and at most one
+ * task per thread is running at any time. Every mapped read is written, as
+ * returned by {@link ReadCountsFileBam}. Chromosomes without reads are
+ * skipped.
+ */
+public class ReadCountsWriter {
+
+  /** The name of the meta file passed to the bin tree readers. */
+  public static final String META_FILE = "meta.json";
+
+  /** The bam file. */
+  private final Path mBam;
+
+  /** The sample directory. */
+  private final Path mDir;
+
+  /** The genome. */
+  private final String mGenome;
+
+  /** The parallelism. */
+  private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+  /** Whether bin tree files are written. */
+  private boolean mBinTree = true;
+
+  /** Whether BC files are written. */
+  private boolean mBC = true;
+
+  /** The powers of the BC bin widths. */
+  private int[] mPowers = BCWriter.DEFAULT_POWERS;
+
+  /** The bin tree format version. */
+  private int mVersion = ReadCountsFileBin.VERSION_1;
+
+  /** Whether bin tree files include a summary of each node. */
+  private boolean mSummary = false;
+
+  /**
+   * Instantiates a new read counts writer.
+   *
+   * @param bam the BAM file, which must be indexed.
+   * @param dir the directory to write the sample to.
+   * @param genome the genome, e.g. hg19.
+   */
+  public ReadCountsWriter(Path bam, Path dir, String genome) {
+    mBam = bam;
+    mDir = dir;
+    mGenome = genome;
+  }
+
+  /**
+   * Sets the number of chromosomes written at once. Defaults to the number
+   * of available processors.
+   *
+   * @param parallelism the parallelism
+   * @return the writer
+   */
+  public ReadCountsWriter setParallelism(int parallelism) {
+    mParallelism = Math.max(1, parallelism);
+
+    return this;
+  }
+
+  /**
+   * Sets whether BRT2 bin tree files are written.
+   *
+   * @param binTree true to write bin tree files.
+   * @return the writer
+   */
+  public ReadCountsWriter setBinTree(boolean binTree) {
+    mBinTree = binTree;
+
+    return this;
+  }
+
+  /**
+   * Sets whether BC count files are written.
+   *
+   * @param bc true to write BC files.
+   * @return the writer
+   */
+  public ReadCountsWriter setBC(boolean bc) {
+    mBC = bc;
+
+    return this;
+  }
+
+  /**
+   * Sets the powers of 10 of the BC bin widths.
+   *
+   * @param powers the powers
+   * @return the writer
+   */
+  public ReadCountsWriter setPowers(int... powers) {
+    mPowers = powers.clone();
+
+    return this;
+  }
+
+  /**
+   * Sets the bin tree format version.
+   *
+   * @param version the version
+   * @return the writer
+   */
+  public ReadCountsWriter setVersion(int version) {
+    mVersion = version;
+
+    return this;
+  }
+
+  /**
+   * Sets whether bin tree files include a summary of each node, which
+   * writes them as version 3 files.
+   *
+   * @param summary true to write the summaries.
+   * @return the writer
+   */
+  public ReadCountsWriter setSummary(boolean summary) {
+    mSummary = summary;
+
+    return this;
+  }
+
+  /**
+   * Write the sample.
+   *
+   * @return the number of reads written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public long write() throws IOException {
+    Files.createDirectories(mDir);
+
+    int readLength = SamUtils.getReadLengthFromBam(mBam);
+
+    List<SAMSequenceRecord> sequences;
+
+    SamReader inputSam = SamReaderFactory.makeDefault().open(mBam.toFile());
+
+    try {
+      sequences = new ArrayList<SAMSequenceRecord>(
+          inputSam.getFileHeader().getSequenceDictionary().getSequences());
+    } finally {
+      inputSam.close();
+    }
+
+    // Start the longest chromosomes first so that they do not finish last
+    sequences.sort((s1, s2) -> Integer.compare(s2.getSequenceLength(),
+        s1.getSequenceLength()));
+
+    AtomicLong reads = new AtomicLong();
+
+    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+    for (SAMSequenceRecord sequence : sequences) {
+      tasks.add(new ChrTask(sequence, readLength, reads));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(mParallelism);
+
+    try {
+      pool.invoke(new SampleTask(tasks));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+
+    long ret = reads.get();
+
+    if (mBinTree) {
+      Files.write(mDir.resolve(META_FILE),
+          ("{\"Genome\":\"" + mGenome + "\",\"Mapped Reads\":" + ret + "}")
+              .getBytes(StandardCharsets.UTF_8));
+    }
+
+    if (mBC) {
+      BCWriter.writeReadCount(mDir, mGenome, ret);
+
+      BCManifest.scan(mDir).write(mDir.resolve(BCManifest.MANIFEST_FILE));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the name used for the files of a chromosome. Chromosomes named
+   * 1, 2, 3 etc in the BAM file are written as chr1, chr2, chr3 etc.
+   *
+   * @param contig the name of the chromosome in the BAM file.
+   * @return the name
+   */
+  private static String getName(String contig) {
+    return contig.startsWith("chr") ? contig : "chr" + contig;
+  }
+
+  /**
+   * Write the files of one chromosome.
+   *
+   * @param sequence the chromosome
+   * @param readLength the read length
+   * @return the number of reads written.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private long write(SAMSequenceRecord sequence, int readLength)
+      throws IOException {
+    String contig = sequence.getSequenceName();
+    String name = getName(contig);
+
+    BinTreeWriter tree = null;
+
+    if (mBinTree) {
+      tree = new BinTreeWriter(
+          mDir.resolve(name + "." + ReadCountsFileBRT2.FILE_EXT),
+          mGenome,
+          readLength).setVersion(mVersion).setSummary(mSummary);
+    }
+
+    BCWriter bc = mBC ? new BCWriter(sequence.getSequenceLength(), mPowers)
+        : null;
+
+    long ret = 0;
+
+    SamReader inputSam = SamReaderFactory.makeDefault().open(mBam.toFile());
+
+    try {
+      // The whole chromosome
+      SAMRecordIterator iter = inputSam.query(contig, 0, 0, false);
+
+      try {
+        SAMRecord record;
+
+        while (iter.hasNext()) {
+          record = iter.next();
+
+          if (record.getReadUnmappedFlag()) {
+            continue;
+          }
+
+          int start = record.getStart();
+
+          if (tree != null) {
+            tree.add(start,
+                SamUtils.strand(record.getFlags()) == Strand.ANTISENSE
+                    ? StrandedStarts.FLAG_STRAND_MASK : 0);
+          }
+
+          if (bc != null) {
+            bc.add(start);
+          }
+
+          ++ret;
+        }
+      } finally {
+        iter.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      if (tree != null) {
+        tree.discard();
+      }
+
+      throw e;
+    } finally {
+      inputSam.close();
+    }
+
+    if (tree != null) {
+      tree.close();
+    }
+
+    if (bc != null && ret > 0) {
+      bc.write(mDir, name);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Runs the task of every chromosome.
+   */
+  private static class SampleTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** The tasks. */
+    private final List<RecursiveAction> mTasks;
+
+    /**
+     * Instantiates a new sample task.
+     *
+     * @param tasks the tasks
+     */
+    public SampleTask(List<RecursiveAction> tasks) {
+      mTasks = tasks;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      invokeAll(mTasks);
+    }
+  }
+
+  /**
+   * Writes one chromosome.
+   */
+  private class ChrTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** The chromosome. */
+    private final SAMSequenceRecord mSequence;
+
+    /** The read length. */
+    private final int mReadLength;
+
+    /** The total reads written. */
+    private final AtomicLong mReads;
+
+    /**
+     * Instantiates a new chr task.
+     *
+     * @param sequence the chromosome
+     * @param readLength the read length
+     * @param reads the total reads written.
+     */
+    public ChrTask(SAMSequenceRecord sequence,
+        int readLength,
+        AtomicLong reads) {
+      mSequence = sequence;
+      mReadLength = readLength;
+      mReads = reads;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      try {
+        mReads.addAndGet(write(mSequence, mReadLength));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
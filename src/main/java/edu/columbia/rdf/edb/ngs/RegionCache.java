@@ -0,0 +1,416 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+
+/**
+ * A memory bounded cache of query results that can be shared by many
+ * {@link CachedCountAssembly} readers. Results are stored as tiles of a
+ * fixed number of bins so that overlapping queries reuse the same entries.
+ *
+ * The cache is split into independently locked segments to reduce
+ * contention between threads. Each segment evicts its least recently used
+ * tiles once it uses more than its share of the memory limit.
+ */
+public class RegionCache {
+
+  /** The default limit on the heap used by cached tiles. */
+  public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+
+  /** The default number of segments. */
+  public static final int DEFAULT_SEGMENTS = 16;
+
+  /** Approximate heap used by a tile in addition to its array. */
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  /** The segments. */
+  private final Segment[] mSegments;
+
+  /** The hits. */
+  private final AtomicLong mHits = new AtomicLong();
+
+  /** The misses. */
+  private final AtomicLong mMisses = new AtomicLong();
+
+  /** The evictions. */
+  private final AtomicLong mEvictions = new AtomicLong();
+
+  /**
+   * Instantiates a new region cache using the default memory limit.
+   */
+  public RegionCache() {
+    this(DEFAULT_MAX_MEMORY);
+  }
+
+  /**
+   * Instantiates a new region cache.
+   *
+   * @param maxMemory the max bytes of heap the tiles may use.
+   */
+  public RegionCache(long maxMemory) {
+    this(maxMemory, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Instantiates a new region cache.
+   *
+   * @param maxMemory the max bytes of heap the tiles may use.
+   * @param segments the number of segments, rounded up to a power of 2.
+   */
+  public RegionCache(long maxMemory, int segments) {
+    int n = 1;
+
+    while (n < segments) {
+      n <<= 1;
+    }
+
+    mSegments = new Segment[n];
+
+    for (int i = 0; i < n; ++i) {
+      mSegments[i] = new Segment(Math.max(0, maxMemory) / n);
+    }
+  }
+
+  /**
+   * Returns the number of lookups that found a tile.
+   *
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return mHits.get();
+  }
+
+  /**
+   * Returns the number of lookups that did not find a tile.
+   *
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return mMisses.get();
+  }
+
+  /**
+   * Returns the fraction of lookups that found a tile.
+   *
+   * @return the hit rate
+   */
+  public double getHitRate() {
+    long hits = getHitCount();
+    long total = hits + getMissCount();
+
+    return total > 0 ? (double) hits / total : 0;
+  }
+
+  /**
+   * Returns the number of tiles evicted to stay within the memory limit.
+   *
+   * @return the eviction count
+   */
+  public long getEvictionCount() {
+    return mEvictions.get();
+  }
+
+  /**
+   * Returns the approximate number of bytes of heap used by cached tiles.
+   *
+   * @return the memory usage
+   */
+  public long getMemoryUsage() {
+    long ret = 0;
+
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        ret += segment.mMemory;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of cached tiles.
+   *
+   * @return the size
+   */
+  public int size() {
+    int ret = 0;
+
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        ret += segment.mTiles.size();
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Remove every tile and reset the statistics.
+   */
+  public void clear() {
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        segment.mTiles.clear();
+        segment.mMemory = 0;
+      }
+    }
+
+    mHits.set(0);
+    mMisses.set(0);
+    mEvictions.set(0);
+  }
+
+  /**
+   * Remove every tile belonging to a reader.
+   *
+   * @param owner the reader
+   */
+  void invalidate(Object owner) {
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        Iterator<Map.Entry<Tile, Object>> iter =
+            segment.mTiles.entrySet().iterator();
+
+        while (iter.hasNext()) {
+          Map.Entry<Tile, Object> e = iter.next();
+
+          if (e.getKey().mOwner == owner) {
+            segment.mMemory -= weight(e.getValue());
+
+            iter.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets a tile.
+   *
+   * @param tile the tile
+   * @return the tile data, an int[] or double[], or null if the tile is not
+   *         cached.
+   */
+  Object get(Tile tile) {
+    Segment segment = segment(tile);
+
+    Object ret;
+
+    synchronized (segment) {
+      ret = segment.mTiles.get(tile);
+    }
+
+    if (ret != null) {
+      mHits.incrementAndGet();
+    } else {
+      mMisses.incrementAndGet();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Add a tile to the cache, evicting the least recently used tiles in its
+   * segment until the segment is within its memory limit. Tiles larger than
+   * a segment are not cached.
+   *
+   * @param tile the tile
+   * @param data the tile data, an int[] or double[].
+   */
+  void put(Tile tile, Object data) {
+    Segment segment = segment(tile);
+
+    long w = weight(data);
+
+    synchronized (segment) {
+      if (w > segment.mMaxMemory) {
+        return;
+      }
+
+      Object old = segment.mTiles.put(tile, data);
+
+      if (old != null) {
+        segment.mMemory -= weight(old);
+      }
+
+      segment.mMemory += w;
+
+      Iterator<Object> iter = segment.mTiles.values().iterator();
+
+      while (segment.mMemory > segment.mMaxMemory) {
+        segment.mMemory -= weight(iter.next());
+
+        iter.remove();
+
+        mEvictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Returns the segment a tile belongs to.
+   *
+   * @param tile the tile
+   * @return the segment
+   */
+  private Segment segment(Tile tile) {
+    int h = tile.hashCode();
+
+    // Spread the high bits so that neighbouring tiles use different locks
+    h ^= h >>> 16;
+
+    return mSegments[h & (mSegments.length - 1)];
+  }
+
+  /**
+   * Returns the approximate heap used by a tile.
+   *
+   * @param data the tile data
+   * @return the weight in bytes
+   */
+  private static long weight(Object data) {
+    if (data instanceof int[]) {
+      return ENTRY_OVERHEAD_BYTES + 4L * ((int[]) data).length;
+    } else {
+      return ENTRY_OVERHEAD_BYTES + 8L * ((double[]) data).length;
+    }
+  }
+
+  /**
+   * One independently locked part of the cache.
+   */
+  private static class Segment {
+
+    /** The tiles in least recently used order. */
+    private final Map<Tile, Object> mTiles =
+        new LinkedHashMap<Tile, Object>(16, 0.75f, true);
+
+    /** The max bytes the tiles may use. */
+    private final long mMaxMemory;
+
+    /** The bytes used by the tiles. */
+    private long mMemory = 0;
+
+    /**
+     * Instantiates a new segment.
+     *
+     * @param maxMemory the max memory
+     */
+    public Segment(long maxMemory) {
+      mMaxMemory = maxMemory;
+    }
+  }
+
+  /**
+   * Identifies a tile of bins from one reader. Tile i at a given window
+   * holds bins i * size to (i + 1) * size - 1.
+   */
+  static final class Tile {
+
+    /** The reader the tile was read from. */
+    private final Object mOwner;
+
+    /** The chr. */
+    private final Chromosome mChr;
+
+    /** The window. */
+    private final int mWindow;
+
+    /** The index of the tile. */
+    private final int mIndex;
+
+    /** True if the tile holds values rather than counts. */
+    private final boolean mValues;
+
+    /** How the owner combined reads into bins, or null. */
+    private final Object mMode;
+
+    /** The hash code. */
+    private final int mHash;
+
+    /**
+     * Instantiates a new tile.
+     *
+     * @param owner the owner
+     * @param chr the chr
+     * @param window the window
+     * @param index the index
+     * @param values true for values, false for counts.
+     * @param mode how the owner combined reads into bins, or null.
+     */
+    public Tile(Object owner,
+        Chromosome chr,
+        int window,
+        int index,
+        boolean values,
+        Object mode) {
+      mOwner = owner;
+      mChr = chr;
+      mWindow = window;
+      mIndex = index;
+      mValues = values;
+      mMode = mode;
+
+      int h = System.identityHashCode(owner);
+      h = 31 * h + chr.hashCode();
+      h = 31 * h + window;
+      h = 31 * h + index;
+      h = 31 * h + (values ? 1 : 0);
+      h = 31 * h + (mode != null ? mode.hashCode() : 0);
+
+      mHash = h;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof Tile)) {
+        return false;
+      }
+
+      Tile t = (Tile) o;
+
+      return mOwner == t.mOwner && mIndex == t.mIndex
+          && mWindow == t.mWindow && mValues == t.mValues
+          && mChr.equals(t.mChr)
+          && (mMode == null ? t.mMode == null : mMode.equals(t.mMode));
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * A group of regions on the same chromosome that overlap or lie close
+ * enough together that they can be served by a single read of the file.
+ * Each cluster remembers the positions of its regions in the original
+ * request so results can be returned in request order.
+ */
+public class RegionCluster {
+
+  /** The chr. */
+  private final Chromosome mChr;
+
+  /** The start of the first region. */
+  private final int mStart;
+
+  /** The furthest end of any region. */
+  private final int mEnd;
+
+  /** The indices of the regions in the request, sorted by start. */
+  private final int[] mIndices;
+
+  /**
+   * Instantiates a new region cluster.
+   *
+   * @param chr the chr
+   * @param start the start
+   * @param end the end
+   * @param indices the indices
+   */
+  private RegionCluster(Chromosome chr, int start, int end, int[] indices) {
+    mChr = chr;
+    mStart = start;
+    mEnd = end;
+    mIndices = indices;
+  }
+
+  /**
+   * Gets the chr.
+   *
+   * @return the chr
+   */
+  public Chromosome getChr() {
+    return mChr;
+  }
+
+  /**
+   * Gets the start.
+   *
+   * @return the start
+   */
+  public int getStart() {
+    return mStart;
+  }
+
+  /**
+   * Gets the end.
+   *
+   * @return the end
+   */
+  public int getEnd() {
+    return mEnd;
+  }
+
+  /**
+   * Returns the indices of the regions in the cluster within the original
+   * request. Regions are ordered by start.
+   *
+   * @return the indices
+   */
+  public int[] getIndices() {
+    return mIndices;
+  }
+
+  /**
+   * Group regions by chromosome, sort them by start and merge regions that
+   * overlap or are separated by no more than maxGap bases into clusters.
+   * A cluster is not extended once it spans more than maxWidth bases so that
+   * a long list of neighbouring regions does not turn into a read of the
+   * whole chromosome.
+   *
+   * @param regions the regions
+   * @param maxGap the max gap between regions in the same cluster.
+   * @param maxWidth the max width of a cluster.
+   * @return the clusters
+   */
+  public static List<RegionCluster> cluster(List<GenomicRegion> regions,
+      int maxGap,
+      int maxWidth) {
+    Map<Chromosome, List<Integer>> chrMap =
+        new LinkedHashMap<Chromosome, List<Integer>>();
+
+    for (int i = 0; i < regions.size(); ++i) {
+      Chromosome chr = regions.get(i).getChr();
+
+      List<Integer> indices = chrMap.get(chr);
+
+      if (indices == null) {
+        indices = new ArrayList<Integer>();
+        chrMap.put(chr, indices);
+      }
+
+      indices.add(i);
+    }
+
+    List<RegionCluster> ret = new ArrayList<RegionCluster>();
+
+    for (Chromosome chr : chrMap.keySet()) {
+      List<Integer> indices = chrMap.get(chr);
+
+      indices.sort((i1, i2) -> Integer
+          .compare(regions.get(i1).getStart(), regions.get(i2).getStart()));
+
+      int[] buffer = new int[indices.size()];
+      int n = 0;
+
+      int start = -1;
+      int end = -1;
+
+      for (int i : indices) {
+        GenomicRegion region = regions.get(i);
+
+        if (n > 0 && ((long) region.getStart() - end > maxGap
+            || (long) region.getEnd() - start > maxWidth)) {
+          ret.add(new RegionCluster(chr,
+              start,
+              end,
+              Arrays.copyOf(buffer, n)));
+
+          n = 0;
+        }
+
+        if (n == 0) {
+          start = region.getStart();
+          end = region.getEnd();
+        } else {
+          end = Math.max(end, region.getEnd());
+        }
+
+        buffer[n++] = i;
+      }
+
+      if (n > 0) {
+        ret.add(new RegionCluster(chr,
+            start,
+            end,
+            Arrays.copyOf(buffer, n)));
+      }
+    }
+
+    return ret;
+  }
+}
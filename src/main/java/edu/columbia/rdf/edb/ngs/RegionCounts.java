@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * The read counts of the bins of a region, stored either densely or
+ * sparsely. {@link CountAssembly#getRegionCounts(GenomicRegion, int)}
+ * chooses the form from the expected density of the reads so callers can
+ * query any region without knowing which is cheaper.
+ */
+public interface RegionCounts {
+
+  /**
+   * Gets the region.
+   *
+   * @return the region
+   */
+  GenomicRegion getRegion();
+
+  /**
+   * Gets the window.
+   *
+   * @return the window
+   */
+  int getWindow();
+
+  /**
+   * Returns the number of bins spanning the region.
+   *
+   * @return the size
+   */
+  int size();
+
+  /**
+   * Returns the count of a bin, which may be zero.
+   *
+   * @param bin the bin, counted from the bin containing the start of the
+   *          region.
+   * @return the count
+   */
+  int get(int bin);
+
+  /**
+   * Returns true if only the bins that are not zero are stored.
+   *
+   * @return true if the counts are sparse.
+   */
+  boolean isSparse();
+
+  /**
+   * Returns the counts of every bin.
+   *
+   * @return the counts
+   */
+  int[] toArray();
+
+  /**
+   * Write the counts of every bin into a caller supplied array. Bins are
+   * written to counts[offset] onwards, overwriting any existing values.
+   *
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   */
+  int toArray(int[] counts, int offset);
+}
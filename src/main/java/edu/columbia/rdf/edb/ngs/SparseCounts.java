@@ -0,0 +1,398 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * The read counts of the bins of a region, storing only the bins that are
+ * not zero. Entry i records that bin getBin(i), counted from the bin
+ * containing the start of the region, has getCount(i) reads. Bins are in
+ * ascending order. For wide regions at a small window this uses memory in
+ * proportion to the reads rather than the width of the region.
+ */
+public class SparseCounts implements RegionCounts {
+
+  /** The initial capacity of a builder. */
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /** The region. */
+  private final GenomicRegion mRegion;
+
+  /** The window. */
+  private final int mWindow;
+
+  /** The number of bins spanning the region. */
+  private final int mSize;
+
+  /** The non-zero bins. */
+  private final int[] mBins;
+
+  /** The count of each non-zero bin. */
+  private final int[] mCounts;
+
+  /**
+   * Instantiates a new set of sparse counts.
+   *
+   * @param region the region
+   * @param window the window
+   * @param bins the non-zero bins in ascending order.
+   * @param counts the count of each bin.
+   */
+  public SparseCounts(GenomicRegion region,
+      int window,
+      int[] bins,
+      int[] counts) {
+    if (bins.length != counts.length) {
+      throw new IllegalArgumentException(
+          bins.length + " bins but " + counts.length + " counts.");
+    }
+
+    mRegion = region;
+    mWindow = window;
+    mSize = ReadCountsFile.binCount(region.getStart(), region.getEnd(), window);
+    mBins = bins;
+    mCounts = counts;
+  }
+
+  /**
+   * Gets the region.
+   *
+   * @return the region
+   */
+  @Override
+  public GenomicRegion getRegion() {
+    return mRegion;
+  }
+
+  /**
+   * Gets the window.
+   *
+   * @return the window
+   */
+  @Override
+  public int getWindow() {
+    return mWindow;
+  }
+
+  /**
+   * Returns the number of bins spanning the region, which is the length of
+   * the array returned by {@link #toArray()}.
+   *
+   * @return the size
+   */
+  @Override
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Returns the number of non-zero bins.
+   *
+   * @return the number of entries.
+   */
+  public int entries() {
+    return mBins.length;
+  }
+
+  /**
+   * Returns the bin of an entry.
+   *
+   * @param i the index of the entry
+   * @return the bin
+   */
+  public int getBin(int i) {
+    return mBins[i];
+  }
+
+  /**
+   * Returns the count of an entry.
+   *
+   * @param i the index of the entry
+   * @return the count
+   */
+  public int getCount(int i) {
+    return mCounts[i];
+  }
+
+  /**
+   * Gets the non-zero bins.
+   *
+   * @return the bins
+   */
+  public int[] getBins() {
+    return mBins;
+  }
+
+  /**
+   * Gets the count of each non-zero bin.
+   *
+   * @return the counts
+   */
+  public int[] getCounts() {
+    return mCounts;
+  }
+
+  /**
+   * Returns the count of a bin, which may be zero.
+   *
+   * @param bin the bin
+   * @return the count
+   */
+  @Override
+  public int get(int bin) {
+    int i = Arrays.binarySearch(mBins, bin);
+
+    return i >= 0 ? mCounts[i] : 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see edu.columbia.rdf.edb.ngs.RegionCounts#isSparse()
+   */
+  @Override
+  public boolean isSparse() {
+    return true;
+  }
+
+  /**
+   * Returns the fraction of bins that are not zero.
+   *
+   * @return the density
+   */
+  public double getDensity() {
+    return mSize > 0 ? (double) mBins.length / mSize : 0;
+  }
+
+  /**
+   * Returns the counts of every bin as returned by
+   * {@link CountAssembly#getCounts(GenomicRegion, int)}.
+   *
+   * @return the counts
+   */
+  @Override
+  public int[] toArray() {
+    int[] ret = new int[mSize];
+
+    toArray(ret, 0);
+
+    return ret;
+  }
+
+  /**
+   * Write the counts of every bin into a caller supplied array. Bins are
+   * written to counts[offset] onwards, overwriting any existing values.
+   *
+   * @param counts the array to write the counts to.
+   * @param offset the index in counts of the first bin.
+   * @return the number of bins written.
+   */
+  @Override
+  public int toArray(int[] counts, int offset) {
+    Arrays.fill(counts, offset, offset + mSize, 0);
+
+    for (int i = 0; i < mBins.length; ++i) {
+      counts[offset + mBins[i]] = mCounts[i];
+    }
+
+    return mSize;
+  }
+
+  /**
+   * Create sparse counts from the counts of every bin.
+   *
+   * @param region the region
+   * @param window the window
+   * @param counts the counts of every bin.
+   * @return the sparse counts
+   */
+  public static SparseCounts fromArray(GenomicRegion region,
+      int window,
+      int[] counts) {
+    int n = 0;
+
+    for (int c : counts) {
+      if (c != 0) {
+        ++n;
+      }
+    }
+
+    int[] bins = new int[n];
+    int[] nonZero = new int[n];
+
+    n = 0;
+
+    for (int i = 0; i < counts.length; ++i) {
+      if (counts[i] != 0) {
+        bins[n] = i;
+        nonZero[n++] = counts[i];
+      }
+    }
+
+    return new SparseCounts(region, window, bins, nonZero);
+  }
+
+  /**
+   * Builds sparse counts from the starts of reads, for example those passed
+   * to it by {@link CountAssembly#forEachStart}. Starts outside the bins of
+   * the region are ignored. Starts are expected in ascending order, in
+   * which case each read costs a comparison with the last bin, but any
+   * order is accepted.
+   */
+  public static class Builder implements IntConsumer {
+
+    /** The region. */
+    private final GenomicRegion mRegion;
+
+    /** The window. */
+    private final int mWindow;
+
+    /** The bin containing the start of the region. */
+    private final int mStartBin;
+
+    /** The number of bins spanning the region. */
+    private final int mSize;
+
+    /** The non-zero bins. */
+    private int[] mBins;
+
+    /** The count of each non-zero bin. */
+    private int[] mCounts;
+
+    /** The number of entries. */
+    private int mN = 0;
+
+    /** Whether the bins have been added in ascending order. */
+    private boolean mSorted = true;
+
+    /**
+     * Instantiates a new builder.
+     *
+     * @param region the region
+     * @param window the window
+     */
+    public Builder(GenomicRegion region, int window) {
+      this(region, window, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Instantiates a new builder.
+     *
+     * @param region the region
+     * @param window the window
+     * @param capacity the number of non-zero bins expected.
+     */
+    public Builder(GenomicRegion region, int window, int capacity) {
+      mRegion = region;
+      mWindow = window;
+      mStartBin = region.getStart() / window;
+      mSize = ReadCountsFile.binCount(region.getStart(),
+          region.getEnd(),
+          window);
+
+      capacity = Math.max(1, Math.min(mSize, capacity));
+
+      mBins = new int[capacity];
+      mCounts = new int[capacity];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.function.IntConsumer#accept(int)
+     */
+    @Override
+    public void accept(int start) {
+      int bin = start / mWindow - mStartBin;
+
+      if (bin < 0 || bin >= mSize) {
+        return;
+      }
+
+      if (mN > 0) {
+        if (mBins[mN - 1] == bin) {
+          ++mCounts[mN - 1];
+
+          return;
+        }
+
+        if (bin < mBins[mN - 1]) {
+          mSorted = false;
+        }
+      }
+
+      if (mN == mBins.length) {
+        mBins = Arrays.copyOf(mBins, mN * 2);
+        mCounts = Arrays.copyOf(mCounts, mN * 2);
+      }
+
+      mBins[mN] = bin;
+      mCounts[mN++] = 1;
+    }
+
+    /**
+     * Create the sparse counts of the starts added so far.
+     *
+     * @return the sparse counts
+     */
+    public SparseCounts build() {
+      if (!mSorted) {
+        merge();
+      }
+
+      return new SparseCounts(mRegion,
+          mWindow,
+          Arrays.copyOf(mBins, mN),
+          Arrays.copyOf(mCounts, mN));
+    }
+
+    /**
+     * Sort the entries by bin and combine the entries of the same bin.
+     */
+    private void merge() {
+      // Bins and counts are both non-negative ints so each pair sorts by
+      // bin when packed into a long
+      long[] entries = new long[mN];
+
+      for (int i = 0; i < mN; ++i) {
+        entries[i] = ((long) mBins[i] << 32) | mCounts[i];
+      }
+
+      Arrays.sort(entries);
+
+      int n = 0;
+
+      for (long e : entries) {
+        int bin = (int) (e >>> 32);
+        int count = (int) e;
+
+        if (n > 0 && mBins[n - 1] == bin) {
+          mCounts[n - 1] += count;
+        } else {
+          mBins[n] = bin;
+          mCounts[n++] = count;
+        }
+      }
+
+      mN = n;
+      mSorted = true;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.util.Arrays;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.bioinformatics.genomic.Strand;
+
+/**
+ * The starts and strand flags of the reads in a region, read in one pass of
+ * the file. starts[i] and flags[i] describe the same read. A read is on the
+ * antisense strand if its flag has {@link #FLAG_STRAND_MASK} set.
+ */
+public class StrandedStarts {
+
+  /** Set in the flag of a read on the antisense strand. */
+  public static final byte FLAG_STRAND_MASK = 1;
+
+  /** The region. */
+  private final GenomicRegion mRegion;
+
+  /** The window. */
+  private final int mWindow;
+
+  /** The starts. */
+  private final int[] mStarts;
+
+  /** The flags. */
+  private final byte[] mFlags;
+
+  /**
+   * Instantiates a new set of stranded starts.
+   *
+   * @param region the region
+   * @param window the window
+   * @param starts the starts
+   * @param flags the flags, one per start.
+   */
+  public StrandedStarts(GenomicRegion region,
+      int window,
+      int[] starts,
+      byte[] flags) {
+    if (starts.length != flags.length) {
+      throw new IllegalArgumentException(
+          starts.length + " starts but " + flags.length + " flags.");
+    }
+
+    mRegion = region;
+    mWindow = window;
+    mStarts = starts;
+    mFlags = flags;
+  }
+
+  /**
+   * Gets the region.
+   *
+   * @return the region
+   */
+  public GenomicRegion getRegion() {
+    return mRegion;
+  }
+
+  /**
+   * Gets the window.
+   *
+   * @return the window
+   */
+  public int getWindow() {
+    return mWindow;
+  }
+
+  /**
+   * Returns the number of reads.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mStarts.length;
+  }
+
+  /**
+   * Gets the starts.
+   *
+   * @return the starts
+   */
+  public int[] getStarts() {
+    return mStarts;
+  }
+
+  /**
+   * Gets the flags.
+   *
+   * @return the flags
+   */
+  public byte[] getFlags() {
+    return mFlags;
+  }
+
+  /**
+   * Returns true if a read is on the antisense strand.
+   *
+   * @param i the index of the read
+   * @return true, if antisense
+   */
+  public boolean isAntisense(int i) {
+    return (mFlags[i] & FLAG_STRAND_MASK) == FLAG_STRAND_MASK;
+  }
+
+  /**
+   * Gets the strands.
+   *
+   * @return the strands
+   */
+  public Strand[] getStrands() {
+    return toStrands(mFlags);
+  }
+
+  /**
+   * Returns the number of sense reads in each bin of the region.
+   *
+   * @return the counts
+   */
+  public int[] getSenseCounts() {
+    return binCounts((byte) 0);
+  }
+
+  /**
+   * Returns the number of antisense reads in each bin of the region.
+   *
+   * @return the counts
+   */
+  public int[] getAntisenseCounts() {
+    return binCounts(FLAG_STRAND_MASK);
+  }
+
+  /**
+   * Bin the reads on one strand.
+   *
+   * @param strand the strand flag the reads must have.
+   * @return the counts
+   */
+  private int[] binCounts(byte strand) {
+    int start = mRegion.getStart();
+    int end = mRegion.getEnd();
+
+    int startBin = start / mWindow;
+
+    int[] ret = new int[ReadCountsFile.binCount(start, end, mWindow)];
+
+    int sbin;
+
+    for (int i = 0; i < mStarts.length; ++i) {
+      if ((mFlags[i] & FLAG_STRAND_MASK) != strand) {
+        continue;
+      }
+
+      sbin = mStarts[i] / mWindow - startBin;
+
+      if (sbin >= 0 && sbin < ret.length) {
+        ++ret[sbin];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Convert read flags to strands.
+   *
+   * @param flags the flags
+   * @return the strands
+   */
+  public static Strand[] toStrands(byte[] flags) {
+    Strand[] strands = new Strand[flags.length];
+
+    for (int i = 0; i < flags.length; ++i) {
+      if ((flags[i] & FLAG_STRAND_MASK) == FLAG_STRAND_MASK) {
+        strands[i] = Strand.ANTISENSE;
+      } else {
+        strands[i] = Strand.SENSE;
+      }
+    }
+
+    return strands;
+  }
+
+  /**
+   * Convert strands to read flags.
+   *
+   * @param strands the strands
+   * @return the flags
+   */
+  public static byte[] toFlags(Strand[] strands) {
+    byte[] flags = new byte[strands.length];
+
+    for (int i = 0; i < strands.length; ++i) {
+      if (strands[i] == Strand.ANTISENSE) {
+        flags[i] = FLAG_STRAND_MASK;
+      }
+    }
+
+    return flags;
+  }
+
+  /**
+   * Create stranded starts from the first n elements of a pair of buffers,
+   * trimming them if they are longer.
+   *
+   * @param region the region
+   * @param window the window
+   * @param starts the starts
+   * @param flags the flags
+   * @param n the number of reads in the buffers.
+   * @return the stranded starts
+   */
+  static StrandedStarts create(GenomicRegion region,
+      int window,
+      int[] starts,
+      byte[] flags,
+      int n) {
+    return new StrandedStarts(region,
+        window,
+        n == starts.length ? starts : Arrays.copyOf(starts, n),
+        n == flags.length ? flags : Arrays.copyOf(flags, n));
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that saved manifests are only used whilst they match the files in
+ * the sample directory.
+ */
+public class BCManifestTest {
+
+  /** The temporary folder. */
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  /**
+   * A saved manifest is used as is when nothing has changed.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLoad() throws IOException {
+    Path dir = writeSample();
+
+    BCManifest scanned = BCManifest.scan(dir);
+
+    BCManifest loaded = BCManifest.load(dir);
+
+    assertEquals(scanned.size(), loaded.size());
+
+    for (BCManifest.Entry e : scanned.getEntries()) {
+      BCManifest.Entry l = loaded.get(e.getName(), e.getPower());
+
+      assertNotNull(e.getFile(), l);
+      assertEquals(e.getFile(), e.getSize(), l.getSize());
+      assertEquals(e.getFile(), e.getBins(), l.getBins());
+    }
+  }
+
+  /**
+   * A file rewritten with a different size after the manifest was saved
+   * causes the directory to be scanned again.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testChangedSize() throws IOException {
+    Path dir = writeSample();
+
+    BCWriter writer = new BCWriter(TestReads.LENGTH / 2, new int[] { 3 });
+
+    writer.add(1);
+
+    writer.write(dir, TestReads.CHR);
+
+    BCManifest.Entry e = BCManifest.load(dir).get(TestReads.CHR, 3);
+
+    assertEquals(e.getFile(),
+        Files.size(dir.resolve(e.getFile())),
+        e.getSize());
+  }
+
+  /**
+   * A file added after the manifest was saved is found.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testAddedFile() throws IOException {
+    Path dir = writeSample();
+
+    // Make sure the manifest predates the new file whatever the resolution
+    // of file times
+    Files.setLastModifiedTime(dir.resolve(BCManifest.MANIFEST_FILE),
+        FileTime.fromMillis(0));
+
+    TestReads.writeBC(dir, TestReads.starts(1), 4);
+
+    assertNotNull(BCManifest.load(dir).get(TestReads.CHR, 4));
+  }
+
+  /**
+   * Write a sample with 1 kb bins and save its manifest.
+   *
+   * @return the sample directory.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Path writeSample() throws IOException {
+    Path dir = mFolder.newFolder().toPath();
+
+    TestReads.writeBC(dir, TestReads.starts(1), 3);
+
+    BCManifest.scan(dir).write(dir.resolve(BCManifest.MANIFEST_FILE));
+
+    return dir;
+  }
+}
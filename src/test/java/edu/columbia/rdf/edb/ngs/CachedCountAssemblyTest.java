@@ -0,0 +1,166 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares assemblies wrapped in a {@link CachedCountAssembly} with the same
+ * assemblies read directly.
+ */
+public class CachedCountAssemblyTest {
+
+  /** Windows on, between and below the stored bin widths. */
+  private static final int[] WINDOWS = { 10, 100, 1000, 2000, 2500, 10000 };
+
+  /** The number of random regions queried per window. */
+  private static final int REGIONS = 200;
+
+  /** The temporary folder. */
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  /**
+   * Bin tree counts of regions that do not start or end on bin boundaries
+   * are the same with and without the cache in every mode.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testUnalignedBRT2() throws IOException {
+    Path meta = TestReads.writeBRT2(mFolder.newFolder().toPath(),
+        TestReads.starts(1),
+        true);
+
+    for (BCMode mode : BCMode.values()) {
+      ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(meta);
+      ReadCountsFileBRT2 direct = new ReadCountsFileBRT2(meta);
+
+      brt2.setMode(mode);
+      direct.setMode(mode);
+
+      assertCachedEquals(mode.toString(), direct, brt2);
+    }
+  }
+
+  /**
+   * BC counts of regions that do not start or end on bin boundaries are the
+   * same with and without the cache in every mode.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testUnalignedBC() throws IOException {
+    Path bci = TestReads.writeBC(mFolder.newFolder().toPath(),
+        TestReads.starts(1),
+        1,
+        2,
+        3,
+        4);
+
+    for (BCMode mode : BCMode.values()) {
+      assertCachedEquals(mode.toString(),
+          new ReadCountsFileBC(bci, mode),
+          new ReadCountsFileBC(bci, mode));
+    }
+  }
+
+  /**
+   * Tiles read in one mode must not be served after the mode changes.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testModeChange() throws IOException {
+    Path meta = TestReads.writeBRT2(mFolder.newFolder().toPath(),
+        TestReads.starts(1),
+        true);
+
+    ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(meta);
+    ReadCountsFileBRT2 direct = new ReadCountsFileBRT2(meta);
+
+    CachedCountAssembly cached = new CachedCountAssembly(brt2,
+        new RegionCache(),
+        16);
+
+    try {
+      GenomicRegion region = TestReads.region(990001, 1050000);
+
+      for (BCMode mode : BCMode.values()) {
+        brt2.setMode(mode);
+        direct.setMode(mode);
+
+        assertArrayEquals(mode.toString(),
+            direct.getCounts(region, 1000),
+            cached.getCounts(region, 1000));
+      }
+    } finally {
+      cached.close();
+      direct.close();
+    }
+  }
+
+  /**
+   * Compare an assembly read directly with the same data read through a
+   * cache with small tiles, so that regions span several tiles, over
+   * random regions. Both assemblies are closed.
+   *
+   * @param message the message
+   * @param direct the assembly to read directly.
+   * @param assembly the assembly to wrap in a cache.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void assertCachedEquals(String message,
+      CountAssembly direct,
+      CountAssembly assembly) throws IOException {
+    CachedCountAssembly cached = new CachedCountAssembly(assembly,
+        new RegionCache(),
+        16);
+
+    try {
+      Random random = new Random(11);
+
+      for (int window : WINDOWS) {
+        for (int i = 0; i < REGIONS; ++i) {
+          int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+          int end = Math.min(TestReads.LENGTH,
+              start + random.nextInt(window * 100));
+
+          GenomicRegion region = TestReads.region(start, end);
+
+          // Ask twice so the second query is answered from the cache
+          for (int j = 0; j < 2; ++j) {
+            assertArrayEquals(message + " " + region + " @ " + window,
+                direct.getCounts(region, window),
+                cached.getCounts(region, window));
+          }
+        }
+      }
+    } finally {
+      cached.close();
+      direct.close();
+    }
+  }
+}
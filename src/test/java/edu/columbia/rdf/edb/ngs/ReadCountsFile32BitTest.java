@@ -0,0 +1,212 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips counts of every supported bit depth through a reference
+ * encoder and the decoders of {@link ReadCountsFile32Bit}, for every
+ * starting bin parity and for runs of 0 to {@link #MAX_LENGTH} bins.
+ */
+public class ReadCountsFile32BitTest {
+
+  /** The supported bit depths. */
+  private static final int[] BITS = { 4, 8, 12, 16, 20, 24, 32 };
+
+  /** The number of bins encoded. */
+  private static final int BINS = 64;
+
+  /** The longest run of bins decoded. */
+  private static final int MAX_LENGTH = 24;
+
+  /**
+   * Decode every run of bins from a buffer holding only the bytes the run
+   * needs, as read from a file.
+   */
+  @Test
+  public void testRoundTrip() {
+    for (int bits : BITS) {
+      int[] values = values(bits);
+      byte[] encoded = encode(values, bits);
+
+      for (int s = 0; s < BINS; ++s) {
+        for (int l = 0; l <= MAX_LENGTH && s + l <= BINS; ++l) {
+          byte[] buf = slice(encoded, s, l, bits);
+
+          assertArrayEquals(bits + " bit bins " + s + " + " + l,
+              Arrays.copyOfRange(values, s, s + l),
+              ReadCountsFile32Bit.getCounts(buf, 0, s, l, bits));
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode runs starting part way through a shared buffer, as the batch
+   * path does, into the middle of a caller supplied array.
+   */
+  @Test
+  public void testOffsets() {
+    for (int bits : BITS) {
+      int[] values = values(bits);
+      byte[] encoded = encode(values, bits);
+
+      for (int s = 0; s < BINS; ++s) {
+        for (int l = 0; l <= MAX_LENGTH && s + l <= BINS; ++l) {
+          int[] scores = new int[l + 6];
+
+          Arrays.fill(scores, -1);
+
+          ReadCountsFile32Bit.getCounts(encoded,
+              ReadCountsFile32Bit.firstByte(s, bits),
+              s,
+              l,
+              bits,
+              scores,
+              3);
+
+          int[] expected = new int[l + 6];
+
+          Arrays.fill(expected, -1);
+
+          System.arraycopy(values, s, expected, 3, l);
+
+          assertArrayEquals(bits + " bit bins " + s + " + " + l,
+              expected,
+              scores);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts with the high bit of the depth, or of any byte, set must not be
+   * sign extended.
+   */
+  @Test
+  public void testHighBit() {
+    for (int bits : BITS) {
+      if (bits == 32) {
+        // 32 bit counts are signed
+        continue;
+      }
+
+      int[] values = new int[BINS];
+
+      for (int i = 0; i < BINS; ++i) {
+        values[i] = i % 2 == 0 ? mask(bits) : 1 << (bits - 1);
+      }
+
+      byte[] encoded = encode(values, bits);
+
+      for (int s = 0; s < 2; ++s) {
+        int l = BINS - s;
+
+        int[] counts = ReadCountsFile32Bit
+            .getCounts(slice(encoded, s, l, bits), 0, s, l, bits);
+
+        for (int i = 0; i < counts.length; ++i) {
+          assertEquals(bits + " bit bin " + (s + i), values[s + i], counts[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns test counts for a bit depth. The first bins are the extremes
+   * of the depth and the rest are random.
+   *
+   * @param bits the bit depth
+   * @return the counts
+   */
+  private static int[] values(int bits) {
+    Random random = new Random(bits);
+
+    int[] ret = new int[BINS];
+
+    for (int i = 0; i < BINS; ++i) {
+      ret[i] = random.nextInt() & mask(bits);
+    }
+
+    ret[0] = 0;
+    ret[1] = mask(bits);
+    ret[2] = 1 << (bits - 1);
+    ret[3] = 1;
+
+    return ret;
+  }
+
+  /**
+   * Returns the largest count of a bit depth, or -1 for 32 bits.
+   *
+   * @param bits the bit depth
+   * @return the mask
+   */
+  private static int mask(int bits) {
+    return bits == 32 ? -1 : (1 << bits) - 1;
+  }
+
+  /**
+   * Returns the bytes a run of bins needs, from the byte containing the
+   * first bin to the last byte of the last bin.
+   *
+   * @param encoded the encoded counts
+   * @param s the first bin
+   * @param l the number of bins
+   * @param bits the bit depth
+   * @return the bytes
+   */
+  private static byte[] slice(byte[] encoded, int s, int l, int bits) {
+    if (l == 0) {
+      return new byte[0];
+    }
+
+    return Arrays.copyOfRange(encoded,
+        ReadCountsFile32Bit.firstByte(s, bits),
+        ReadCountsFile32Bit.lastByte(s + l - 1, bits) + 1);
+  }
+
+  /**
+   * Reference encoder packing counts as big endian integers, most
+   * significant bit first, one bit at a time.
+   *
+   * @param values the counts
+   * @param bits the bit depth
+   * @return the bytes
+   */
+  private static byte[] encode(int[] values, int bits) {
+    byte[] ret = new byte[(values.length * bits + 7) / 8];
+
+    for (int i = 0; i < values.length; ++i) {
+      for (int b = 0; b < bits; ++b) {
+        if (((values[i] >>> (bits - 1 - b)) & 1) == 1) {
+          int bit = i * bits + b;
+
+          ret[bit / 8] |= 0x80 >>> (bit % 8);
+        }
+      }
+    }
+
+    return ret;
+  }
+}
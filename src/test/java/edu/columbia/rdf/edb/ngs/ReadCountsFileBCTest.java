@@ -0,0 +1,178 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes reads with {@link BCWriter} and reads them back with
+ * {@link ReadCountsFileBC}.
+ */
+public class ReadCountsFileBCTest {
+
+  /** The powers of 10 of the stored bin widths. */
+  private static final int[] POWERS = { 2, 3, 4 };
+
+  /** The stored bin widths, finest first. */
+  private static final int[] WIDTHS = { 100, 1000, 10000 };
+
+  /** Windows equal to, between and above the stored widths. */
+  private static final int[] WINDOWS = { 100, 1000, 2000, 10000, 50000 };
+
+  /** The number of random regions queried per window. */
+  private static final int REGIONS = 200;
+
+  /** The temporary folder. */
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  /**
+   * Each window combines the stored bins of the widest width dividing it:
+   * the total for COUNT, the mean for MEAN and the max for MAX. The window
+   * containing the end of a region is not returned.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    int[] starts = TestReads.starts(3);
+
+    Path bci = TestReads.writeBC(mFolder.newFolder().toPath(), starts, POWERS);
+
+    for (BCMode mode : BCMode.values()) {
+      ReadCountsFileBC bc = new ReadCountsFileBC(bci, mode);
+
+      try {
+        Random random = new Random(4);
+
+        for (int window : WINDOWS) {
+          int width = WIDTHS[0];
+
+          for (int w : WIDTHS) {
+            if (window % w == 0) {
+              width = w;
+            }
+          }
+
+          for (int i = 0; i < REGIONS; ++i) {
+            GenomicRegion region = TestReads.alignedRegion(random, window, 50);
+
+            int[] expected = TestReads.values(starts,
+                region.getStart(),
+                region.getEnd(),
+                window,
+                width,
+                mode);
+
+            int[] counts = bc.getCounts(region, window);
+
+            String message = mode + " " + region + " @ " + window;
+
+            assertEquals(message,
+                Math.max(1, expected.length - 1),
+                counts.length);
+
+            assertArrayEquals(message,
+                Arrays.copyOf(expected, counts.length),
+                counts);
+          }
+        }
+      } finally {
+        bc.close();
+      }
+    }
+  }
+
+  /**
+   * Estimates are made from whole stored bins so they are never less than
+   * the number of reads starting in the region.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testEstimateReadCount() throws IOException {
+    int[] starts = TestReads.starts(5);
+
+    ReadCountsFileBC bc = new ReadCountsFileBC(TestReads
+        .writeBC(mFolder.newFolder().toPath(), starts, POWERS), BCMode.COUNT);
+
+    try {
+      Random random = new Random(6);
+
+      for (int i = 0; i < REGIONS; ++i) {
+        int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+        int end = Math.min(TestReads.LENGTH, start + random.nextInt(200000));
+
+        long reads = Arrays.stream(starts)
+            .filter(s -> s >= start && s <= end).count();
+
+        GenomicRegion region = TestReads.region(start, end);
+
+        long estimate = bc.estimateReadCount(region);
+
+        assertTrue(region + " " + estimate + " < " + reads,
+            estimate >= reads);
+      }
+    } finally {
+      bc.close();
+    }
+  }
+
+  /**
+   * The sample read count is read back as written.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testReadCount() throws IOException {
+    int[] starts = TestReads.starts(1);
+
+    Path bci = TestReads.writeBC(mFolder.newFolder().toPath(), starts, 3);
+
+    ReadCountsFileBC bc = new ReadCountsFileBC(bci, BCMode.COUNT);
+
+    try {
+      assertEquals(starts.length,
+          bc.getReadCount(TestReads.genome(), 1000));
+    } finally {
+      bc.close();
+    }
+  }
+
+  /**
+   * Read totals the format cannot hold are rejected rather than truncated.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test(expected = IOException.class)
+  public void testReadCountOverflow() throws IOException {
+    BCWriter.writeReadCount(mFolder.newFolder().toPath(),
+        TestReads.GENOME,
+        Integer.MAX_VALUE + 1L);
+  }
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.Chromosome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes sparse reads with {@link BinTreeWriter} and reads them back with
+ * {@link ReadCountsFileBRT2}, with and without node summaries.
+ */
+public class ReadCountsFileBRT2Test {
+
+  /** Windows of at least MIN_BIN_WIDTH, on and between tree levels. */
+  private static final int[] WINDOWS = { 1000, 2000, 2500, 5000, 10000,
+      20000, 100000 };
+
+  /** Windows on the tree levels, above and below MIN_BIN_WIDTH. */
+  private static final int[] LEVEL_WINDOWS = { 1, 10, 100, 1000, 2000,
+      10000, 100000 };
+
+  /** The number of random regions queried per window. */
+  private static final int REGIONS = 200;
+
+  /** The temporary folder. */
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  /**
+   * Counts at and below MIN_BIN_WIDTH, and the total, mean and max of the
+   * 1 kb bins of wider windows, match values made directly from the reads
+   * that were written.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    int[] starts = TestReads.starts(3);
+
+    for (boolean summary : new boolean[] { false, true }) {
+      Path meta = TestReads
+          .writeBRT2(mFolder.newFolder().toPath(), starts, summary);
+
+      ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(meta);
+
+      try {
+        for (BCMode mode : BCMode.values()) {
+          brt2.setMode(mode);
+
+          Random random = new Random(4);
+
+          for (int window : LEVEL_WINDOWS) {
+            for (int i = 0; i < REGIONS; ++i) {
+              GenomicRegion region =
+                  TestReads.alignedRegion(random, window, 50);
+
+              int start = region.getStart();
+              int end = region.getEnd();
+
+              // Modes only apply to bins of at least MIN_BIN_WIDTH
+              int[] expected =
+                  window < ReadCountsFileBinTree.MIN_BIN_WIDTH
+                      ? TestReads.counts(starts, start, end, window)
+                      : TestReads.values(starts,
+                          start,
+                          end,
+                          window,
+                          ReadCountsFileBinTree.MIN_BIN_WIDTH,
+                          mode);
+
+              assertArrayEquals(mode + " summary " + summary + " " + region
+                  + " @ " + window, expected, brt2.getCounts(region, window));
+            }
+          }
+        }
+      } finally {
+        brt2.close();
+      }
+    }
+  }
+
+  /**
+   * The starts of any region are those that were written.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testStarts() throws IOException {
+    int[] starts = TestReads.starts(5);
+
+    ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(TestReads
+        .writeBRT2(mFolder.newFolder().toPath(), starts, false));
+
+    try {
+      Random random = new Random(6);
+
+      for (int i = 0; i < REGIONS; ++i) {
+        int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+        int end = Math.min(TestReads.LENGTH, start + random.nextInt(100000));
+
+        int[] expected = Arrays.stream(starts)
+            .filter(s -> s >= start && s <= end).toArray();
+
+        GenomicRegion region = TestReads.region(start, end);
+
+        assertArrayEquals(region.toString(),
+            expected,
+            brt2.getStarts(region, 1));
+      }
+    } finally {
+      brt2.close();
+    }
+  }
+
+  /**
+   * Sparse counts hold the same bins as dense counts.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testSparseCounts() throws IOException {
+    ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(TestReads
+        .writeBRT2(mFolder.newFolder().toPath(), TestReads.starts(1), false));
+
+    try {
+      Random random = new Random(7);
+
+      for (int window : new int[] { 1, 10, 100 }) {
+        for (int i = 0; i < REGIONS; ++i) {
+          int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+          int end = Math.min(TestReads.LENGTH,
+              start + random.nextInt(window * 2000));
+
+          GenomicRegion region = TestReads.region(start, end);
+
+          int[] expected = brt2.getCounts(region, window);
+
+          SparseCounts counts = brt2.getSparseCounts(region, window);
+
+          assertEquals(region.toString(), expected.length, counts.size());
+
+          assertArrayEquals(region + " @ " + window,
+              expected,
+              counts.toArray());
+
+          for (int b = 0; b < expected.length; b += 1 + b / 2) {
+            assertEquals(region + " bin " + b, expected[b], counts.get(b));
+          }
+        }
+      }
+    } finally {
+      brt2.close();
+    }
+  }
+
+  /**
+   * The coverage of each bin is the number of bases of each read's fragment
+   * in the bin divided by the window, with reads written alternately on
+   * the sense and antisense strands.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCoverage() throws IOException {
+    int[] starts = TestReads.starts(8);
+
+    ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(TestReads
+        .writeBRT2(mFolder.newFolder().toPath(), starts, false));
+
+    try {
+      Random random = new Random(9);
+
+      for (int fragment : new int[] { -1, 200 }) {
+        for (int window : new int[] { 1, 25, 100, 1000 }) {
+          for (int i = 0; i < REGIONS; ++i) {
+            int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+            int end = Math.min(TestReads.LENGTH,
+                start + random.nextInt(window * 100));
+
+            GenomicRegion region = TestReads.region(start, end);
+
+            assertArrayEquals(region + " @ " + window + " fragment "
+                + fragment,
+                coverage(starts, start, end, window, fragment),
+                brt2.getCoverage(region, window, fragment),
+                1e-9);
+          }
+        }
+      }
+    } finally {
+      brt2.close();
+    }
+  }
+
+  /**
+   * Blocks and occupancy found with the in memory tree match scanning the
+   * tree in the file and the reads that were written.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testIndex() throws IOException {
+    int[] starts = TestReads.starts(1);
+
+    Path dir = mFolder.newFolder().toPath();
+
+    ReadCountsFileBRT2 brt2 =
+        new ReadCountsFileBRT2(TestReads.writeBRT2(dir, starts, true));
+
+    RandomAccessFile file = new RandomAccessFile(
+        dir.resolve(TestReads.CHR + ".brt2").toFile(), "r");
+
+    try {
+      Chromosome chr = TestReads.region(1, 1).getChr();
+
+      Path path = brt2.getFile(chr, 1, brt2.getFileExt());
+
+      assertEquals(dir.resolve(TestReads.CHR + ".brt2"), path);
+
+      BinTreeIndex index = brt2.getIndex(chr);
+
+      // The 1 kb bins containing reads
+      int[] bins = TestReads.counts(starts,
+          0,
+          TestReads.LENGTH,
+          ReadCountsFileBinTree.MIN_BIN_WIDTH);
+
+      Random random = new Random(10);
+
+      for (int i = 0; i < REGIONS * 10; ++i) {
+        int p = 1 + random.nextInt(TestReads.LENGTH - 1);
+
+        for (int window : LEVEL_WINDOWS) {
+          Block expected = ReadCountsFileBinTree.getDataOffset(file, p, window);
+          Block block = index.getDataOffset(p, window);
+
+          String message = p + " @ " + window;
+
+          assertEquals(message, expected.start, block.start);
+          assertEquals(message, expected.width, block.width);
+          assertEquals(message, expected.startOffset, block.startOffset);
+          assertEquals(message, expected.endOffset, block.endOffset);
+        }
+
+        int end = Math.min(TestReads.LENGTH, p + random.nextInt(20000));
+
+        int first = -1;
+        int last = -1;
+
+        for (int b = p / ReadCountsFileBinTree.MIN_BIN_WIDTH; b <= end
+            / ReadCountsFileBinTree.MIN_BIN_WIDTH; ++b) {
+          if (bins[b] > 0) {
+            if (first == -1) {
+              first = Math.max(p, b * ReadCountsFileBinTree.MIN_BIN_WIDTH);
+            }
+
+            last = Math.min(end,
+                (b + 1) * ReadCountsFileBinTree.MIN_BIN_WIDTH - 1);
+          }
+        }
+
+        assertEquals(p + "-" + end, first, index.getOccupiedStart(p, end));
+        assertEquals(p + "-" + end, last, index.getOccupiedEnd(p, end));
+        assertEquals(p + "-" + end, first == -1, index.isEmpty(p, end));
+      }
+    } finally {
+      file.close();
+      brt2.close();
+    }
+  }
+
+  /**
+   * The mean and max of the 1 kb bins of each window must match the BC
+   * format built from the same reads, so windows are compared with BC
+   * files holding only 1 kb bins. Empty bins count towards the mean.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testModesMatchBC() throws IOException {
+    int[] starts = TestReads.starts(1);
+
+    Path bci = TestReads.writeBC(mFolder.newFolder().toPath(), starts, 3);
+
+    for (boolean summary : new boolean[] { false, true }) {
+      Path meta = TestReads
+          .writeBRT2(mFolder.newFolder().toPath(), starts, summary);
+
+      for (BCMode mode : BCMode.values()) {
+        ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(meta);
+        ReadCountsFileBC bc = new ReadCountsFileBC(bci, mode);
+
+        brt2.setMode(mode);
+
+        try {
+          Random random = new Random(2);
+
+          for (int window : WINDOWS) {
+            for (int i = 0; i < REGIONS; ++i) {
+              int start = 1 + random.nextInt(TestReads.LENGTH - 1);
+              int end = Math.min(TestReads.LENGTH,
+                  start + random.nextInt(window * 40));
+
+              GenomicRegion region = TestReads.region(start, end);
+
+              // BC does not return the bin containing the end
+              int[] expected = bc.getCounts(region, window);
+
+              assertArrayEquals(mode + " summary " + summary + " " + region
+                  + " @ " + window,
+                  expected,
+                  Arrays.copyOf(brt2.getCounts(region, window),
+                      expected.length));
+            }
+          }
+        } finally {
+          brt2.close();
+          bc.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Regions with few reads for their bins are returned sparse and others
+   * dense, with the same counts either way.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testRegionCounts() throws IOException {
+    Path meta = TestReads.writeBRT2(mFolder.newFolder().toPath(),
+        TestReads.starts(1),
+        false);
+
+    ReadCountsFileBRT2 brt2 = new ReadCountsFileBRT2(meta);
+
+    try {
+      // Mostly empty space at single base resolution
+      GenomicRegion region = TestReads.region(40000, 420000);
+
+      RegionCounts counts = brt2.getRegionCounts(region, 1);
+
+      assertTrue(region.toString(), counts.isSparse());
+      assertArrayEquals(brt2.getCounts(region, 1), counts.toArray());
+
+      // Within an island most 100 bp bins have reads
+      region = TestReads.region(1000000, 1040000);
+
+      counts = brt2.getRegionCounts(region, 100);
+
+      assertFalse(region.toString(), counts.isSparse());
+      assertArrayEquals(brt2.getCounts(region, 100), counts.toArray());
+    } finally {
+      brt2.close();
+    }
+  }
+
+  /**
+   * Returns the coverage of each bin of a region, including the bin
+   * containing the end, by adding up the bases of each fragment one by one.
+   * Reads are written alternately on the sense and antisense strands.
+   *
+   * @param starts the sorted starts
+   * @param start the one based start of the region
+   * @param end the one based end of the region
+   * @param window the window
+   * @param fragment the fragment length, or a value less than 1 to use the
+   *          read length.
+   * @return the coverage
+   */
+  private static double[] coverage(int[] starts,
+      int start,
+      int end,
+      int window,
+      int fragment) {
+    int length = fragment > 0 ? fragment : TestReads.READ_LENGTH;
+
+    int sb = start / window;
+
+    double[] ret = new double[end / window - sb + 1];
+
+    for (int i = 0; i < starts.length; ++i) {
+      int from = (i & 1) == 1
+          ? starts[i] + TestReads.READ_LENGTH - length
+          : starts[i];
+
+      for (int p = from; p < from + length; ++p) {
+        int b = p / window - sb;
+
+        if (p >= 0 && b >= 0 && b < ret.length) {
+          ret[b] += 1;
+        }
+      }
+    }
+
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] /= window;
+    }
+
+    return ret;
+  }
+}
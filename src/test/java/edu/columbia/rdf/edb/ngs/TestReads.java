@@ -0,0 +1,280 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.ngs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomeService;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+
+/**
+ * Writes the same sparse reads on one chromosome in the formats under test
+ * so that readers can be compared with each other and with counts made
+ * directly from the reads.
+ */
+final class TestReads {
+
+  /** The genome. */
+  static final String GENOME = "hg19";
+
+  /** The chromosome. */
+  static final String CHR = "chr1";
+
+  /** The length of the chromosome covered by the reads. */
+  static final int LENGTH = 2000000;
+
+  /** The read length. */
+  static final int READ_LENGTH = 50;
+
+  /**
+   * Islands of reads separated by empty space, so windows cover a mix of
+   * empty and occupied bins.
+   */
+  private static final int[][] ISLANDS = { { 1, 800 }, { 50000, 53000 },
+      { 400500, 401200 }, { 999000, 1041000 }, { 1500000, 1500010 },
+      { 1998000, LENGTH } };
+
+  /**
+   * Instantiates a new test reads.
+   */
+  private TestReads() {
+    // Do nothing
+  }
+
+  /**
+   * Returns the genome.
+   *
+   * @return the genome
+   */
+  static Genome genome() {
+    return GenomeService.getInstance().guessGenome(GENOME);
+  }
+
+  /**
+   * Returns a region of the test chromosome.
+   *
+   * @param start the one based start
+   * @param end the one based end
+   * @return the region
+   */
+  static GenomicRegion region(int start, int end) {
+    return GenomicRegion.parse(genome(), CHR + ":" + start + "-" + end);
+  }
+
+  /**
+   * Returns sorted read starts, one every 20 bp on average within each
+   * island, with several reads sharing some starts.
+   *
+   * @param seed the random seed
+   * @return the starts
+   */
+  static int[] starts(long seed) {
+    Random random = new Random(seed);
+
+    int[] ret = new int[0];
+
+    for (int[] island : ISLANDS) {
+      int l = island[1] - island[0] + 1;
+      int n = Math.max(1, l / 20);
+
+      int[] starts = new int[n];
+
+      for (int i = 0; i < n; ++i) {
+        starts[i] = island[0] + random.nextInt(l);
+      }
+
+      int p = ret.length;
+
+      ret = Arrays.copyOf(ret, p + n);
+
+      System.arraycopy(starts, 0, ret, p, n);
+    }
+
+    Arrays.sort(ret);
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of starts in each window of a region, including the
+   * window containing the end.
+   *
+   * @param starts the sorted starts
+   * @param start the one based start of the region
+   * @param end the one based end of the region
+   * @param window the window
+   * @return the counts
+   */
+  static int[] counts(int[] starts, int start, int end, int window) {
+    int sb = start / window;
+
+    int[] ret = new int[end / window - sb + 1];
+
+    for (int s : starts) {
+      if (s >= start && s <= end) {
+        ++ret[s / window - sb];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the value of each window of a region whose bins start on window
+   * boundaries, made by combining the stored bins of a given width that
+   * start in the window: the total for COUNT, the mean for MEAN and the
+   * largest value for MAX. The window containing the end is included.
+   *
+   * @param starts the sorted starts
+   * @param start the one based start of the region
+   * @param end the one based end of the region
+   * @param window the window, a multiple of width.
+   * @param width the width of the stored bins.
+   * @param mode the mode
+   * @return the values
+   */
+  static int[] values(int[] starts,
+      int start,
+      int end,
+      int window,
+      int width,
+      BCMode mode) {
+    int r = window / width;
+
+    int sb = start / window;
+
+    int[] bins = counts(starts, sb * window, end, width);
+
+    int[] ret = new int[end / window - sb + 1];
+
+    for (int i = 0; i < ret.length; ++i) {
+      int sum = 0;
+      int max = 0;
+
+      for (int j = i * r; j < (i + 1) * r && j < bins.length; ++j) {
+        sum += bins[j];
+        max = Math.max(max, bins[j]);
+      }
+
+      switch (mode) {
+      case MAX:
+        ret[i] = max;
+        break;
+      case MEAN:
+        ret[i] = sum / r;
+        break;
+      default:
+        ret[i] = sum;
+        break;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a random region of up to a given number of whole windows.
+   *
+   * @param random the random number generator
+   * @param window the window
+   * @param maxBins the max number of windows.
+   * @return the region
+   */
+  static GenomicRegion alignedRegion(Random random, int window, int maxBins) {
+    int bins = LENGTH / window;
+
+    int n = 1 + random.nextInt(Math.min(maxBins, bins));
+
+    int b = random.nextInt(bins - n + 1);
+
+    return region(Math.max(1, b * window), (b + n) * window - 1);
+  }
+
+  /**
+   * Write the starts as a BRT2 file and its meta data into a directory.
+   *
+   * @param dir the directory
+   * @param starts the sorted starts
+   * @param summary true to write a version 3 file with node summaries.
+   * @return the meta data file to open the reader with.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static Path writeBRT2(Path dir, int[] starts, boolean summary)
+      throws IOException {
+    BinTreeWriter writer = new BinTreeWriter(dir.resolve(CHR + ".brt2"),
+        GENOME,
+        READ_LENGTH).setSummary(summary);
+
+    try {
+      for (int i = 0; i < starts.length; ++i) {
+        writer.add(starts[i], (byte) (i & 1));
+      }
+    } finally {
+      writer.close();
+    }
+
+    return writeMeta(dir, starts.length);
+  }
+
+  /**
+   * Write the starts as BC files of the given powers into a directory.
+   *
+   * @param dir the directory
+   * @param starts the starts
+   * @param powers the powers of 10 of the bin widths.
+   * @return the file to open the reader with.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static Path writeBC(Path dir, int[] starts, int... powers)
+      throws IOException {
+    BCWriter writer = new BCWriter(LENGTH, powers);
+
+    for (int s : starts) {
+      writer.add(s);
+    }
+
+    writer.write(dir, CHR);
+
+    BCWriter.writeReadCount(dir, GENOME, writer.getReads());
+
+    return dir.resolve("reads.bci");
+  }
+
+  /**
+   * Write the meta data file that bin tree readers are opened with.
+   *
+   * @param dir the directory
+   * @param reads the number of reads
+   * @return the meta data file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static Path writeMeta(Path dir, int reads) throws IOException {
+    Path ret = dir.resolve("meta.json");
+
+    String json = "{\"Genome\":\"" + GENOME + "\",\"Mapped Reads\":" + reads
+        + "}";
+
+    Files.write(ret, json.getBytes(StandardCharsets.UTF_8));
+
+    return ret;
+  }
+}